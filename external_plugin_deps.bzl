@@ -3,6 +3,9 @@ load("//tools/bzl:maven_jar.bzl", "maven_jar")
 AWS_SDK_VER = "2.16.19"
 AWS_KINESIS_VER = "2.3.4"
 JACKSON_VER = "2.10.4"
+NETTY_VER = "4.1.59.Final"
+NETTY_REACTIVE_STREAMS_VER = "2.0.4"
+JMH_VER = "1.32"
 
 def external_plugin_deps():
     maven_jar(
@@ -47,6 +50,126 @@ def external_plugin_deps():
         sha1 = "53edaa1f884682ac3091293eff3eb024ed0e36bb",
     )
 
+    maven_jar(
+        name = "amazon-aws-json-protocol",
+        artifact = "software.amazon.awssdk:aws-json-protocol:" + AWS_SDK_VER,
+        sha1 = "16449e555f61607b917dc7f242c1928298de9bdd",
+    )
+
+    maven_jar(
+        name = "amazon-protocol-core",
+        artifact = "software.amazon.awssdk:protocol-core:" + AWS_SDK_VER,
+        sha1 = "6200c1617f87eed0216c6afab35bab2403da140c",
+    )
+
+    maven_jar(
+        name = "amazon-profiles",
+        artifact = "software.amazon.awssdk:profiles:" + AWS_SDK_VER,
+        sha1 = "5add2a843de43bd0acf45e1ab8c2b94c3638dd66",
+    )
+
+    maven_jar(
+        name = "amazon-auth",
+        artifact = "software.amazon.awssdk:auth:" + AWS_SDK_VER,
+        sha1 = "4163754b2a0eadcb569a35f0666fd5d859e43ef8",
+    )
+
+    maven_jar(
+        name = "amazon-http-client-spi",
+        artifact = "software.amazon.awssdk:http-client-spi:" + AWS_SDK_VER,
+        sha1 = "e4027e7e0cb064602100b34e19f131983f76f872",
+    )
+
+    maven_jar(
+        name = "amazon-annotations",
+        artifact = "software.amazon.awssdk:annotations:" + AWS_SDK_VER,
+        sha1 = "26668b528b719562744eb8c091274ae0789fbbcb",
+    )
+
+    maven_jar(
+        name = "amazon-metrics-spi",
+        artifact = "software.amazon.awssdk:metrics-spi:" + AWS_SDK_VER,
+        sha1 = "d8669974b412766751b5eaf9c1edad908bfe5c38",
+    )
+
+    maven_jar(
+        name = "amazon-netty-nio-client",
+        artifact = "software.amazon.awssdk:netty-nio-client:" + AWS_SDK_VER,
+        sha1 = "bb674feda8417513a647c7aa8cba9a537068d099",
+    )
+
+    maven_jar(
+        name = "amazon-eventstream",
+        artifact = "software.amazon.eventstream:eventstream:1.0.1",
+        sha1 = "6ff8649dffc5190366ada897ba8525a836297784",
+    )
+
+    maven_jar(
+        name = "netty-codec-http",
+        artifact = "io.netty:netty-codec-http:" + NETTY_VER,
+        sha1 = "766327d675678686a05faa446c4413d8ccb79b5c",
+    )
+
+    maven_jar(
+        name = "netty-codec-http2",
+        artifact = "io.netty:netty-codec-http2:" + NETTY_VER,
+        sha1 = "b23b7fbffa4de30f336c2cc8bd1951403d1bebaa",
+    )
+
+    maven_jar(
+        name = "netty-codec",
+        artifact = "io.netty:netty-codec:" + NETTY_VER,
+        sha1 = "5e563309b99cf55bdbecc4dab7c417a0167c31aa",
+    )
+
+    maven_jar(
+        name = "netty-transport",
+        artifact = "io.netty:netty-transport:" + NETTY_VER,
+        sha1 = "864d20f35ce909e6a7462095cb8f91ee94d1cd4c",
+    )
+
+    maven_jar(
+        name = "netty-resolver",
+        artifact = "io.netty:netty-resolver:" + NETTY_VER,
+        sha1 = "26bc136952a9f7a994dd7162f481c860275948de",
+    )
+
+    maven_jar(
+        name = "netty-common",
+        artifact = "io.netty:netty-common:" + NETTY_VER,
+        sha1 = "e8800b0c50b6743ec1c5a3713816ce58910a703a",
+    )
+
+    maven_jar(
+        name = "netty-buffer",
+        artifact = "io.netty:netty-buffer:" + NETTY_VER,
+        sha1 = "a1f281008d7e9574c14d386b39b3639a240eb0d1",
+    )
+
+    maven_jar(
+        name = "netty-handler",
+        artifact = "io.netty:netty-handler:" + NETTY_VER,
+        sha1 = "302b4c8ca800aeddcf94401f2403114c8f5db5a5",
+    )
+
+    maven_jar(
+        name = "netty-reactive-streams-http",
+        artifact = "com.typesafe.netty:netty-reactive-streams-http:" + NETTY_REACTIVE_STREAMS_VER,
+        sha1 = "5f4d3ea06767bcd54159e4ce901565dd974bdc8a",
+    )
+
+    maven_jar(
+        name = "netty-reactive-streams",
+        artifact = "com.typesafe.netty:netty-reactive-streams:" + NETTY_REACTIVE_STREAMS_VER,
+        sha1 = "0f77c8eaa7d5e2f2160b6d21ba385cf726f164b2",
+    )
+
+    maven_jar(
+        name = "reactive-streams",
+        artifact = "org.reactivestreams:reactive-streams:1.0.2",
+        sha1 = "323964c36556eb0e6209f65c1cef72b53b461ab8",
+    )
+
     maven_jar(
         name = "aws-java-sdk-core",
         artifact = "com.amazonaws:aws-java-sdk-core:1.11.960",
@@ -82,3 +205,27 @@ def external_plugin_deps():
         artifact = "com.gerritforge:global-refdb:3.3.2.1",
         sha1 = "00b6b0f39b3c8fc280a19d91fb0681954ebccd02",
     )
+
+    maven_jar(
+        name = "jmh-core",
+        artifact = "org.openjdk.jmh:jmh-core:" + JMH_VER,
+        sha1 = "9a8b69ea08118fd4e5d30a152d37b7087ee4a720",
+    )
+
+    maven_jar(
+        name = "jmh-generator-annprocess",
+        artifact = "org.openjdk.jmh:jmh-generator-annprocess:" + JMH_VER,
+        sha1 = "0a28eccc75e0d65984ce25e1ec4dd021a0ca6c57",
+    )
+
+    maven_jar(
+        name = "jopt-simple",
+        artifact = "net.sf.jopt-simple:jopt-simple:4.6",
+        sha1 = "306816fb57cf94f108a43c95731b08934dcae15c",
+    )
+
+    maven_jar(
+        name = "commons-math3",
+        artifact = "org.apache.commons:commons-math3:3.2",
+        sha1 = "ec2544ab27e110d2d431bdad7d538ed509b21e62",
+    )
@@ -0,0 +1,223 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_LOCKS_TABLE_NAME;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_REFS_DB_TABLE_NAME;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.LOCK_DB_PRIMARY_KEY;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.LOCK_DB_SORT_KEY;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.REF_DB_PRIMARY_KEY;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBLockClient;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.config.PluginConfig;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the ref-db hot paths against an in-memory DynamoDB.
+ *
+ * <p>The {@code *Contended} benchmarks run on several threads reading, updating or locking the same
+ * ref, the others run on a single thread by default. Run with {@code -prof gc} to get the
+ * allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DynamoDBRefDatabaseBenchmark {
+  private static final int NUM_REFS = 1000;
+  private static final int CONTENDING_THREADS = 4;
+  private static final String CONTENDED_REF = "refs/heads/master";
+  private static final Project.NameKey PROJECT = Project.nameKey("benchmark");
+  private static final ObjectId VALUE_A =
+      ObjectId.fromString("533d3ccf8a650fb26380faa732921a2c74924d5c");
+  private static final ObjectId VALUE_B =
+      ObjectId.fromString("9f6f2963cf44505428c61b935ff1ca65372cf28c");
+
+  /** Simulated network round trip of every DynamoDB request. */
+  @Param({"0", "500"})
+  public long latencyMicros;
+
+  /** See {@link RefLockMode}, e.g. {@code -p lockMode=OPTIMISTIC}. */
+  @Param({"DYNAMODB"})
+  public String lockMode;
+
+  /** See {@link RefValueFormat}, e.g. {@code -p refValueFormat=BINARY}. */
+  @Param({"STRING"})
+  public String refValueFormat;
+
+  /** E.g. {@code -p readBatchWindow=2ms -t 8} to batch the reads of concurrent threads. */
+  @Param({"0"})
+  public String readBatchWindow;
+
+  /** E.g. {@code -p hedgedReadPercentile=95} to hedge the slowest 5% of the reads. */
+  @Param({"0"})
+  public String hedgedReadPercentile;
+
+  /** E.g. {@code -p lockReleaseQueueSize=1000} to release the ref locks in the background. */
+  @Param({"0"})
+  public String lockReleaseQueueSize;
+
+  private DynamoDBRefDatabase refDb;
+  private HedgedReads hedgedReads;
+  private LockReleaser lockReleaser;
+  private AmazonDynamoDBLockClient lockClient;
+  private final AtomicInteger threadIds = new AtomicInteger();
+
+  @State(Scope.Thread)
+  public static class ThreadState {
+    String ownRef;
+    ObjectId ownRefValue;
+    int nextRef;
+
+    @Setup
+    public void setup(DynamoDBRefDatabaseBenchmark benchmark) {
+      ownRef = "refs/heads/thread-" + benchmark.threadIds.incrementAndGet();
+      ownRefValue = VALUE_A;
+      benchmark.refDb.compareAndPut(PROJECT, refOf(ownRef, null), ownRefValue);
+    }
+
+    Ref nextRef() {
+      nextRef = (nextRef + 1) % NUM_REFS;
+      return refOf("refs/heads/branch-" + nextRef, VALUE_A);
+    }
+  }
+
+  @Setup
+  public void setup() {
+    InMemoryAmazonDynamoDB dynamoDB =
+        new InMemoryAmazonDynamoDB(latencyMicros, TimeUnit.MICROSECONDS)
+            .withTable(DEFAULT_REFS_DB_TABLE_NAME, REF_DB_PRIMARY_KEY)
+            .withTable(DEFAULT_LOCKS_TABLE_NAME, LOCK_DB_PRIMARY_KEY, LOCK_DB_SORT_KEY);
+    PluginConfig.Update pluginConfig =
+        PluginConfig.Update.forTest("plugins_aws-dynamodb", new Config());
+    pluginConfig.setString("lockMode", lockMode);
+    pluginConfig.setString("refValueFormat", refValueFormat);
+    pluginConfig.setString("readBatchWindow", readBatchWindow);
+    pluginConfig.setString("hedgedReadPercentile", hedgedReadPercentile);
+    pluginConfig.setString("lockReleaseQueueSize", lockReleaseQueueSize);
+    Configuration configuration = new Configuration(pluginConfig.asPluginConfig());
+
+    RefDbMetrics metrics = new RefDbMetrics(new DisabledMetricMaker());
+    lockClient = new DynamoDBLockClientProvider(configuration, dynamoDB).get();
+    hedgedReads = new HedgedReads(configuration, metrics);
+    lockReleaser = new LockReleaser(configuration, metrics);
+    refDb =
+        new DynamoDBRefDatabase(
+            new DynamoDBLocks(
+                () -> lockClient,
+                dynamoDB,
+                configuration,
+                new LockHeartbeats(configuration, metrics),
+                lockReleaser,
+                metrics),
+            dynamoDB,
+            configuration,
+            new LocalRefLocks(metrics),
+            metrics,
+            DynamoDBTablesStatus.active(),
+            hedgedReads);
+
+    for (int i = 0; i < NUM_REFS; i++) {
+      refDb.compareAndPut(PROJECT, refOf("refs/heads/branch-" + i, null), VALUE_A);
+    }
+    refDb.compareAndPut(PROJECT, refOf(CONTENDED_REF, null), VALUE_A);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    lockReleaser.stop();
+    lockClient.close();
+    hedgedReads.stop();
+  }
+
+  @Benchmark
+  public boolean isUpToDate(ThreadState state) {
+    return refDb.isUpToDate(PROJECT, state.nextRef());
+  }
+
+  @Benchmark
+  public Optional<String> get(ThreadState state) {
+    return refDb.get(PROJECT, state.nextRef().getName(), String.class);
+  }
+
+  @Benchmark
+  @Threads(CONTENDING_THREADS)
+  public Optional<String> getContended() {
+    return refDb.get(PROJECT, CONTENDED_REF, String.class);
+  }
+
+  @Benchmark
+  public boolean compareAndPut(ThreadState state) {
+    ObjectId newValue = state.ownRefValue.equals(VALUE_A) ? VALUE_B : VALUE_A;
+    boolean updated =
+        refDb.compareAndPut(PROJECT, refOf(state.ownRef, state.ownRefValue), newValue);
+    state.ownRefValue = newValue;
+    return updated;
+  }
+
+  @Benchmark
+  @Threads(CONTENDING_THREADS)
+  public boolean compareAndPutContended() {
+    ObjectId currentValue =
+        ObjectId.fromString(refDb.get(PROJECT, CONTENDED_REF, String.class).get());
+    ObjectId newValue = currentValue.equals(VALUE_A) ? VALUE_B : VALUE_A;
+    try {
+      return refDb.compareAndPut(PROJECT, refOf(CONTENDED_REF, currentValue), newValue);
+    } catch (GlobalRefDbSystemError e) {
+      // Another thread updated the ref in the meantime
+      return false;
+    }
+  }
+
+  @Benchmark
+  public void lockRef(ThreadState state) throws Exception {
+    refDb.lockRef(PROJECT, state.ownRef).close();
+  }
+
+  @Benchmark
+  @Threads(CONTENDING_THREADS)
+  public void lockRefContended() throws Exception {
+    refDb.lockRef(PROJECT, CONTENDED_REF).close();
+  }
+
+  private static Ref refOf(String refName, ObjectId objectId) {
+    return new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, refName, objectId);
+  }
+}
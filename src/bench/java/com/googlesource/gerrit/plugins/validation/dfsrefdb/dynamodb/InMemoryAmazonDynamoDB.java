@@ -0,0 +1,424 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.CancellationReason;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsResult;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
+import com.amazonaws.services.dynamodbv2.model.Update;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory stand-in for DynamoDB, implementing the subset of the API used by the refs database and
+ * by the lock client, with an optional latency added to every request to simulate the network round
+ * trip.
+ *
+ * <p>Condition expressions support {@code attribute_exists}, {@code attribute_not_exists}, {@code
+ * =}, {@code <>}, {@code AND}, {@code OR} and parentheses; update expressions support {@code SET}
+ * and {@code REMOVE}.
+ */
+class InMemoryAmazonDynamoDB extends AbstractAmazonDynamoDB {
+  private static final Pattern TOKEN = Pattern.compile("\\s*(<>|[(),=]|[#:]?[A-Za-z0-9_]+)");
+
+  private final long latencyNanos;
+  private final Map<String, Table> tables = new ConcurrentHashMap<>();
+
+  InMemoryAmazonDynamoDB(long latency, TimeUnit unit) {
+    this.latencyNanos = unit.toNanos(latency);
+  }
+
+  InMemoryAmazonDynamoDB withTable(String tableName, String... keyNames) {
+    tables.put(tableName, new Table(ImmutableList.copyOf(keyNames)));
+    return this;
+  }
+
+  @Override
+  public GetItemResult getItem(GetItemRequest request) {
+    roundTrip();
+    Map<String, AttributeValue> item = table(request.getTableName()).items.get(request.getKey());
+    return new GetItemResult().withItem(item == null ? null : new HashMap<>(item));
+  }
+
+  @Override
+  public BatchGetItemResult batchGetItem(BatchGetItemRequest request) {
+    roundTrip();
+    Map<String, List<Map<String, AttributeValue>>> responses = new HashMap<>();
+    for (Map.Entry<String, KeysAndAttributes> keys : request.getRequestItems().entrySet()) {
+      Table table = table(keys.getKey());
+      List<Map<String, AttributeValue>> items = new ArrayList<>();
+      for (Map<String, AttributeValue> key : keys.getValue().getKeys()) {
+        Map<String, AttributeValue> item = table.items.get(key);
+        if (item != null) {
+          items.add(new HashMap<>(item));
+        }
+      }
+      responses.put(keys.getKey(), items);
+    }
+    return new BatchGetItemResult().withResponses(responses);
+  }
+
+  @Override
+  public PutItemResult putItem(PutItemRequest request) {
+    roundTrip();
+    Table table = table(request.getTableName());
+    Map<String, AttributeValue> item = new HashMap<>(request.getItem());
+    table.write(
+        table.keyOf(item),
+        existing -> {
+          checkCondition(
+              request.getConditionExpression(),
+              request.getExpressionAttributeNames(),
+              request.getExpressionAttributeValues(),
+              existing);
+          return item;
+        });
+    return new PutItemResult();
+  }
+
+  @Override
+  public UpdateItemResult updateItem(UpdateItemRequest request) {
+    roundTrip();
+    Table table = table(request.getTableName());
+    table.write(
+        request.getKey(),
+        existing -> {
+          checkCondition(
+              request.getConditionExpression(),
+              request.getExpressionAttributeNames(),
+              request.getExpressionAttributeValues(),
+              existing);
+          return update(
+              request.getKey(),
+              existing,
+              request.getUpdateExpression(),
+              request.getExpressionAttributeNames(),
+              request.getExpressionAttributeValues());
+        });
+    return new UpdateItemResult();
+  }
+
+  @Override
+  public DeleteItemResult deleteItem(DeleteItemRequest request) {
+    roundTrip();
+    Table table = table(request.getTableName());
+    table.write(
+        request.getKey(),
+        existing -> {
+          checkCondition(
+              request.getConditionExpression(),
+              request.getExpressionAttributeNames(),
+              request.getExpressionAttributeValues(),
+              existing);
+          return null;
+        });
+    return new DeleteItemResult();
+  }
+
+  @Override
+  public TransactWriteItemsResult transactWriteItems(TransactWriteItemsRequest request) {
+    roundTrip();
+    List<Table> transactionTables = new ArrayList<>();
+    for (TransactWriteItem transactItem : request.getTransactItems()) {
+      Table table = table(updateOf(transactItem).getTableName());
+      if (!transactionTables.contains(table)) {
+        transactionTables.add(table);
+      }
+    }
+    transactionTables.forEach(t -> t.lock.writeLock().lock());
+    try {
+      List<CancellationReason> reasons = new ArrayList<>();
+      boolean cancelled = false;
+      for (TransactWriteItem transactItem : request.getTransactItems()) {
+        Update update = updateOf(transactItem);
+        Map<String, AttributeValue> existing =
+            table(update.getTableName()).items.get(update.getKey());
+        try {
+          checkCondition(
+              update.getConditionExpression(),
+              update.getExpressionAttributeNames(),
+              update.getExpressionAttributeValues(),
+              existing);
+          reasons.add(new CancellationReason().withCode("None"));
+        } catch (ConditionalCheckFailedException e) {
+          reasons.add(new CancellationReason().withCode("ConditionalCheckFailed"));
+          cancelled = true;
+        }
+      }
+      if (cancelled) {
+        TransactionCanceledException e = new TransactionCanceledException("Transaction cancelled");
+        e.setCancellationReasons(reasons);
+        throw e;
+      }
+
+      for (TransactWriteItem transactItem : request.getTransactItems()) {
+        Update update = updateOf(transactItem);
+        ConcurrentMap<Map<String, AttributeValue>, Map<String, AttributeValue>> items =
+            table(update.getTableName()).items;
+        items.put(
+            update.getKey(),
+            update(
+                update.getKey(),
+                items.get(update.getKey()),
+                update.getUpdateExpression(),
+                update.getExpressionAttributeNames(),
+                update.getExpressionAttributeValues()));
+      }
+      return new TransactWriteItemsResult();
+    } finally {
+      transactionTables.forEach(t -> t.lock.writeLock().unlock());
+    }
+  }
+
+  @Override
+  public void shutdown() {}
+
+  private void roundTrip() {
+    if (latencyNanos > 0) {
+      LockSupport.parkNanos(latencyNanos);
+    }
+  }
+
+  private Table table(String tableName) {
+    Table table = tables.get(tableName);
+    if (table == null) {
+      throw new ResourceNotFoundException("Table " + tableName + " does not exist");
+    }
+    return table;
+  }
+
+  private static Update updateOf(TransactWriteItem transactItem) {
+    if (transactItem.getUpdate() == null) {
+      throw new UnsupportedOperationException("Only Update transaction items are supported");
+    }
+    return transactItem.getUpdate();
+  }
+
+  private static Map<String, AttributeValue> update(
+      Map<String, AttributeValue> key,
+      Map<String, AttributeValue> existing,
+      String updateExpression,
+      Map<String, String> names,
+      Map<String, AttributeValue> values) {
+    Map<String, AttributeValue> item = new HashMap<>(existing == null ? key : existing);
+    List<String> tokens = tokenize(updateExpression);
+    String action = null;
+    for (int i = 0; i < tokens.size(); i++) {
+      String token = tokens.get(i);
+      if (token.equals("SET") || token.equals("REMOVE")) {
+        action = token;
+      } else if (token.equals(",")) {
+        continue;
+      } else if ("SET".equals(action)) {
+        item.put(nameOf(token, names), operand(tokens.get(i + 2), names, values, item));
+        i += 2;
+      } else if ("REMOVE".equals(action)) {
+        item.remove(nameOf(token, names));
+      } else {
+        throw new UnsupportedOperationException("Unsupported update: " + updateExpression);
+      }
+    }
+    return item;
+  }
+
+  private static void checkCondition(
+      String conditionExpression,
+      Map<String, String> names,
+      Map<String, AttributeValue> values,
+      Map<String, AttributeValue> item) {
+    if (conditionExpression == null) {
+      return;
+    }
+    ConditionParser parser =
+        new ConditionParser(
+            tokenize(conditionExpression),
+            names == null ? Collections.emptyMap() : names,
+            values == null ? Collections.emptyMap() : values,
+            item == null ? Collections.emptyMap() : item);
+    if (!parser.parse()) {
+      throw new ConditionalCheckFailedException("The conditional request failed");
+    }
+  }
+
+  private static List<String> tokenize(String expression) {
+    List<String> tokens = new ArrayList<>();
+    Matcher matcher = TOKEN.matcher(expression);
+    int end = 0;
+    while (matcher.find() && matcher.start() == end) {
+      tokens.add(matcher.group(1));
+      end = matcher.end();
+    }
+    if (!expression.substring(end).trim().isEmpty()) {
+      throw new UnsupportedOperationException("Unsupported expression: " + expression);
+    }
+    return tokens;
+  }
+
+  private static String nameOf(String path, Map<String, String> names) {
+    return path.startsWith("#") ? names.get(path) : path;
+  }
+
+  private static AttributeValue operand(
+      String token,
+      Map<String, String> names,
+      Map<String, AttributeValue> values,
+      Map<String, AttributeValue> item) {
+    return token.startsWith(":") ? values.get(token) : item.get(nameOf(token, names));
+  }
+
+  /** Recursive descent evaluation of a condition expression against an item. */
+  private static class ConditionParser {
+    private final List<String> tokens;
+    private final Map<String, String> names;
+    private final Map<String, AttributeValue> values;
+    private final Map<String, AttributeValue> item;
+    private int pos;
+
+    ConditionParser(
+        List<String> tokens,
+        Map<String, String> names,
+        Map<String, AttributeValue> values,
+        Map<String, AttributeValue> item) {
+      this.tokens = tokens;
+      this.names = names;
+      this.values = values;
+      this.item = item;
+    }
+
+    boolean parse() {
+      boolean result = or();
+      if (pos != tokens.size()) {
+        throw new UnsupportedOperationException("Unexpected token " + tokens.get(pos));
+      }
+      return result;
+    }
+
+    private boolean or() {
+      boolean result = and();
+      while (accept("OR")) {
+        result |= and();
+      }
+      return result;
+    }
+
+    private boolean and() {
+      boolean result = primary();
+      while (accept("AND")) {
+        result &= primary();
+      }
+      return result;
+    }
+
+    private boolean primary() {
+      if (accept("(")) {
+        boolean result = or();
+        expect(")");
+        return result;
+      }
+      if (accept("attribute_exists") || accept("attribute_not_exists")) {
+        boolean exists = tokens.get(pos - 1).equals("attribute_exists");
+        expect("(");
+        boolean present = item.containsKey(nameOf(tokens.get(pos++), names));
+        expect(")");
+        return exists == present;
+      }
+      AttributeValue left = operand(tokens.get(pos++), names, values, item);
+      String comparator = tokens.get(pos++);
+      AttributeValue right = operand(tokens.get(pos++), names, values, item);
+      boolean equal = left != null && left.equals(right);
+      switch (comparator) {
+        case "=":
+          return equal;
+        case "<>":
+          return !equal;
+        default:
+          throw new UnsupportedOperationException("Unsupported comparator " + comparator);
+      }
+    }
+
+    private boolean accept(String token) {
+      if (pos < tokens.size() && tokens.get(pos).equals(token)) {
+        pos++;
+        return true;
+      }
+      return false;
+    }
+
+    private void expect(String token) {
+      if (!accept(token)) {
+        throw new UnsupportedOperationException("Expected " + token + " at position " + pos);
+      }
+    }
+  }
+
+  private static class Table {
+    private final List<String> keyNames;
+    private final ConcurrentMap<Map<String, AttributeValue>, Map<String, AttributeValue>> items =
+        new ConcurrentHashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    Table(List<String> keyNames) {
+      this.keyNames = keyNames;
+    }
+
+    Map<String, AttributeValue> keyOf(Map<String, AttributeValue> item) {
+      Map<String, AttributeValue> key = new HashMap<>();
+      for (String keyName : keyNames) {
+        key.put(keyName, item.get(keyName));
+      }
+      return key;
+    }
+
+    /** Atomically replaces an item, or removes it when the writer returns null. */
+    void write(Map<String, AttributeValue> key, UnaryOperator<Map<String, AttributeValue>> writer) {
+      lock.readLock().lock();
+      try {
+        items.compute(new HashMap<>(key), (k, existing) -> writer.apply(existing));
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,93 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.RateLimiter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the rate of the requests to a DynamoDB table, which adapts to the
+ * throughput available on the table.
+ *
+ * <p>The rate starts at its maximum, is halved, at most once per second, every time DynamoDB
+ * throttles a request, and then recovers linearly to its maximum over {@value #RECOVERY_SECONDS}
+ * seconds without throttling.
+ */
+class AdaptiveRateLimiter {
+  @VisibleForTesting static final double MIN_RATE_FRACTION = 0.05;
+  private static final double DECREASE_FACTOR = 0.5;
+  private static final int RECOVERY_SECONDS = 20;
+  private static final long MIN_DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final double maxRate;
+  private final Ticker ticker;
+  private final RateLimiter rateLimiter;
+  private long lastDecreaseNanos;
+  private long lastAdjustmentNanos;
+
+  AdaptiveRateLimiter(double maxRate) {
+    this(maxRate, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  AdaptiveRateLimiter(double maxRate, Ticker ticker) {
+    this.maxRate = maxRate;
+    this.ticker = ticker;
+    this.rateLimiter = RateLimiter.create(maxRate);
+    this.lastAdjustmentNanos = ticker.read();
+    this.lastDecreaseNanos = lastAdjustmentNanos - MIN_DECREASE_INTERVAL_NANOS;
+  }
+
+  /** Waits until a request can be sent. */
+  void acquire() {
+    rateLimiter.acquire();
+  }
+
+  /** @return whether a request can be sent right away. */
+  boolean tryAcquire() {
+    return rateLimiter.tryAcquire();
+  }
+
+  synchronized void onThrottled() {
+    long now = ticker.read();
+    if (now - lastDecreaseNanos < MIN_DECREASE_INTERVAL_NANOS) {
+      return;
+    }
+    rateLimiter.setRate(Math.max(maxRate * MIN_RATE_FRACTION, getRate() * DECREASE_FACTOR));
+    lastDecreaseNanos = now;
+    lastAdjustmentNanos = now;
+  }
+
+  synchronized void onSuccess() {
+    double rate = getRate();
+    if (rate >= maxRate) {
+      return;
+    }
+    long now = ticker.read();
+    double elapsedSeconds = (now - lastAdjustmentNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+    double increase = maxRate * elapsedSeconds / RECOVERY_SECONDS;
+    // Avoid resetting the limiter on every request
+    if (increase >= rate * 0.01) {
+      rateLimiter.setRate(Math.min(maxRate, rate + increase));
+      lastAdjustmentNanos = now;
+    }
+  }
+
+  double getRate() {
+    return rateLimiter.getRate();
+  }
+}
@@ -14,23 +14,41 @@
 
 package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.regions.DefaultAwsRegionProviderChain;
+import com.amazonaws.retry.PredefinedBackoffStrategies;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
+import java.time.Duration;
 import software.amazon.awssdk.regions.Region;
 
 @Singleton
 class AmazonDynamoDBProvider implements Provider<AmazonDynamoDB> {
   private final Configuration configuration;
+  private final DynamoDBRequestMetricsHandler requestMetricsHandler;
+  private final DynamoDBRateLimitingHandler rateLimitingHandler;
+  private final DynamoDBCircuitBreakerHandler circuitBreakerHandler;
+  private final DynamoDBConnectionPoolMetricsCollector connectionPoolMetricsCollector;
 
   @Inject
-  AmazonDynamoDBProvider(Configuration configuration) {
+  AmazonDynamoDBProvider(
+      Configuration configuration,
+      DynamoDBRequestMetricsHandler requestMetricsHandler,
+      DynamoDBRateLimitingHandler rateLimitingHandler,
+      DynamoDBCircuitBreakerHandler circuitBreakerHandler,
+      DynamoDBConnectionPoolMetricsCollector connectionPoolMetricsCollector) {
     this.configuration = configuration;
+    this.requestMetricsHandler = requestMetricsHandler;
+    this.rateLimitingHandler = rateLimitingHandler;
+    this.circuitBreakerHandler = circuitBreakerHandler;
+    this.connectionPoolMetricsCollector = connectionPoolMetricsCollector;
   }
 
   @Override
@@ -48,6 +66,36 @@ class AmazonDynamoDBProvider implements Provider<AmazonDynamoDB> {
             endpoint ->
                 builder.withEndpointConfiguration(
                     new AwsClientBuilder.EndpointConfiguration(endpoint.toASCIIString(), region)));
-    return builder.withCredentials(new DefaultAWSCredentialsProviderChain()).build();
+    return builder
+        .withCredentials(new DefaultAWSCredentialsProviderChain())
+        .withClientConfiguration(clientConfiguration())
+        .withRequestHandlers(rateLimitingHandler, circuitBreakerHandler, requestMetricsHandler)
+        .withMetricsCollector(connectionPoolMetricsCollector)
+        .build();
+  }
+
+  private ClientConfiguration clientConfiguration() {
+    Duration connectionTtl = configuration.getConnectionTtl();
+    return new ClientConfiguration()
+        .withMaxConnections(configuration.getMaxConnections())
+        .withConnectionTimeout((int) configuration.getConnectionTimeout().toMillis())
+        .withSocketTimeout((int) configuration.getSocketTimeout().toMillis())
+        .withRequestTimeout((int) configuration.getRequestTimeout().toMillis())
+        .withClientExecutionTimeout((int) configuration.getClientExecutionTimeout().toMillis())
+        .withConnectionTTL(connectionTtl.isZero() ? -1 : connectionTtl.toMillis())
+        .withConnectionMaxIdleMillis(configuration.getConnectionMaxIdle().toMillis())
+        .withTcpKeepAlive(configuration.getTcpKeepAlive())
+        .withRetryPolicy(
+            new RetryPolicy(
+                PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION,
+                new PredefinedBackoffStrategies.FullJitterBackoffStrategy(
+                    (int) configuration.getRetryBaseDelay().toMillis(),
+                    (int) configuration.getMaxRetryBackoff().toMillis()),
+                configuration.getMaxErrorRetries(),
+                false))
+        // Retries are allowed as long as the retry budget, consumed by failed attempts and
+        // refilled by successful ones, is not exhausted.
+        .withThrottledRetries(true)
+        .withMaxConsecutiveRetriesBeforeThrottling(configuration.getRetryBudget());
   }
 }
@@ -0,0 +1,106 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.sshd.CommandMetaData;
+import com.google.gerrit.sshd.SshCommand;
+import com.google.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import org.kohsuke.args4j.Option;
+
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+@CommandMetaData(
+    name = "check",
+    description = "Compare the refs table with the refs of the local repositories")
+class CheckCommand extends SshCommand {
+  private static final int DEFAULT_THREADS = 4;
+  private static final int DEFAULT_MAX_READ_CAPACITY = 100;
+
+  @Option(
+      name = "--project",
+      aliases = {"-p"},
+      metaVar = "PROJECT",
+      usage = "project to check, can be repeated (default: all the projects)")
+  private List<String> projects = new ArrayList<>();
+
+  @Option(
+      name = "--threads",
+      metaVar = "N",
+      usage = "number of projects, or scan segments, read in parallel")
+  private int threads = DEFAULT_THREADS;
+
+  @Option(
+      name = "--max-read-capacity",
+      metaVar = "N",
+      usage = "maximum read capacity units consumed per second")
+  private int maxReadCapacity = DEFAULT_MAX_READ_CAPACITY;
+
+  @Option(
+      name = "--repair",
+      usage = "add the local value of the refs missing from the refs table")
+  private boolean repair;
+
+  @Option(
+      name = "--trust-local",
+      usage = "with --repair, also overwrite the refs of the refs table different from local ones")
+  private boolean trustLocal;
+
+  private final RefsDbChecker checker;
+
+  @Inject
+  CheckCommand(RefsDbChecker checker) {
+    this.checker = checker;
+  }
+
+  @Override
+  protected void run() throws Exception {
+    if (threads <= 0) {
+      throw die("--threads must be positive");
+    }
+    if (maxReadCapacity <= 0) {
+      throw die("--max-read-capacity must be positive");
+    }
+    if (trustLocal && !repair) {
+      throw die("--trust-local requires --repair");
+    }
+
+    Optional<Collection<Project.NameKey>> projectsToCheck =
+        projects.isEmpty()
+            ? Optional.empty()
+            : Optional.of(projects.stream().map(Project::nameKey).collect(Collectors.toList()));
+    RefsDbChecker.Result result =
+        checker.check(
+            projectsToCheck, threads, maxReadCapacity, repair, trustLocal, this::printReport);
+
+    printReport(
+        String.format(
+            "Checked %d refs: %d differences, %d repaired",
+            result.checkedRefs, result.differences, result.repairedRefs));
+    if (result.differences > result.repairedRefs) {
+      throw die("The refs table is not consistent with the local repositories");
+    }
+  }
+
+  private synchronized void printReport(String message) {
+    stdout.println(message);
+    stdout.flush();
+  }
+}
@@ -0,0 +1,186 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import java.util.function.Consumer;
+
+/**
+ * Stops sending requests to DynamoDB while too many of them fail or are too slow, so that the
+ * threads of the node fail fast instead of piling up waiting for the timeouts and the retries of a
+ * degraded DynamoDB.
+ *
+ * <p>The breaker opens when the failed and slow requests reach a percentage of the requests of the
+ * current window. It stays open for a while, rejecting all requests, and then half-opens to let a
+ * few probe requests through: it closes when they all succeed, and opens again as soon as one of
+ * them fails.
+ */
+class CircuitBreaker {
+  /** The ordinal of each state is the value of the {@code dynamodb/circuit_breaker/state} gauge. */
+  enum State {
+    CLOSED,
+    HALF_OPEN,
+    OPEN
+  }
+
+  /** What a request was allowed to do by the breaker. */
+  enum Permit {
+    /** Sent while the breaker was closed. */
+    REQUEST,
+    /** Sent to probe DynamoDB while the breaker was half-open. */
+    PROBE,
+    /** Not sent, because the breaker was open. */
+    REJECTED
+  }
+
+  private final int failureRatePercent;
+  private final long slowRequestNanos;
+  private final int minRequests;
+  private final long windowNanos;
+  private final long openNanos;
+  private final int probes;
+  private final Consumer<State> onStateChange;
+  private final Ticker ticker;
+
+  private State state = State.CLOSED;
+  private long windowStartNanos;
+  private int requests;
+  private int failedRequests;
+  private long stateSinceNanos;
+  private int probesSent;
+  private int probesSucceeded;
+
+  CircuitBreaker(
+      int failureRatePercent,
+      long slowRequestNanos,
+      int minRequests,
+      long windowNanos,
+      long openNanos,
+      int probes,
+      Consumer<State> onStateChange) {
+    this(
+        failureRatePercent,
+        slowRequestNanos,
+        minRequests,
+        windowNanos,
+        openNanos,
+        probes,
+        onStateChange,
+        Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  CircuitBreaker(
+      int failureRatePercent,
+      long slowRequestNanos,
+      int minRequests,
+      long windowNanos,
+      long openNanos,
+      int probes,
+      Consumer<State> onStateChange,
+      Ticker ticker) {
+    this.failureRatePercent = failureRatePercent;
+    this.slowRequestNanos = slowRequestNanos;
+    this.minRequests = minRequests;
+    this.windowNanos = windowNanos;
+    this.openNanos = openNanos;
+    this.probes = probes;
+    this.onStateChange = onStateChange;
+    this.ticker = ticker;
+    this.windowStartNanos = ticker.read();
+  }
+
+  synchronized Permit tryAcquire() {
+    long now = ticker.read();
+    if (state == State.OPEN && now - stateSinceNanos >= openNanos) {
+      startProbing(now);
+      setState(State.HALF_OPEN);
+    } else if (state == State.HALF_OPEN
+        && probesSent >= probes
+        && now - stateSinceNanos >= openNanos) {
+      // The outcome of some probes was never recorded, e.g. because the request failed before
+      // being sent: probe again rather than staying half-open forever.
+      startProbing(now);
+    }
+
+    switch (state) {
+      case CLOSED:
+        return Permit.REQUEST;
+      case HALF_OPEN:
+        if (probesSent < probes) {
+          probesSent++;
+          return Permit.PROBE;
+        }
+        return Permit.REJECTED;
+      case OPEN:
+      default:
+        return Permit.REJECTED;
+    }
+  }
+
+  /**
+   * Records the outcome of a request sent with a permit of the breaker. The outcome of the requests
+   * sent before the breaker last changed state is ignored.
+   */
+  synchronized void onResult(Permit permit, boolean failed, long latencyNanos) {
+    boolean healthy = !failed && (slowRequestNanos <= 0 || latencyNanos < slowRequestNanos);
+    if (state == State.CLOSED && permit == Permit.REQUEST) {
+      long now = ticker.read();
+      if (now - windowStartNanos >= windowNanos) {
+        windowStartNanos = now;
+        requests = 0;
+        failedRequests = 0;
+      }
+      requests++;
+      if (!healthy) {
+        failedRequests++;
+      }
+      if (requests >= minRequests
+          && failedRequests * 100L >= failureRatePercent * (long) requests) {
+        open();
+      }
+    } else if (state == State.HALF_OPEN && permit == Permit.PROBE) {
+      if (!healthy) {
+        open();
+      } else if (++probesSucceeded >= probes) {
+        windowStartNanos = ticker.read();
+        requests = 0;
+        failedRequests = 0;
+        setState(State.CLOSED);
+      }
+    }
+  }
+
+  synchronized State getState() {
+    return state;
+  }
+
+  private void open() {
+    stateSinceNanos = ticker.read();
+    setState(State.OPEN);
+  }
+
+  private void startProbing(long now) {
+    stateSinceNanos = now;
+    probesSent = 0;
+    probesSucceeded = 0;
+  }
+
+  private void setState(State newState) {
+    state = newState;
+    onStateChange.accept(newState);
+  }
+}
@@ -14,15 +14,22 @@
 
 package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
 
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.services.dynamodbv2.model.BillingMode;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.extensions.annotations.PluginName;
+import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.PluginConfig;
 import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.net.URI;
+import java.time.Duration;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import software.amazon.awssdk.regions.Region;
 
 @Singleton
@@ -30,24 +37,219 @@ class Configuration {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
   protected static final String DEFAULT_REFS_DB_TABLE_NAME = "refsDb";
   protected static final String DEFAULT_LOCKS_TABLE_NAME = "lockTable";
+  protected static final RefsDbKeySchema DEFAULT_REFS_DB_KEY_SCHEMA = RefsDbKeySchema.REF_PATH;
+  protected static final int DEFAULT_REMOVE_PROJECT_THREADS = 4;
+  protected static final RefLockMode DEFAULT_LOCK_MODE = RefLockMode.DYNAMODB;
+  protected static final RefValueFormat DEFAULT_REF_VALUE_FORMAT = RefValueFormat.STRING;
+  protected static final int DEFAULT_MAX_REQUESTS_PER_SECOND = 0;
+  protected static final int DEFAULT_MAX_ERROR_RETRIES =
+      PredefinedRetryPolicies.DYNAMODB_DEFAULT_MAX_ERROR_RETRY;
+  protected static final Duration DEFAULT_RETRY_BASE_DELAY = Duration.ofMillis(25);
+  protected static final Duration DEFAULT_MAX_RETRY_BACKOFF = Duration.ofSeconds(20);
+  protected static final Duration DEFAULT_READ_BATCH_WINDOW = Duration.ZERO;
+  protected static final Duration DEFAULT_PREFETCH_MAX_AGE = Duration.ofSeconds(10);
+  protected static final ReadConsistency DEFAULT_READ_CONSISTENCY = ReadConsistency.STRONG;
+  protected static final BillingMode DEFAULT_BILLING_MODE = BillingMode.PROVISIONED;
+  protected static final long DEFAULT_CAPACITY_UNITS = 10L;
+  protected static final Duration DEFAULT_TABLES_ACTIVE_TIMEOUT = Duration.ofMinutes(10);
+  protected static final int DEFAULT_MAX_CONNECTIONS = ClientConfiguration.DEFAULT_MAX_CONNECTIONS;
+  protected static final Duration DEFAULT_CONNECTION_TIMEOUT =
+      Duration.ofMillis(ClientConfiguration.DEFAULT_CONNECTION_TIMEOUT);
+  protected static final Duration DEFAULT_SOCKET_TIMEOUT =
+      Duration.ofMillis(ClientConfiguration.DEFAULT_SOCKET_TIMEOUT);
+  protected static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ZERO;
+  protected static final Duration DEFAULT_CLIENT_EXECUTION_TIMEOUT = Duration.ZERO;
+  protected static final Duration DEFAULT_CONNECTION_TTL = Duration.ZERO;
+  protected static final Duration DEFAULT_CONNECTION_MAX_IDLE =
+      Duration.ofMillis(ClientConfiguration.DEFAULT_CONNECTION_MAX_IDLE_MILLIS);
+  protected static final int DEFAULT_PREWARM_CONNECTIONS = 0;
+  protected static final int DEFAULT_HEDGED_READ_PERCENTILE = 0;
+  protected static final Duration DEFAULT_HEDGED_READ_MIN_DELAY = Duration.ofMillis(2);
+  protected static final int DEFAULT_MAX_HEDGED_READS_PERCENT = 5;
+  protected static final int DEFAULT_PROJECT_LOCK_MIN_REFS = 0;
+  protected static final int DEFAULT_PROJECT_LOCK_MAX_WAITS = 3;
+  protected static final Duration DEFAULT_LOCK_LEASE_DURATION = Duration.ofSeconds(10);
+  protected static final Duration DEFAULT_LOCK_HEARTBEAT_PERIOD = Duration.ofSeconds(3);
+  protected static final Duration DEFAULT_LOCK_WAIT_TIMEOUT = Duration.ofSeconds(1);
+  protected static final Duration DEFAULT_LOCK_RETRY_MIN_INTERVAL = Duration.ofMillis(20);
+  protected static final Duration DEFAULT_LOCK_RETRY_MAX_INTERVAL = Duration.ofSeconds(1);
+  protected static final int DEFAULT_LOCK_RELEASE_QUEUE_SIZE = 0;
+  protected static final int DEFAULT_LOCK_RELEASE_THREADS = 2;
+  protected static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE_PERCENT = 0;
+  protected static final Duration DEFAULT_CIRCUIT_BREAKER_SLOW_REQUEST_THRESHOLD = Duration.ZERO;
+  protected static final int DEFAULT_CIRCUIT_BREAKER_MIN_REQUESTS = 20;
+  protected static final Duration DEFAULT_CIRCUIT_BREAKER_WINDOW = Duration.ofSeconds(10);
+  protected static final Duration DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION = Duration.ofSeconds(30);
+  protected static final int DEFAULT_CIRCUIT_BREAKER_PROBES = 5;
+  protected static final int DEFAULT_RETRY_BUDGET =
+      ClientConfiguration.DEFAULT_MAX_CONSECUTIVE_RETRIES_BEFORE_THROTTLING;
+  protected static final boolean DEFAULT_ASYNC_REF_DATABASE = false;
   private final Optional<Region> region;
   private final Optional<URI> endpoint;
   private final String refsDbTableName;
   private final String locksTableName;
+  private final RefsDbKeySchema refsDbKeySchema;
+  private final Optional<String> legacyRefsDbTableName;
+  private final int removeProjectThreads;
+  private final RefLockMode lockMode;
+  private final RefValueFormat refValueFormat;
+  private final int maxReadRequestsPerSecond;
+  private final int maxWriteRequestsPerSecond;
+  private final int maxErrorRetries;
+  private final Duration retryBaseDelay;
+  private final Duration maxRetryBackoff;
+  private final int retryBudget;
+  private final Duration readBatchWindow;
+  private final Duration prefetchMaxAge;
+  private final ReadConsistency isUpToDateReadConsistency;
+  private final ReadConsistency existsReadConsistency;
+  private final ReadConsistency getReadConsistency;
+  private final boolean createTables;
+  private final BillingMode billingMode;
+  private final long readCapacityUnits;
+  private final long writeCapacityUnits;
+  private final Duration tablesActiveTimeout;
+  private final int maxConnections;
+  private final Duration connectionTimeout;
+  private final Duration socketTimeout;
+  private final Duration requestTimeout;
+  private final Duration clientExecutionTimeout;
+  private final Duration connectionTtl;
+  private final Duration connectionMaxIdle;
+  private final boolean tcpKeepAlive;
+  private final int prewarmConnections;
+  private final int hedgedReadPercentile;
+  private final Duration hedgedReadMinDelay;
+  private final int maxHedgedReadsPercent;
+  private final int projectLockMinRefs;
+  private final int projectLockMaxWaits;
+  private final Duration lockLeaseDuration;
+  private final Duration lockHeartbeatPeriod;
+  private final Duration lockWaitTimeout;
+  private final Duration lockRetryMinInterval;
+  private final Duration lockRetryMaxInterval;
+  private final int lockReleaseQueueSize;
+  private final int lockReleaseThreads;
+  private final int circuitBreakerFailureRatePercent;
+  private final Duration circuitBreakerSlowRequestThreshold;
+  private final int circuitBreakerMinRequests;
+  private final Duration circuitBreakerWindow;
+  private final Duration circuitBreakerOpenDuration;
+  private final int circuitBreakerProbes;
+  private final boolean asyncRefDatabase;
 
   @Inject
   Configuration(PluginConfigFactory configFactory, @PluginName String pluginName) {
-    PluginConfig pluginConfig = configFactory.getFromGerritConfig(pluginName);
+    this(configFactory.getFromGerritConfig(pluginName));
+  }
 
+  @VisibleForTesting
+  Configuration(PluginConfig pluginConfig) {
     this.region = Optional.ofNullable(getStringParam(pluginConfig, "region")).map(Region::of);
     this.endpoint = Optional.ofNullable(getStringParam(pluginConfig, "endpoint")).map(URI::create);
     // TODO: add prefix
     this.refsDbTableName = pluginConfig.getString("refsDbTableName", DEFAULT_REFS_DB_TABLE_NAME);
     this.locksTableName = pluginConfig.getString("locksTableName", DEFAULT_LOCKS_TABLE_NAME);
+    this.refsDbKeySchema =
+        pluginConfig.getEnum(
+            RefsDbKeySchema.values(), "refsDbKeySchema", DEFAULT_REFS_DB_KEY_SCHEMA);
+    this.legacyRefsDbTableName =
+        Optional.ofNullable(Strings.emptyToNull(pluginConfig.getString("legacyRefsDbTableName")));
+    this.removeProjectThreads =
+        pluginConfig.getInt("removeProjectThreads", DEFAULT_REMOVE_PROJECT_THREADS);
+    this.lockMode = pluginConfig.getEnum(RefLockMode.values(), "lockMode", DEFAULT_LOCK_MODE);
+    this.refValueFormat =
+        pluginConfig.getEnum(RefValueFormat.values(), "refValueFormat", DEFAULT_REF_VALUE_FORMAT);
+    this.maxReadRequestsPerSecond =
+        pluginConfig.getInt("maxReadRequestsPerSecond", DEFAULT_MAX_REQUESTS_PER_SECOND);
+    this.maxWriteRequestsPerSecond =
+        pluginConfig.getInt("maxWriteRequestsPerSecond", DEFAULT_MAX_REQUESTS_PER_SECOND);
+    this.maxErrorRetries = pluginConfig.getInt("maxErrorRetries", DEFAULT_MAX_ERROR_RETRIES);
+    this.retryBaseDelay = getDuration(pluginConfig, "retryBaseDelay", DEFAULT_RETRY_BASE_DELAY);
+    this.maxRetryBackoff = getDuration(pluginConfig, "maxRetryBackoff", DEFAULT_MAX_RETRY_BACKOFF);
+    this.retryBudget = pluginConfig.getInt("retryBudget", DEFAULT_RETRY_BUDGET);
+    this.readBatchWindow = getDuration(pluginConfig, "readBatchWindow", DEFAULT_READ_BATCH_WINDOW);
+    this.prefetchMaxAge = getDuration(pluginConfig, "prefetchMaxAge", DEFAULT_PREFETCH_MAX_AGE);
+    this.isUpToDateReadConsistency =
+        pluginConfig.getEnum(
+            ReadConsistency.values(), "isUpToDateReadConsistency", DEFAULT_READ_CONSISTENCY);
+    this.existsReadConsistency =
+        pluginConfig.getEnum(
+            ReadConsistency.values(), "existsReadConsistency", DEFAULT_READ_CONSISTENCY);
+    this.getReadConsistency =
+        pluginConfig.getEnum(
+            ReadConsistency.values(), "getReadConsistency", DEFAULT_READ_CONSISTENCY);
+    this.createTables = pluginConfig.getBoolean("createTables", true);
+    this.billingMode =
+        pluginConfig.getEnum(BillingMode.values(), "billingMode", DEFAULT_BILLING_MODE);
+    this.readCapacityUnits = pluginConfig.getLong("readCapacityUnits", DEFAULT_CAPACITY_UNITS);
+    this.writeCapacityUnits = pluginConfig.getLong("writeCapacityUnits", DEFAULT_CAPACITY_UNITS);
+    this.tablesActiveTimeout =
+        getDuration(pluginConfig, "tablesActiveTimeout", DEFAULT_TABLES_ACTIVE_TIMEOUT);
+    this.maxConnections = pluginConfig.getInt("maxConnections", DEFAULT_MAX_CONNECTIONS);
+    this.connectionTimeout =
+        getDuration(pluginConfig, "connectionTimeout", DEFAULT_CONNECTION_TIMEOUT);
+    this.socketTimeout = getDuration(pluginConfig, "socketTimeout", DEFAULT_SOCKET_TIMEOUT);
+    this.requestTimeout = getDuration(pluginConfig, "requestTimeout", DEFAULT_REQUEST_TIMEOUT);
+    this.clientExecutionTimeout =
+        getDuration(pluginConfig, "clientExecutionTimeout", DEFAULT_CLIENT_EXECUTION_TIMEOUT);
+    this.connectionTtl = getDuration(pluginConfig, "connectionTtl", DEFAULT_CONNECTION_TTL);
+    this.connectionMaxIdle =
+        getDuration(pluginConfig, "connectionMaxIdle", DEFAULT_CONNECTION_MAX_IDLE);
+    this.tcpKeepAlive =
+        pluginConfig.getBoolean("tcpKeepAlive", ClientConfiguration.DEFAULT_TCP_KEEP_ALIVE);
+    this.prewarmConnections =
+        pluginConfig.getInt("prewarmConnections", DEFAULT_PREWARM_CONNECTIONS);
+    this.hedgedReadPercentile =
+        pluginConfig.getInt("hedgedReadPercentile", DEFAULT_HEDGED_READ_PERCENTILE);
+    this.hedgedReadMinDelay =
+        getDuration(pluginConfig, "hedgedReadMinDelay", DEFAULT_HEDGED_READ_MIN_DELAY);
+    this.maxHedgedReadsPercent =
+        pluginConfig.getInt("maxHedgedReadsPercent", DEFAULT_MAX_HEDGED_READS_PERCENT);
+    this.projectLockMinRefs =
+        pluginConfig.getInt("projectLockMinRefs", DEFAULT_PROJECT_LOCK_MIN_REFS);
+    this.projectLockMaxWaits =
+        pluginConfig.getInt("projectLockMaxWaits", DEFAULT_PROJECT_LOCK_MAX_WAITS);
+    this.lockLeaseDuration =
+        getDuration(pluginConfig, "lockLeaseDuration", DEFAULT_LOCK_LEASE_DURATION);
+    this.lockHeartbeatPeriod =
+        getDuration(pluginConfig, "lockHeartbeatPeriod", DEFAULT_LOCK_HEARTBEAT_PERIOD);
+    this.lockWaitTimeout = getDuration(pluginConfig, "lockWaitTimeout", DEFAULT_LOCK_WAIT_TIMEOUT);
+    this.lockRetryMinInterval =
+        getDuration(pluginConfig, "lockRetryMinInterval", DEFAULT_LOCK_RETRY_MIN_INTERVAL);
+    this.lockRetryMaxInterval =
+        getDuration(pluginConfig, "lockRetryMaxInterval", DEFAULT_LOCK_RETRY_MAX_INTERVAL);
+    this.lockReleaseQueueSize =
+        pluginConfig.getInt("lockReleaseQueueSize", DEFAULT_LOCK_RELEASE_QUEUE_SIZE);
+    this.lockReleaseThreads =
+        pluginConfig.getInt("lockReleaseThreads", DEFAULT_LOCK_RELEASE_THREADS);
+    this.circuitBreakerFailureRatePercent =
+        pluginConfig.getInt(
+            "circuitBreakerFailureRatePercent", DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE_PERCENT);
+    this.circuitBreakerSlowRequestThreshold =
+        getDuration(
+            pluginConfig,
+            "circuitBreakerSlowRequestThreshold",
+            DEFAULT_CIRCUIT_BREAKER_SLOW_REQUEST_THRESHOLD);
+    this.circuitBreakerMinRequests =
+        pluginConfig.getInt("circuitBreakerMinRequests", DEFAULT_CIRCUIT_BREAKER_MIN_REQUESTS);
+    this.circuitBreakerWindow =
+        getDuration(pluginConfig, "circuitBreakerWindow", DEFAULT_CIRCUIT_BREAKER_WINDOW);
+    this.circuitBreakerOpenDuration =
+        getDuration(
+            pluginConfig, "circuitBreakerOpenDuration", DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION);
+    this.circuitBreakerProbes =
+        pluginConfig.getInt("circuitBreakerProbes", DEFAULT_CIRCUIT_BREAKER_PROBES);
+    this.asyncRefDatabase =
+        pluginConfig.getBoolean("asyncRefDatabase", DEFAULT_ASYNC_REF_DATABASE);
     logger.atInfo().log(
-        "dynamodb-refdb configuration: refsDbTableName: %s|locksTableName:%s%s%s",
+        "dynamodb-refdb configuration: refsDbTableName: %s|locksTableName:%s|refsDbKeySchema: %s|lockMode: %s|refValueFormat: %s%s%s%s",
         refsDbTableName,
         locksTableName,
+        refsDbKeySchema,
+        lockMode,
+        refValueFormat,
+        legacyRefsDbTableName.map(t -> String.format("|legacyRefsDbTableName: %s", t)).orElse(""),
         region.map(r -> String.format("|region: %s", r.id())).orElse(""),
         endpoint.map(e -> String.format("|endpoint: %s", e.toASCIIString())).orElse(""));
   }
@@ -60,6 +262,15 @@ class Configuration {
     return endpoint;
   }
 
+  private static Duration getDuration(
+      PluginConfig pluginConfig, String name, Duration defaultValue) {
+    String value = pluginConfig.getString(name);
+    return Strings.isNullOrEmpty(value)
+        ? defaultValue
+        : Duration.ofMillis(
+            ConfigUtil.getTimeUnit(value, defaultValue.toMillis(), TimeUnit.MILLISECONDS));
+  }
+
   private static String getStringParam(PluginConfig pluginConfig, String name) {
     return Strings.isNullOrEmpty(System.getProperty(name))
         ? pluginConfig.getString(name)
@@ -73,4 +284,200 @@ class Configuration {
   String getLocksTableName() {
     return locksTableName;
   }
+
+  RefsDbKeySchema getRefsDbKeySchema() {
+    return refsDbKeySchema;
+  }
+
+  Optional<String> getLegacyRefsDbTableName() {
+    return legacyRefsDbTableName;
+  }
+
+  int getRemoveProjectThreads() {
+    return removeProjectThreads;
+  }
+
+  RefLockMode getLockMode() {
+    return lockMode;
+  }
+
+  RefValueFormat getRefValueFormat() {
+    return refValueFormat;
+  }
+
+  int getMaxReadRequestsPerSecond() {
+    return maxReadRequestsPerSecond;
+  }
+
+  int getMaxWriteRequestsPerSecond() {
+    return maxWriteRequestsPerSecond;
+  }
+
+  int getMaxErrorRetries() {
+    return maxErrorRetries;
+  }
+
+  Duration getRetryBaseDelay() {
+    return retryBaseDelay;
+  }
+
+  Duration getMaxRetryBackoff() {
+    return maxRetryBackoff;
+  }
+
+  int getRetryBudget() {
+    return retryBudget;
+  }
+
+  Duration getReadBatchWindow() {
+    return readBatchWindow;
+  }
+
+  Duration getPrefetchMaxAge() {
+    return prefetchMaxAge;
+  }
+
+  ReadConsistency getIsUpToDateReadConsistency() {
+    return isUpToDateReadConsistency;
+  }
+
+  ReadConsistency getExistsReadConsistency() {
+    return existsReadConsistency;
+  }
+
+  ReadConsistency getGetReadConsistency() {
+    return getReadConsistency;
+  }
+
+  boolean getCreateTables() {
+    return createTables;
+  }
+
+  BillingMode getBillingMode() {
+    return billingMode;
+  }
+
+  long getReadCapacityUnits() {
+    return readCapacityUnits;
+  }
+
+  long getWriteCapacityUnits() {
+    return writeCapacityUnits;
+  }
+
+  Duration getTablesActiveTimeout() {
+    return tablesActiveTimeout;
+  }
+
+  int getMaxConnections() {
+    return maxConnections;
+  }
+
+  Duration getConnectionTimeout() {
+    return connectionTimeout;
+  }
+
+  Duration getSocketTimeout() {
+    return socketTimeout;
+  }
+
+  Duration getRequestTimeout() {
+    return requestTimeout;
+  }
+
+  Duration getClientExecutionTimeout() {
+    return clientExecutionTimeout;
+  }
+
+  Duration getConnectionTtl() {
+    return connectionTtl;
+  }
+
+  Duration getConnectionMaxIdle() {
+    return connectionMaxIdle;
+  }
+
+  boolean getTcpKeepAlive() {
+    return tcpKeepAlive;
+  }
+
+  int getPrewarmConnections() {
+    return prewarmConnections;
+  }
+
+  int getHedgedReadPercentile() {
+    return hedgedReadPercentile;
+  }
+
+  Duration getHedgedReadMinDelay() {
+    return hedgedReadMinDelay;
+  }
+
+  int getMaxHedgedReadsPercent() {
+    return maxHedgedReadsPercent;
+  }
+
+  int getProjectLockMinRefs() {
+    return projectLockMinRefs;
+  }
+
+  int getProjectLockMaxWaits() {
+    return projectLockMaxWaits;
+  }
+
+  Duration getLockLeaseDuration() {
+    return lockLeaseDuration;
+  }
+
+  Duration getLockHeartbeatPeriod() {
+    return lockHeartbeatPeriod;
+  }
+
+  Duration getLockWaitTimeout() {
+    return lockWaitTimeout;
+  }
+
+  Duration getLockRetryMinInterval() {
+    return lockRetryMinInterval;
+  }
+
+  Duration getLockRetryMaxInterval() {
+    return lockRetryMaxInterval;
+  }
+
+  int getLockReleaseQueueSize() {
+    return lockReleaseQueueSize;
+  }
+
+  int getLockReleaseThreads() {
+    return lockReleaseThreads;
+  }
+
+  int getCircuitBreakerFailureRatePercent() {
+    return circuitBreakerFailureRatePercent;
+  }
+
+  Duration getCircuitBreakerSlowRequestThreshold() {
+    return circuitBreakerSlowRequestThreshold;
+  }
+
+  int getCircuitBreakerMinRequests() {
+    return circuitBreakerMinRequests;
+  }
+
+  Duration getCircuitBreakerWindow() {
+    return circuitBreakerWindow;
+  }
+
+  Duration getCircuitBreakerOpenDuration() {
+    return circuitBreakerOpenDuration;
+  }
+
+  int getCircuitBreakerProbes() {
+    return circuitBreakerProbes;
+  }
+
+  boolean getAsyncRefDatabase() {
+    return asyncRefDatabase;
+  }
 }
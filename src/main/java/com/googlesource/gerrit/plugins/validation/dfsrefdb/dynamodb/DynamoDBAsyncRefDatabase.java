@@ -0,0 +1,422 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.COMPARE_AND_PUT_UPDATE_EXPRESSION;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.REF_DB_VALUE_KEY;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.compareAndPutAttributeValues;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.compareAndPutCondition;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.pathFor;
+import static java.util.stream.Collectors.toMap;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.metrics.Timer1;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.RefDbMetrics.Operation;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+/**
+ * Non-blocking access to the refs table, built on the AWS SDK v2 asynchronous client.
+ *
+ * <p>Provides {@link CompletableFuture} variants of the ref operations of {@link
+ * DynamoDBRefDatabase}, with the same semantics, so that many refs can be checked or updated
+ * concurrently without holding a thread for each DynamoDB round trip. The key schema, the read
+ * consistency of each operation, the hedged reads, the sharing of the concurrent reads of a ref and
+ * the operation metrics are the same as the ones of {@link DynamoDBRefDatabase}. The requests go
+ * through the same rate limiters and circuit breaker, see {@link DynamoDbAsyncClientProvider}.
+ *
+ * <p>The operations fail unless {@code asyncRefDatabase} is enabled, as well as until the tables
+ * are verified to be active. While {@code legacyRefsDbTableName} is configured, the operations are
+ * run by {@link DynamoDBRefDatabase} on a pool of up to {@code maxConnections} threads, so that the
+ * refs are migrated from the legacy refs table.
+ */
+@Singleton
+public class DynamoDBAsyncRefDatabase implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private final DynamoDbAsyncClientProvider dynamoDBClientProvider;
+  private final DynamoDBRefDatabase refDb;
+  private final Configuration configuration;
+  private final RefsDbKeySchema keySchema;
+  private final RefDbMetrics metrics;
+  private final DynamoDBTablesStatus tablesStatus;
+  private final HedgedReads hedgedReads;
+  private final SingleFlight<DynamoDBRefDatabase.RefRead, Optional<AttributeValue>> refReads;
+  private final Optional<ExecutorService> legacyRefsExecutor;
+
+  @Inject
+  DynamoDBAsyncRefDatabase(
+      DynamoDbAsyncClientProvider dynamoDBClientProvider,
+      DynamoDBRefDatabase refDb,
+      Configuration configuration,
+      RefDbMetrics metrics,
+      DynamoDBTablesStatus tablesStatus,
+      HedgedReads hedgedReads) {
+    this.dynamoDBClientProvider = dynamoDBClientProvider;
+    this.refDb = refDb;
+    this.configuration = configuration;
+    this.metrics = metrics;
+    this.tablesStatus = tablesStatus;
+    this.hedgedReads = hedgedReads;
+    this.keySchema = configuration.getRefsDbKeySchema();
+    this.refReads = new SingleFlight<>(metrics::incrementCoalescedReads);
+    this.legacyRefsExecutor =
+        configuration.getAsyncRefDatabase() && configuration.getLegacyRefsDbTableName().isPresent()
+            ? Optional.of(newLegacyRefsExecutor(configuration.getMaxConnections()))
+            : Optional.empty();
+  }
+
+  private static ExecutorService newLegacyRefsExecutor(int maxThreads) {
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            maxThreads,
+            maxThreads,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder()
+                .setNameFormat("dynamodb-async-legacy-refs-%d")
+                .setDaemon(true)
+                .build());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public void stop() {
+    legacyRefsExecutor.ifPresent(ExecutorService::shutdownNow);
+  }
+
+  /** See {@link DynamoDBRefDatabase#isUpToDate(Project.NameKey, Ref)}. */
+  public CompletableFuture<Boolean> isUpToDate(Project.NameKey project, Ref ref) {
+    return execute(
+            Operation.IS_UP_TO_DATE,
+            () -> refDb.isUpToDate(project, ref),
+            () ->
+                getRefValue(
+                        project,
+                        ref.getName(),
+                        Operation.IS_UP_TO_DATE,
+                        configuration.getIsUpToDateReadConsistency(),
+                        v -> DynamoDBRefDatabase.isSameObject(ref, decodeObjectId(v)))
+                    .thenApply(
+                        valueInDynamoDB ->
+                            !valueInDynamoDB.isPresent()
+                                || DynamoDBRefDatabase.isUpToDate(
+                                    project, ref, decodeObjectId(valueInDynamoDB.get()))))
+        .exceptionally(
+            e -> {
+              Exception cause = unwrap(e);
+              if (cause instanceof GlobalRefDbLockException
+                  || cause instanceof GlobalRefDbSystemError) {
+                throw (RuntimeException) cause;
+              }
+              throw new GlobalRefDbLockException(project.get(), ref.getName(), cause);
+            });
+  }
+
+  /** See {@link DynamoDBRefDatabase#compareAndPut(Project.NameKey, Ref, ObjectId)}. */
+  public CompletableFuture<Boolean> compareAndPut(
+      Project.NameKey project, Ref currRef, ObjectId newRefValue) {
+    ObjectId newValue = Optional.ofNullable(newRefValue).orElse(ObjectId.zeroId());
+    ObjectId currValue = Optional.ofNullable(currRef.getObjectId()).orElse(ObjectId.zeroId());
+
+    return doCompareAndPut(
+        project,
+        currRef.getName(),
+        currValue.getName(),
+        newValue.getName(),
+        () -> refDb.compareAndPut(project, currRef, newRefValue));
+  }
+
+  /** See {@link DynamoDBRefDatabase#compareAndPut(Project.NameKey, String, Object, Object)}. */
+  public <T> CompletableFuture<Boolean> compareAndPut(
+      Project.NameKey project, String refName, T currValue, T newValue) {
+    String newRefValue =
+        Optional.ofNullable(newValue).map(Object::toString).orElse(ObjectId.zeroId().getName());
+    String curRefValue =
+        Optional.ofNullable(currValue).map(Object::toString).orElse(ObjectId.zeroId().getName());
+
+    return doCompareAndPut(
+        project,
+        refName,
+        curRefValue,
+        newRefValue,
+        () -> refDb.compareAndPut(project, refName, currValue, newValue));
+  }
+
+  /** See {@link DynamoDBRefDatabase#exists(Project.NameKey, String)}. */
+  public CompletableFuture<Boolean> exists(Project.NameKey project, String refName) {
+    return execute(
+            Operation.EXISTS,
+            () -> refDb.exists(project, refName),
+            () ->
+                getRefValue(
+                        project,
+                        refName,
+                        Operation.EXISTS,
+                        configuration.getExistsReadConsistency(),
+                        v -> true)
+                    .thenApply(Optional::isPresent))
+        .exceptionally(
+            e -> {
+              logger.atSevere().withCause(e).log(
+                  "Could not check for '%s' existence", pathFor(project, refName));
+              return false;
+            });
+  }
+
+  /** See {@link DynamoDBRefDatabase#get(Project.NameKey, String, Class)}. */
+  @SuppressWarnings("unchecked")
+  public <T> CompletableFuture<Optional<T>> get(
+      Project.NameKey project, String refName, Class<T> clazz) {
+    return execute(
+            Operation.GET,
+            () -> refDb.get(project, refName, clazz),
+            () ->
+                getRefValue(
+                        project,
+                        refName,
+                        Operation.GET,
+                        configuration.getGetReadConsistency(),
+                        v -> true)
+                    .thenApply(refValue -> refValue.map(value -> (T) decode(value))))
+        .exceptionally(
+            e -> {
+              logger.atSevere().withCause(e).log(
+                  "Cannot get value for %s", pathFor(project, refName));
+              return Optional.empty();
+            });
+  }
+
+  /**
+   * Runs an operation once the asynchronous access to the refs table is known to be available.
+   *
+   * @param legacyRefsOperation runs the operation with {@link DynamoDBRefDatabase}, which migrates
+   *     the refs from the legacy refs table and records the operation metrics itself.
+   * @param operation runs the operation with the asynchronous client.
+   */
+  private <T> CompletableFuture<T> execute(
+      Operation operationName,
+      Supplier<T> legacyRefsOperation,
+      Supplier<CompletableFuture<T>> operation) {
+    return checkAvailable()
+        .thenCompose(
+            v -> {
+              if (legacyRefsExecutor.isPresent()) {
+                return CompletableFuture.supplyAsync(legacyRefsOperation, legacyRefsExecutor.get());
+              }
+
+              Timer1.Context<Operation> ctx = metrics.startOperation(operationName);
+              try {
+                return operation.get().whenComplete((result, e) -> ctx.close());
+              } catch (RuntimeException e) {
+                ctx.close();
+                throw e;
+              }
+            });
+  }
+
+  private CompletableFuture<Boolean> doCompareAndPut(
+      Project.NameKey project,
+      String refName,
+      String currValueForPath,
+      String newValueForPath,
+      Supplier<Boolean> legacyRefsOperation) {
+    String refPath = pathFor(project, refName);
+    UpdateItemRequest updateItemRequest =
+        UpdateItemRequest.builder()
+            .tableName(configuration.getRefsDbTableName())
+            .key(keyOf(project, refName))
+            .expressionAttributeValues(
+                toSdkV2(
+                    compareAndPutAttributeValues(
+                        configuration.getRefValueFormat(), currValueForPath, newValueForPath)))
+            .updateExpression(COMPARE_AND_PUT_UPDATE_EXPRESSION)
+            .conditionExpression(compareAndPutCondition(keySchema, currValueForPath))
+            .build();
+
+    return execute(
+            Operation.COMPARE_AND_PUT,
+            legacyRefsOperation,
+            () ->
+                dynamoDBClientProvider
+                    .get()
+                    .updateItem(updateItemRequest)
+                    .thenApply(
+                        response -> {
+                          logger.atFine().log(
+                              "Updated path for project %s. Current: %s New: %s",
+                              project.get(), currValueForPath, newValueForPath);
+                          return true;
+                        }))
+        .exceptionally(
+            e -> {
+              Exception cause = unwrap(e);
+              if (cause instanceof GlobalRefDbSystemError) {
+                throw (GlobalRefDbSystemError) cause;
+              }
+              if (cause instanceof ConditionalCheckFailedException) {
+                metrics.incrementConditionalCheckFailures(1);
+                throw new GlobalRefDbSystemError(
+                    String.format(
+                        "Conditional Check Failure when updating refPath %s. expected: %s New: %s",
+                        refPath, currValueForPath, newValueForPath),
+                    cause);
+              }
+              throw new GlobalRefDbSystemError(
+                  String.format(
+                      "Error updating refPath %s. expected: %s new: %s",
+                      refPath, currValueForPath, newValueForPath),
+                  cause);
+            });
+  }
+
+  /**
+   * Reads a ref with the read consistency of the operation. An eventually consistent read is only
+   * used when its value can be trusted by the operation, otherwise the operation falls back to a
+   * strongly consistent read, as in {@link DynamoDBRefDatabase}.
+   */
+  private CompletableFuture<Optional<AttributeValue>> getRefValue(
+      Project.NameKey project,
+      String refName,
+      Operation operation,
+      ReadConsistency readConsistency,
+      Predicate<AttributeValue> trusted) {
+    if (readConsistency != ReadConsistency.EVENTUAL) {
+      return getRefValueFromDynamoDB(project, refName, true);
+    }
+
+    metrics.incrementEventuallyConsistentReads(operation, 1);
+    return getRefValueFromDynamoDB(project, refName, false)
+        .thenCompose(
+            refValue -> {
+              if (refValue.filter(trusted).isPresent()) {
+                return CompletableFuture.completedFuture(refValue);
+              }
+              metrics.incrementStrongReadFallbacks(operation, 1);
+              return getRefValueFromDynamoDB(project, refName, true);
+            });
+  }
+
+  /**
+   * Reads a ref from the refs table. Concurrent reads of the same ref share a single {@code
+   * GetItem} call, which is hedged when slow.
+   */
+  private CompletableFuture<Optional<AttributeValue>> getRefValueFromDynamoDB(
+      Project.NameKey project, String refName, boolean consistentRead) {
+    GetItemRequest getItemRequest =
+        GetItemRequest.builder()
+            .tableName(configuration.getRefsDbTableName())
+            .key(keyOf(project, refName))
+            .consistentRead(consistentRead)
+            .build();
+
+    // Asynchronous reads are never dropped by the rate limiter, so they are never sheddable
+    return refReads.getAsync(
+        new DynamoDBRefDatabase.RefRead(pathFor(project, refName), false, consistentRead),
+        () ->
+            hedgedReads
+                .readAsync(() -> dynamoDBClientProvider.get().getItem(getItemRequest))
+                .thenApply(
+                    response -> {
+                      if (!response.hasItem() || response.item().isEmpty()) {
+                        return Optional.empty();
+                      }
+                      return Optional.of(response.item().get(REF_DB_VALUE_KEY));
+                    }));
+  }
+
+  private CompletableFuture<Void> checkAvailable() {
+    CompletableFuture<Void> check = new CompletableFuture<>();
+    if (!configuration.getAsyncRefDatabase()) {
+      check.completeExceptionally(
+          new IllegalStateException(
+              "Asynchronous access to the refs table is disabled, see asyncRefDatabase"));
+    } else if (!tablesStatus.isActive()) {
+      // Fail rather than block a thread waiting for the tables, like DynamoDBRefDatabase does
+      check.completeExceptionally(
+          new IllegalStateException(
+              "The DynamoDB tables are not active yet, the global ref-db is not ready"));
+    } else {
+      check.complete(null);
+    }
+    return check;
+  }
+
+  private Map<String, AttributeValue> keyOf(Project.NameKey project, String refName) {
+    return toSdkV2(keySchema.keyOf(project, refName));
+  }
+
+  private static Map<String, AttributeValue> toSdkV2(
+      Map<String, com.amazonaws.services.dynamodbv2.model.AttributeValue> values) {
+    return values.entrySet().stream()
+        .collect(
+            toMap(
+                Map.Entry::getKey,
+                e ->
+                    e.getValue().getB() == null
+                        ? AttributeValue.builder().s(e.getValue().getS()).build()
+                        : AttributeValue.builder()
+                            .b(SdkBytes.fromByteBuffer(e.getValue().getB()))
+                            .build()));
+  }
+
+  private static String decode(AttributeValue value) {
+    if (value.b() == null) {
+      return value.s();
+    }
+    return RefValueFormat.decode(value.b().asByteBuffer());
+  }
+
+  @Nullable
+  private static ObjectId decodeObjectId(AttributeValue value) {
+    if (value.b() == null) {
+      return RefValueFormat.decodeObjectId(value.s());
+    }
+    return RefValueFormat.decodeObjectId(value.b().asByteBuffer());
+  }
+
+  private static Exception unwrap(Throwable e) {
+    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    return cause instanceof Exception ? (Exception) cause : new ExecutionException(cause);
+  }
+}
@@ -0,0 +1,127 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRequestMetricsHandler.THROTTLING_ERROR_CODES;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.google.common.flogger.FluentLogger;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Optional;
+
+/**
+ * Fails the DynamoDB requests fast, without sending them, while the {@link CircuitBreaker} is open
+ * because too many of the recent requests failed or were too slow.
+ *
+ * <p>A request fails when DynamoDB cannot serve it: server errors, throttling and network errors or
+ * timeouts. Client errors, like a failed condition check, mean that DynamoDB is healthy.
+ */
+@Singleton
+class DynamoDBCircuitBreakerHandler extends RequestHandler2 {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final HandlerContextKey<CircuitBreaker.Permit> PERMIT =
+      new HandlerContextKey<>("RefDbCircuitBreakerPermit");
+  private static final HandlerContextKey<Long> START_NANOS =
+      new HandlerContextKey<>("RefDbCircuitBreakerStartNanos");
+
+  private final CircuitBreaker circuitBreaker;
+  private final RefDbMetrics metrics;
+
+  @Inject
+  DynamoDBCircuitBreakerHandler(Configuration configuration, RefDbMetrics metrics) {
+    this.metrics = metrics;
+    this.circuitBreaker =
+        configuration.getCircuitBreakerFailureRatePercent() > 0
+            ? new CircuitBreaker(
+                configuration.getCircuitBreakerFailureRatePercent(),
+                configuration.getCircuitBreakerSlowRequestThreshold().toNanos(),
+                configuration.getCircuitBreakerMinRequests(),
+                configuration.getCircuitBreakerWindow().toNanos(),
+                configuration.getCircuitBreakerOpenDuration().toNanos(),
+                configuration.getCircuitBreakerProbes(),
+                this::onStateChange)
+            : null;
+  }
+
+  /**
+   * @return the circuit breaker, shared with the requests of {@link DynamoDBAsyncRefDatabase}, or
+   *     empty when disabled.
+   */
+  Optional<CircuitBreaker> circuitBreaker() {
+    return Optional.ofNullable(circuitBreaker);
+  }
+
+  @Override
+  public AmazonWebServiceRequest beforeExecution(AmazonWebServiceRequest request) {
+    if (circuitBreaker == null) {
+      return request;
+    }
+
+    CircuitBreaker.Permit permit = circuitBreaker.tryAcquire();
+    if (permit == CircuitBreaker.Permit.REJECTED) {
+      String requestName = DynamoDBRequestMetricsHandler.requestName(request);
+      metrics.incrementCircuitBreakerRejected(requestName);
+      throw new AmazonClientException(
+          String.format("%s failed fast: DynamoDB circuit breaker is open", requestName));
+    }
+    request.addHandlerContext(PERMIT, permit);
+    request.addHandlerContext(START_NANOS, System.nanoTime());
+    return request;
+  }
+
+  @Override
+  public void afterResponse(Request<?> request, Response<?> response) {
+    onResult(request.getOriginalRequest(), false);
+  }
+
+  @Override
+  public void afterError(Request<?> request, Response<?> response, Exception e) {
+    onResult(request.getOriginalRequest(), isDynamoDBFailure(e));
+  }
+
+  private void onResult(AmazonWebServiceRequest request, boolean failed) {
+    CircuitBreaker.Permit permit = request.getHandlerContext(PERMIT);
+    if (permit == null) {
+      return;
+    }
+    request.addHandlerContext(PERMIT, null);
+    circuitBreaker.onResult(
+        permit, failed, System.nanoTime() - request.getHandlerContext(START_NANOS));
+  }
+
+  private void onStateChange(CircuitBreaker.State state) {
+    logger.atWarning().log("DynamoDB circuit breaker is now %s", state);
+    metrics.recordCircuitBreakerState(state);
+  }
+
+  private static boolean isDynamoDBFailure(Exception e) {
+    if (e instanceof AmazonServiceException) {
+      AmazonServiceException serviceException = (AmazonServiceException) e;
+      return serviceException.getErrorType() == AmazonServiceException.ErrorType.Service
+          || THROTTLING_ERROR_CODES.contains(serviceException.getErrorCode());
+    }
+    // An interrupted request says nothing about the health of DynamoDB
+    return !(e instanceof AbortedException);
+  }
+}
@@ -0,0 +1,52 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.util.AWSRequestMetrics.Field;
+import com.amazonaws.util.TimingInfo;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Samples the HTTP connection pool of the AWS SDK v1 client, shared by the refs database and the
+ * lock client, to show when it is saturated. The SDK only records the pool statistics of a request
+ * when a metric collector is set on the client.
+ */
+@Singleton
+class DynamoDBConnectionPoolMetricsCollector extends RequestMetricCollector {
+  private final RefDbMetrics metrics;
+  private final int maxConnections;
+
+  @Inject
+  DynamoDBConnectionPoolMetricsCollector(RefDbMetrics metrics, Configuration configuration) {
+    this.metrics = metrics;
+    this.maxConnections = configuration.getMaxConnections();
+  }
+
+  @Override
+  public void collectMetrics(Request<?> request, Response<?> response) {
+    TimingInfo timingInfo = request.getAWSRequestMetrics().getTimingInfo();
+    Number leased = timingInfo.getCounter(Field.HttpClientPoolLeasedCount.name());
+    Number available = timingInfo.getCounter(Field.HttpClientPoolAvailableCount.name());
+    Number pending = timingInfo.getCounter(Field.HttpClientPoolPendingCount.name());
+    if (leased != null && available != null && pending != null) {
+      metrics.recordConnectionPool(
+          leased.longValue(), available.longValue(), pending.longValue(), maxConnections);
+    }
+  }
+}
@@ -16,13 +16,11 @@ package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
 
 import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.LOCK_DB_PRIMARY_KEY;
 import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.LOCK_DB_SORT_KEY;
-import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.REF_DB_PRIMARY_KEY;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBLockClient;
-import com.amazonaws.services.dynamodbv2.CreateDynamoDBTableOptions;
 import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
+import com.amazonaws.services.dynamodbv2.model.BillingMode;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
 import com.amazonaws.services.dynamodbv2.model.KeyType;
@@ -30,91 +28,204 @@ import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
 import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
 import com.amazonaws.services.dynamodbv2.util.TableUtils;
+import com.amazonaws.services.dynamodbv2.util.TableUtils.TableNeverTransitionedToStateException;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+/**
+ * Verifies that the DynamoDB tables are active, creating them when missing, without blocking the
+ * start of Gerrit. The tables are verified in parallel and {@link DynamoDBTablesStatus} reports the
+ * global ref-db as not ready until they are all active. A failed verification, e.g. because
+ * DynamoDB is briefly unreachable, is retried with an exponential backoff until it succeeds or the
+ * plugin stops.
+ */
 @Singleton
 class DynamoDBLifeCycleManager implements LifecycleListener {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final int TABLE_STATUS_POLL_INTERVAL_MS = 1000;
+  private static final Duration MIN_VERIFICATION_BACKOFF = Duration.ofSeconds(1);
+  private static final Duration MAX_VERIFICATION_BACKOFF = Duration.ofMinutes(1);
   private final Configuration configuration;
   private final AmazonDynamoDB dynamoDB;
+  private final DynamoDBTablesStatus tablesStatus;
+  private ExecutorService executor;
 
   @Inject
-  DynamoDBLifeCycleManager(Configuration configuration, AmazonDynamoDB dynamoDB) {
+  DynamoDBLifeCycleManager(
+      Configuration configuration,
+      AmazonDynamoDB dynamoDB,
+      DynamoDBTablesStatus tablesStatus) {
     this.configuration = configuration;
     this.dynamoDB = dynamoDB;
+    this.tablesStatus = tablesStatus;
   }
 
-  // TODO: it is useful to create these at start up during development
-  // however ddb tables should be created beforehand, because it might take a while.
-  // Perhaps it'd be useful to move this logic to an SSH command.
-
   @Override
   public void start() {
-    createLockTableIfDoesntExist();
-    createRefsDbTableIfDoesntExist();
+    List<CreateTableRequest> tables = new ArrayList<>();
+    if (configuration.getLockMode() == RefLockMode.DYNAMODB) {
+      tables.add(
+          createTableRequest(
+              configuration.getLocksTableName(),
+              ImmutableList.of(
+                  new AttributeDefinition(LOCK_DB_PRIMARY_KEY, ScalarAttributeType.S),
+                  new AttributeDefinition(LOCK_DB_SORT_KEY, ScalarAttributeType.S)),
+              ImmutableList.of(
+                  new KeySchemaElement(LOCK_DB_PRIMARY_KEY, KeyType.HASH),
+                  new KeySchemaElement(LOCK_DB_SORT_KEY, KeyType.RANGE))));
+    }
+    tables.add(
+        createTableRequest(
+            configuration.getRefsDbTableName(),
+            configuration.getRefsDbKeySchema().attributeDefinitions(),
+            configuration.getRefsDbKeySchema().keySchema()));
+
+    executor =
+        Executors.newFixedThreadPool(
+            tables.size(),
+            new ThreadFactoryBuilder().setNameFormat("dynamodb-tables-%d").setDaemon(true).build());
+    CompletableFuture.allOf(
+            tables.stream()
+                .map(
+                    table ->
+                        CompletableFuture.runAsync(() -> verifyTableUntilActive(table), executor))
+                .toArray(CompletableFuture[]::new))
+        .whenComplete(
+            (result, e) -> {
+              if (e == null) {
+                logger.atInfo().log("DynamoDB tables are active, the global ref-db is ready");
+                tablesStatus.markActive();
+                prewarmConnections(configuration.getPrewarmConnections());
+              } else {
+                logger.atWarning().withCause(e).log(
+                    "Stopped verifying the DynamoDB tables, the global ref-db is not ready");
+              }
+              executor.shutdown();
+            });
   }
 
   @Override
-  public void stop() {}
+  public void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
 
-  private void createLockTableIfDoesntExist() {
-    if (!tableExists(dynamoDB, configuration.getLocksTableName())) {
-      logger.atWarning().log(
-          "Attempt to create lock table '%s'", configuration.getLocksTableName());
-      AmazonDynamoDBLockClient.createLockTableInDynamoDB(
-          CreateDynamoDBTableOptions.builder(
-                  dynamoDB, new ProvisionedThroughput(10L, 10L), configuration.getLocksTableName())
-              .withPartitionKeyName(LOCK_DB_PRIMARY_KEY)
-              .withSortKeyName(LOCK_DB_SORT_KEY)
-              .build());
+  /**
+   * Opens connections to DynamoDB ahead of the first requests, by sending cheap concurrent {@code
+   * DescribeTable} requests, so that they do not pay the TCP and TLS handshakes.
+   */
+  private void prewarmConnections(int connections) {
+    if (connections <= 0) {
+      return;
+    }
+
+    ExecutorService prewarmExecutor =
+        Executors.newFixedThreadPool(
+            connections,
+            new ThreadFactoryBuilder()
+                .setNameFormat("dynamodb-prewarm-%d")
+                .setDaemon(true)
+                .build());
+    try {
+      prewarmExecutor.invokeAll(
+          Collections.nCopies(
+              connections, () -> dynamoDB.describeTable(configuration.getRefsDbTableName())));
+      logger.atInfo().log("Prewarmed %d connections to DynamoDB", connections);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      prewarmExecutor.shutdown();
+    }
+  }
+
+  private CreateTableRequest createTableRequest(
+      String tableName,
+      List<AttributeDefinition> attributeDefinitions,
+      List<KeySchemaElement> keySchema) {
+    CreateTableRequest request =
+        new CreateTableRequest()
+            .withTableName(tableName)
+            .withAttributeDefinitions(attributeDefinitions)
+            .withKeySchema(keySchema)
+            .withBillingMode(configuration.getBillingMode());
+    if (configuration.getBillingMode() == BillingMode.PROVISIONED) {
+      request.withProvisionedThroughput(
+          new ProvisionedThroughput(
+              configuration.getReadCapacityUnits(), configuration.getWriteCapacityUnits()));
+    }
+    return request;
+  }
 
+  private void verifyTableUntilActive(CreateTableRequest request) {
+    Duration backoff = MIN_VERIFICATION_BACKOFF;
+    while (true) {
       try {
-        logger.atWarning().log(
-            "Wait for lock table '%s' creation", configuration.getLocksTableName());
-        TableUtils.waitUntilActive(dynamoDB, configuration.getLocksTableName());
-        logger.atWarning().log(
-            "lock table '%s' successfully created and active", configuration.getLocksTableName());
-      } catch (InterruptedException e) {
+        ensureTableActive(request);
+        return;
+      } catch (RuntimeException e) {
+        if (Thread.currentThread().isInterrupted()) {
+          throw e;
+        }
+        tablesStatus.recordFailure(e);
         logger.atSevere().withCause(e).log(
-            "Timeout when creating lock table '%s'", configuration.getLocksTableName());
+            "Table '%s' could not be verified, the global ref-db is not ready: retrying in %s",
+            request.getTableName(), backoff);
       }
-    } else {
-      logger.atWarning().log(
-          "Lock table '%s' already exists, nothing to do.", configuration.getLocksTableName());
-    }
-  }
 
-  private void createRefsDbTableIfDoesntExist() {
-    boolean created =
-        TableUtils.createTableIfNotExists(
-            dynamoDB,
-            new CreateTableRequest()
-                .withTableName(configuration.getRefsDbTableName())
-                .withAttributeDefinitions(
-                    new AttributeDefinition(REF_DB_PRIMARY_KEY, ScalarAttributeType.S))
-                .withKeySchema(new KeySchemaElement(REF_DB_PRIMARY_KEY, KeyType.HASH))
-                .withProvisionedThroughput(new ProvisionedThroughput(10L, 10L)));
-
-    if (created) {
       try {
-        logger.atWarning().log(
-            "Wait for refsDB table '%s' creation", configuration.getRefsDbTableName());
-        TableUtils.waitUntilActive(dynamoDB, configuration.getRefsDbTableName());
-        logger.atWarning().log(
-            "refsDb table '%s' successfully created and active",
-            configuration.getRefsDbTableName());
+        Thread.sleep(backoff.toMillis());
       } catch (InterruptedException e) {
-        logger.atSevere().withCause(e).log(
-            "Timeout when creating refsDb table '%s'", configuration.getRefsDbTableName());
+        Thread.currentThread().interrupt();
+        throw new GlobalRefDbSystemError(
+            String.format("Interrupted while verifying table '%s'", request.getTableName()), e);
+      }
+      backoff = backoff.multipliedBy(2);
+      if (backoff.compareTo(MAX_VERIFICATION_BACKOFF) > 0) {
+        backoff = MAX_VERIFICATION_BACKOFF;
       }
-    } else {
+    }
+  }
+
+  private void ensureTableActive(CreateTableRequest request) {
+    String tableName = request.getTableName();
+    if (configuration.getCreateTables() && TableUtils.createTableIfNotExists(dynamoDB, request)) {
       logger.atWarning().log(
-          "RefsDb table '%s' already exists, nothing to do.", configuration.getRefsDbTableName());
+          "Created table '%s' with billing mode %s, waiting for it to become active",
+          tableName, request.getBillingMode());
+    }
+
+    try {
+      TableUtils.waitUntilActive(
+          dynamoDB,
+          tableName,
+          (int) configuration.getTablesActiveTimeout().toMillis(),
+          TABLE_STATUS_POLL_INTERVAL_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GlobalRefDbSystemError(
+          String.format("Interrupted while waiting for table '%s' to become active", tableName), e);
+    } catch (TableNeverTransitionedToStateException e) {
+      throw new GlobalRefDbSystemError(
+          String.format(
+              "Table '%s' is not active after %s",
+              tableName, configuration.getTablesActiveTimeout()),
+          e);
     }
+    logger.atInfo().log("Table '%s' is active", tableName);
   }
 
   @VisibleForTesting
@@ -38,14 +38,15 @@ class DynamoDBLockClientProvider implements Provider<AmazonDynamoDBLockClient> {
 
   @Override
   public AmazonDynamoDBLockClient get() {
-    final boolean createHeartbeatBackgroundThread = true;
+    // Leases are renewed by LockHeartbeats, only for the locks about to expire
+    final boolean createHeartbeatBackgroundThread = false;
     return new AmazonDynamoDBLockClient(
         AmazonDynamoDBLockClientOptions.builder(dynamoDB, configuration.getLocksTableName())
             .withPartitionKeyName(LOCK_DB_PRIMARY_KEY)
             .withSortKeyName(LOCK_DB_SORT_KEY)
-            .withTimeUnit(TimeUnit.SECONDS)
-            .withLeaseDuration(10L)
-            .withHeartbeatPeriod(3L)
+            .withTimeUnit(TimeUnit.MILLISECONDS)
+            .withLeaseDuration(configuration.getLockLeaseDuration().toMillis())
+            .withHeartbeatPeriod(configuration.getLockHeartbeatPeriod().toMillis())
             .withCreateHeartbeatBackgroundThread(createHeartbeatBackgroundThread)
             .build());
   }
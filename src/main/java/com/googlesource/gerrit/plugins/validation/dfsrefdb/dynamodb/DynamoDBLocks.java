@@ -0,0 +1,217 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.LOCK_DB_PRIMARY_KEY;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.LOCK_DB_SORT_KEY;
+
+import com.amazonaws.services.dynamodbv2.AcquireLockOptions;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBLockClient;
+import com.amazonaws.services.dynamodbv2.LockItem;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.LockCurrentlyUnavailableException;
+import com.amazonaws.services.dynamodbv2.model.LockNotGrantedException;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.FluentLogger;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Acquires and releases the DynamoDB locks of the keys of the locks table.
+ *
+ * <p>A lock held by another node is polled with an exponential backoff, rather than at the fixed
+ * refresh period of the lock client, so that short waits end quickly and long ones cost few reads.
+ * A lock whose lease is not renewed for its whole duration was abandoned by a node that stopped,
+ * and is taken over. The leases of the locks acquired are renewed by {@link LockHeartbeats}, and
+ * their releases can be handed over to {@link LockReleaser}.
+ */
+@Singleton
+class DynamoDBLocks {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  // Set by the lock client whenever a lock is acquired or its lease renewed
+  private static final String LOCK_DB_RECORD_VERSION_NUMBER_KEY = "recordVersionNumber";
+  // Set by the lock client on the released locks that are kept in the table
+  private static final String LOCK_DB_IS_RELEASED_KEY = "isReleased";
+
+  private final Provider<AmazonDynamoDBLockClient> lockClient;
+  private final AmazonDynamoDB dynamoDBClient;
+  private final Configuration configuration;
+  private final LockHeartbeats heartbeats;
+  private final LockReleaser releaser;
+  private final RefDbMetrics metrics;
+  private final long leaseNanos;
+  private final long waitTimeoutNanos;
+  private final long retryMinIntervalNanos;
+  private final long retryMaxIntervalNanos;
+
+  @Inject
+  DynamoDBLocks(
+      Provider<AmazonDynamoDBLockClient> lockClient,
+      AmazonDynamoDB dynamoDBClient,
+      Configuration configuration,
+      LockHeartbeats heartbeats,
+      LockReleaser releaser,
+      RefDbMetrics metrics) {
+    this.lockClient = lockClient;
+    this.dynamoDBClient = dynamoDBClient;
+    this.configuration = configuration;
+    this.heartbeats = heartbeats;
+    this.releaser = releaser;
+    this.metrics = metrics;
+    this.leaseNanos = configuration.getLockLeaseDuration().toNanos();
+    this.waitTimeoutNanos = configuration.getLockWaitTimeout().toNanos();
+    this.retryMinIntervalNanos = configuration.getLockRetryMinInterval().toNanos();
+    this.retryMaxIntervalNanos =
+        Math.max(retryMinIntervalNanos, configuration.getLockRetryMaxInterval().toNanos());
+  }
+
+  /**
+   * Waits for the lock of a key for up to its lease duration plus {@code lockWaitTimeout}, like the
+   * lock client does.
+   *
+   * @throws LockNotGrantedException when the lock is still held by another node after that.
+   */
+  LockItem acquire(String lockKey) throws InterruptedException {
+    AmazonDynamoDBLockClient client = lockClient.get();
+    AcquireLockOptions options =
+        AcquireLockOptions.builder(lockKey)
+            .withSortKey(lockKey)
+            .withShouldSkipBlockingWait(true)
+            .build();
+    long start = System.nanoTime();
+    long backoffNanos = retryMinIntervalNanos;
+    String holderVersion = null;
+    long holderVersionSince = start;
+
+    while (true) {
+      try {
+        LockItem lockItem = client.acquireLock(options);
+        heartbeats.register(lockItem);
+        return lockItem;
+      } catch (LockCurrentlyUnavailableException e) {
+        // Held by another node: wait for it to be released
+      }
+
+      while (true) {
+        long now = System.nanoTime();
+        if (now - start >= leaseNanos + waitTimeoutNanos) {
+          throw new LockNotGrantedException(
+              String.format(
+                  "Lock of %s still held after %d ms",
+                  lockKey, TimeUnit.NANOSECONDS.toMillis(now - start)));
+        }
+        long sleepNanos =
+            Math.min(
+                backoffNanos / 2 + ThreadLocalRandom.current().nextLong(backoffNanos / 2 + 1),
+                start + leaseNanos + waitTimeoutNanos - now);
+        TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        backoffNanos = Math.min(retryMaxIntervalNanos, backoffNanos * 2);
+        metrics.incrementLockRetries();
+
+        // The lock client blanks the record version of the locks held by other nodes: read it
+        // from the lock item itself
+        Optional<String> version = getRecordVersionNumber(lockKey);
+        if (!version.isPresent()) {
+          break;
+        }
+        now = System.nanoTime();
+        if (!version.get().equals(holderVersion)) {
+          holderVersion = version.get();
+          holderVersionSince = now;
+        } else if (now - holderVersionSince >= leaseNanos
+            && deleteAbandoned(lockKey, version.get())) {
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Releases a lock, in the background when {@code lockReleaseQueueSize} is set, see {@link
+   * LockReleaser}.
+   *
+   * @param andThen run once the lock is released, or could not be.
+   */
+  void release(LockItem lockItem, Runnable andThen) {
+    releaser.release(
+        lockItem.getPartitionKey(),
+        () -> {
+          heartbeats.unregister(lockItem);
+          lockItem.close();
+        },
+        andThen);
+  }
+
+  /** @return true when the lock of the key is held, by this node or by another one. */
+  boolean isLocked(String lockKey) {
+    return lockClient.get().getLock(lockKey, Optional.of(lockKey)).isPresent();
+  }
+
+  static Map<String, AttributeValue> lockKeyOf(String lockKey) {
+    return ImmutableMap.of(
+        LOCK_DB_PRIMARY_KEY, new AttributeValue(lockKey),
+        LOCK_DB_SORT_KEY, new AttributeValue(lockKey));
+  }
+
+  /**
+   * Reads the record version of a lock with a strongly consistent read, as it changes whenever the
+   * lock is acquired or its lease renewed.
+   *
+   * @return the record version of the lock, or empty when the lock is not held.
+   */
+  private Optional<String> getRecordVersionNumber(String lockKey) {
+    Map<String, AttributeValue> item =
+        dynamoDBClient
+            .getItem(
+                new GetItemRequest()
+                    .withTableName(configuration.getLocksTableName())
+                    .withKey(lockKeyOf(lockKey))
+                    .withConsistentRead(true))
+            .getItem();
+    if (item == null || item.containsKey(LOCK_DB_IS_RELEASED_KEY)) {
+      return Optional.empty();
+    }
+    return Optional.ofNullable(item.get(LOCK_DB_RECORD_VERSION_NUMBER_KEY))
+        .map(AttributeValue::getS);
+  }
+
+  /** Deletes the lock, provided that its lease was not renewed in the meantime. */
+  private boolean deleteAbandoned(String lockKey, String recordVersionNumber) {
+    try {
+      dynamoDBClient.deleteItem(
+          new DeleteItemRequest()
+              .withTableName(configuration.getLocksTableName())
+              .withKey(lockKeyOf(lockKey))
+              .withConditionExpression(
+                  String.format("%s = :record_version", LOCK_DB_RECORD_VERSION_NUMBER_KEY))
+              .withExpressionAttributeValues(
+                  ImmutableMap.of(":record_version", new AttributeValue(recordVersionNumber))));
+      logger.atWarning().log("Took over the lock of %s, abandoned by its owner", lockKey);
+      return true;
+    } catch (ConditionalCheckFailedException e) {
+      return false;
+    }
+  }
+}
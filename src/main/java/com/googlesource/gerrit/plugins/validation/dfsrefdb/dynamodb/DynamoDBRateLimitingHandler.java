@@ -0,0 +1,181 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRequestMetricsHandler.THROTTLING_ERROR_CODES;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Limits the rate of the read and write requests sent to each DynamoDB table, adapting it to the
+ * throttling signals received from DynamoDB.
+ *
+ * <p>Requests wait for the limiter before each attempt, except the requests marked as {@link
+ * #SHEDDABLE}, which fail straight away when no capacity is available rather than competing with
+ * the ref updates.
+ */
+@Singleton
+class DynamoDBRateLimitingHandler extends RequestHandler2 {
+  /** Marks a low-priority request, to be dropped rather than delayed when overloaded. */
+  static final HandlerContextKey<Boolean> SHEDDABLE = new HandlerContextKey<>("RefDbSheddable");
+
+  private static final HandlerContextKey<Boolean> PERMIT_ACQUIRED =
+      new HandlerContextKey<>("RefDbPermitAcquired");
+
+  private final int maxReadRequestsPerSecond;
+  private final int maxWriteRequestsPerSecond;
+  private final RefDbMetrics metrics;
+  private final ConcurrentMap<String, AdaptiveRateLimiter> readRateLimiters =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, AdaptiveRateLimiter> writeRateLimiters =
+      new ConcurrentHashMap<>();
+
+  @Inject
+  DynamoDBRateLimitingHandler(Configuration configuration, RefDbMetrics metrics) {
+    this.maxReadRequestsPerSecond = configuration.getMaxReadRequestsPerSecond();
+    this.maxWriteRequestsPerSecond = configuration.getMaxWriteRequestsPerSecond();
+    this.metrics = metrics;
+  }
+
+  @Override
+  public AmazonWebServiceRequest beforeExecution(AmazonWebServiceRequest request) {
+    if (Boolean.TRUE.equals(request.getHandlerContext(SHEDDABLE))) {
+      Optional<AdaptiveRateLimiter> rateLimiter = rateLimiterOf(request);
+      if (rateLimiter.isPresent()) {
+        if (!rateLimiter.get().tryAcquire()) {
+          String requestName = DynamoDBRequestMetricsHandler.requestName(request);
+          metrics.incrementRequestsShed(requestName);
+          throw new AmazonClientException(
+              String.format(
+                  "%s dropped: rate limit of table %s reached",
+                  requestName, tableNameOf(request).orElse("")));
+        }
+        request.addHandlerContext(PERMIT_ACQUIRED, true);
+      }
+    }
+    return request;
+  }
+
+  @Override
+  public void beforeAttempt(HandlerBeforeAttemptContext context) {
+    AmazonWebServiceRequest request = context.getRequest().getOriginalRequest();
+    if (Boolean.TRUE.equals(request.getHandlerContext(PERMIT_ACQUIRED))) {
+      request.addHandlerContext(PERMIT_ACQUIRED, false);
+      return;
+    }
+    rateLimiterOf(request).ifPresent(AdaptiveRateLimiter::acquire);
+  }
+
+  @Override
+  public void afterAttempt(HandlerAfterAttemptContext context) {
+    Optional<AdaptiveRateLimiter> rateLimiter =
+        rateLimiterOf(context.getRequest().getOriginalRequest());
+    if (!rateLimiter.isPresent()) {
+      return;
+    }
+
+    Exception e = context.getException();
+    if (e == null) {
+      rateLimiter.get().onSuccess();
+    } else if (e instanceof AmazonServiceException
+        && THROTTLING_ERROR_CODES.contains(((AmazonServiceException) e).getErrorCode())) {
+      rateLimiter.get().onThrottled();
+    }
+  }
+
+  private Optional<AdaptiveRateLimiter> rateLimiterOf(AmazonWebServiceRequest request) {
+    return tableNameOf(request).flatMap(tableName -> rateLimiterOf(tableName, isWrite(request)));
+  }
+
+  /**
+   * @return the rate limiter of the reads or of the writes of a table, shared with the requests of
+   *     {@link DynamoDBAsyncRefDatabase}, or empty when their rate is not limited.
+   */
+  Optional<AdaptiveRateLimiter> rateLimiterOf(String tableName, boolean write) {
+    int maxRequestsPerSecond = write ? maxWriteRequestsPerSecond : maxReadRequestsPerSecond;
+    if (maxRequestsPerSecond <= 0) {
+      return Optional.empty();
+    }
+    ConcurrentMap<String, AdaptiveRateLimiter> rateLimiters =
+        write ? writeRateLimiters : readRateLimiters;
+    return Optional.of(
+        rateLimiters.computeIfAbsent(
+            tableName, t -> new AdaptiveRateLimiter(maxRequestsPerSecond)));
+  }
+
+  private static boolean isWrite(AmazonWebServiceRequest request) {
+    return request instanceof PutItemRequest
+        || request instanceof UpdateItemRequest
+        || request instanceof DeleteItemRequest
+        || request instanceof BatchWriteItemRequest
+        || request instanceof TransactWriteItemsRequest;
+  }
+
+  private static Optional<String> tableNameOf(AmazonWebServiceRequest request) {
+    if (request instanceof GetItemRequest) {
+      return Optional.of(((GetItemRequest) request).getTableName());
+    } else if (request instanceof QueryRequest) {
+      return Optional.of(((QueryRequest) request).getTableName());
+    } else if (request instanceof ScanRequest) {
+      return Optional.of(((ScanRequest) request).getTableName());
+    } else if (request instanceof PutItemRequest) {
+      return Optional.of(((PutItemRequest) request).getTableName());
+    } else if (request instanceof UpdateItemRequest) {
+      return Optional.of(((UpdateItemRequest) request).getTableName());
+    } else if (request instanceof DeleteItemRequest) {
+      return Optional.of(((DeleteItemRequest) request).getTableName());
+    } else if (request instanceof BatchGetItemRequest) {
+      return ((BatchGetItemRequest) request).getRequestItems().keySet().stream().findFirst();
+    } else if (request instanceof BatchWriteItemRequest) {
+      return ((BatchWriteItemRequest) request).getRequestItems().keySet().stream().findFirst();
+    } else if (request instanceof TransactWriteItemsRequest) {
+      return ((TransactWriteItemsRequest) request)
+          .getTransactItems().stream().findFirst().map(DynamoDBRateLimitingHandler::tableNameOf);
+    }
+    return Optional.empty();
+  }
+
+  private static String tableNameOf(TransactWriteItem item) {
+    if (item.getUpdate() != null) {
+      return item.getUpdate().getTableName();
+    } else if (item.getPut() != null) {
+      return item.getPut().getTableName();
+    } else if (item.getDelete() != null) {
+      return item.getDelete().getTableName();
+    }
+    return item.getConditionCheck().getTableName();
+  }
+}
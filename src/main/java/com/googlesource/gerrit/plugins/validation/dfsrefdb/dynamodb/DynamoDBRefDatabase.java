@@ -14,49 +14,160 @@
 
 package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
 
-import com.amazonaws.services.dynamodbv2.AcquireLockOptions;
+import static com.google.common.base.MoreObjects.firstNonNull;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBLockClient;
 import com.amazonaws.services.dynamodbv2.LockItem;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.CancellationReason;
 import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.DeleteRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
 import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
 import com.amazonaws.services.dynamodbv2.model.LockNotGrantedException;
+import com.amazonaws.services.dynamodbv2.model.Put;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
+import com.amazonaws.services.dynamodbv2.model.Update;
 import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDatabase;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.entities.Project;
+import com.google.gerrit.metrics.Timer0;
+import com.google.gerrit.metrics.Timer1;
 import com.google.inject.Inject;
+import com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.LocalRefLocks.LocalRefLock;
+import com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.RefDbMetrics.Operation;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
 import javax.inject.Singleton;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.transport.ReceiveCommand;
 
 @Singleton
 public class DynamoDBRefDatabase implements GlobalRefDatabase {
 
   public static final String REF_DB_PRIMARY_KEY = "refPath";
   public static final String REF_DB_VALUE_KEY = "refValue";
+  public static final String REF_DB_PROJECT_KEY = "project";
+  public static final String REF_DB_REF_NAME_KEY = "refName";
 
   public static final String LOCK_DB_PRIMARY_KEY = "lockKey";
   public static final String LOCK_DB_SORT_KEY = "lockValue";
 
+  static final int MAX_BATCH_GET_ITEMS = 100;
+  static final int MAX_BATCH_WRITE_ITEMS = 25;
+  static final int MAX_TRANSACT_WRITE_ITEMS = 100;
+  private static final int MAX_BATCH_ATTEMPTS = 5;
+  private static final long BATCH_RETRY_BASE_DELAY_MS = 50L;
+  private static final long TABLES_ACTIVE_WAIT_SECONDS = 10L;
+  // Set by the lock client on the released locks that are kept in the table
+  private static final String LOCK_DB_IS_RELEASED_KEY = "isReleased";
+  private static final Map<String, List<Map<String, AttributeValue>>> NO_BATCH_GET_RESPONSES =
+      Collections.emptyMap();
+  private static final String CONDITIONAL_CHECK_FAILED = "ConditionalCheckFailed";
+  static final String COMPARE_AND_PUT_UPDATE_EXPRESSION =
+      String.format("SET %s = :new_value", REF_DB_VALUE_KEY);
+
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
-  private final AmazonDynamoDBLockClient lockClient;
+  private final DynamoDBLocks locks;
   private final AmazonDynamoDB dynamoDBClient;
   private final Configuration configuration;
+  private final RefsDbKeySchema keySchema;
+  private final RefValueFormat valueFormat;
+  private final LocalRefLocks localRefLocks;
+  private final RefDbMetrics metrics;
+  private final DynamoDBTablesStatus tablesStatus;
+  private final HedgedReads hedgedReads;
+  private final Duration localLockTimeout;
+  private final SingleFlight<RefRead, Optional<AttributeValue>> refReads;
+  private final Optional<MicroBatcher<Map<String, AttributeValue>, Map<String, AttributeValue>>>
+      refReadBatcher;
 
   @Inject
   DynamoDBRefDatabase(
-      AmazonDynamoDBLockClient lockClient,
+      DynamoDBLocks locks,
       AmazonDynamoDB dynamoDBClient,
-      Configuration configuration) {
-    this.lockClient = lockClient;
+      Configuration configuration,
+      LocalRefLocks localRefLocks,
+      RefDbMetrics metrics,
+      DynamoDBTablesStatus tablesStatus,
+      HedgedReads hedgedReads) {
+    this.locks = locks;
     this.dynamoDBClient = dynamoDBClient;
     this.configuration = configuration;
+    this.localRefLocks = localRefLocks;
+    this.metrics = metrics;
+    this.tablesStatus = tablesStatus;
+    this.hedgedReads = hedgedReads;
+    this.keySchema = configuration.getRefsDbKeySchema();
+    this.valueFormat = configuration.getRefValueFormat();
+    this.refReads = new SingleFlight<>(metrics::incrementCoalescedReads);
+    // The thread holding the local lock of a key can wait for its DynamoDB lock for up to the lease
+    // plus the wait timeout, and then hold it for the update: wait for as long again.
+    this.localLockTimeout =
+        configuration
+            .getLockLeaseDuration()
+            .plus(configuration.getLockWaitTimeout())
+            .multipliedBy(2);
+    Duration readBatchWindow = configuration.getReadBatchWindow();
+    this.refReadBatcher =
+        readBatchWindow.isZero()
+            ? Optional.empty()
+            : Optional.of(
+                new MicroBatcher<>(
+                    readBatchWindow.toNanos(),
+                    TimeUnit.NANOSECONDS,
+                    MAX_BATCH_GET_ITEMS,
+                    this::batchGetItemsByKey));
+  }
+
+  /**
+   * Waits briefly for the tables to be verified at startup, so that the operations received in the
+   * meantime are not rejected.
+   */
+  private void checkTablesActive() throws GlobalRefDbSystemError {
+    tablesStatus.awaitActive(TABLES_ACTIVE_WAIT_SECONDS, TimeUnit.SECONDS);
   }
 
   static String pathFor(Project.NameKey projectName, String refName) {
@@ -65,73 +176,199 @@ public class DynamoDBRefDatabase implements GlobalRefDatabase {
 
   @Override
   public boolean isUpToDate(Project.NameKey project, Ref ref) throws GlobalRefDbLockException {
-    try {
-      GetItemResult result = getPathFromDynamoDB(project, ref.getName());
-      if (!exists(result)) {
+    checkTablesActive();
+    try (Timer1.Context<Operation> ctx = metrics.startOperation(Operation.IS_UP_TO_DATE)) {
+      if (configuration.getIsUpToDateReadConsistency() == ReadConsistency.EVENTUAL
+          && getEventuallyConsistentRefValue(
+                  project,
+                  ref.getName(),
+                  Operation.IS_UP_TO_DATE,
+                  false,
+                  v -> isSameObject(ref, RefValueFormat.decodeObjectId(v)))
+              .isPresent()) {
         return true;
       }
 
-      String valueInDynamoDB = result.getItem().get(REF_DB_VALUE_KEY).getS();
-      ObjectId objectIdInSharedRefDb = ObjectId.fromString(valueInDynamoDB);
-      boolean isUpToDate = objectIdInSharedRefDb.equals(ref.getObjectId());
-
-      if (!isUpToDate) {
-        logger.atWarning().log(
-            "%s:%s is out of sync: local=%s dynamodb=%s",
-            project, ref.getName(), ref.getObjectId(), objectIdInSharedRefDb);
+      Optional<AttributeValue> valueInDynamoDB =
+          getRefValueFromDynamoDB(project, ref.getName(), false);
+      if (!valueInDynamoDB.isPresent()) {
+        return true;
       }
-      return isUpToDate;
+
+      return isUpToDate(project, ref, RefValueFormat.decodeObjectId(valueInDynamoDB.get()));
     } catch (Exception e) {
       throw new GlobalRefDbLockException(project.get(), ref.getName(), e);
     }
   }
 
+  /**
+   * Checks whether a set of refs of a project are up to date with the shared ref-db.
+   *
+   * <p>Refs are read with {@code BatchGetItem} in chunks of {@value #MAX_BATCH_GET_ITEMS} keys, so
+   * that validating a large batch of refs costs one DynamoDB round trip per chunk rather than one
+   * per ref.
+   *
+   * @return whether each ref, keyed by ref name, is up to date.
+   */
+  public Map<String, Boolean> isUpToDate(Project.NameKey project, Collection<Ref> refs)
+      throws GlobalRefDbLockException {
+    checkTablesActive();
+    try (Timer1.Context<Operation> ctx = metrics.startOperation(Operation.IS_UP_TO_DATE_BATCH)) {
+      Map<String, Boolean> upToDateByRefName = new HashMap<>();
+      Map<String, Ref> refsToRead = new LinkedHashMap<>();
+      for (Ref ref : refs) {
+        refsToRead.put(ref.getName(), ref);
+      }
+
+      for (List<String> refNames : Iterables.partition(refsToRead.keySet(), MAX_BATCH_GET_ITEMS)) {
+        try {
+          List<String> refNamesToReadStrongly = refNames;
+          if (configuration.getIsUpToDateReadConsistency() == ReadConsistency.EVENTUAL) {
+            refNamesToReadStrongly = new ArrayList<>();
+            metrics.incrementEventuallyConsistentReads(
+                Operation.IS_UP_TO_DATE_BATCH, refNames.size());
+            Map<String, AttributeValue> eventuallyConsistentValues =
+                batchGetRefValuesFromDynamoDB(project, refNames, false);
+            for (String refName : refNames) {
+              AttributeValue value = eventuallyConsistentValues.get(refName);
+              if (value != null
+                  && isSameObject(refsToRead.get(refName), RefValueFormat.decodeObjectId(value))) {
+                upToDateByRefName.put(refName, true);
+              } else {
+                refNamesToReadStrongly.add(refName);
+              }
+            }
+            metrics.incrementStrongReadFallbacks(
+                Operation.IS_UP_TO_DATE_BATCH, refNamesToReadStrongly.size());
+            if (refNamesToReadStrongly.isEmpty()) {
+              continue;
+            }
+          }
+
+          Map<String, AttributeValue> valuesInDynamoDB =
+              batchGetRefValuesFromDynamoDB(project, refNamesToReadStrongly, true);
+          for (String refName : refNamesToReadStrongly) {
+            Optional<AttributeValue> valueInDynamoDB =
+                Optional.ofNullable(valuesInDynamoDB.get(refName));
+            if (!valueInDynamoDB.isPresent()) {
+              valueInDynamoDB = getMigratedRefValue(project, refName);
+            }
+            upToDateByRefName.put(
+                refName,
+                !valueInDynamoDB.isPresent()
+                    || isUpToDate(
+                        project,
+                        refsToRead.get(refName),
+                        RefValueFormat.decodeObjectId(valueInDynamoDB.get())));
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new GlobalRefDbLockException(project.get(), refNames.get(0), e);
+        } catch (Exception e) {
+          throw new GlobalRefDbLockException(project.get(), refNames.get(0), e);
+        }
+      }
+      return upToDateByRefName;
+    }
+  }
+
+  /** @param objectIdInDynamoDB the ref value in DynamoDB, or null when it is not an object id. */
+  static boolean isSameObject(Ref ref, @Nullable ObjectId objectIdInDynamoDB) {
+    return objectIdInDynamoDB != null && objectIdInDynamoDB.equals(ref.getObjectId());
+  }
+
+  /** @param objectIdInSharedRefDb the ref value in DynamoDB, or null when not an object id. */
+  static boolean isUpToDate(
+      Project.NameKey project, Ref ref, @Nullable ObjectId objectIdInSharedRefDb) {
+    boolean isUpToDate = isSameObject(ref, objectIdInSharedRefDb);
+
+    if (!isUpToDate) {
+      logger.atWarning().log(
+          "%s:%s is out of sync: local=%s dynamodb=%s",
+          project, ref.getName(), ref.getObjectId(), objectIdInSharedRefDb);
+    }
+    return isUpToDate;
+  }
+
   @Override
   public boolean compareAndPut(Project.NameKey project, Ref currRef, ObjectId newRefValue)
       throws GlobalRefDbSystemError {
+    checkTablesActive();
     ObjectId newValue = Optional.ofNullable(newRefValue).orElse(ObjectId.zeroId());
     ObjectId currValue = Optional.ofNullable(currRef.getObjectId()).orElse(ObjectId.zeroId());
 
-    return doCompareAndPut(
-        project, pathFor(project, currRef.getName()), currValue.getName(), newValue.getName());
+    return doCompareAndPut(project, currRef.getName(), currValue.getName(), newValue.getName());
   }
 
   @Override
   public <T> boolean compareAndPut(Project.NameKey project, String refName, T currValue, T newValue)
       throws GlobalRefDbSystemError {
-    String refPath = pathFor(project, refName);
-
+    checkTablesActive();
     String newRefValue =
         Optional.ofNullable(newValue).map(Object::toString).orElse(ObjectId.zeroId().getName());
     String curRefValue =
         Optional.ofNullable(currValue).map(Object::toString).orElse(ObjectId.zeroId().getName());
 
-    return doCompareAndPut(project, refPath, curRefValue, newRefValue);
+    return doCompareAndPut(project, refName, curRefValue, newRefValue);
+  }
+
+  /**
+   * Atomically updates a set of refs of a project, provided that each of them still points to the
+   * old value of its command.
+   *
+   * <p>Updates are grouped into {@code TransactWriteItems} calls of up to {@value
+   * #MAX_TRANSACT_WRITE_ITEMS} refs. Each call is all-or-nothing: if any ref of a chunk does not
+   * match its expected value, none of the refs of that chunk is updated. Chunks are applied in
+   * order, so a failure leaves the refs of the previous chunks updated.
+   *
+   * @return true when all the refs have been updated.
+   * @throws GlobalRefDbSystemError naming the refs that did not match their expected value, naming
+   *     the ref updated by more than one command, in which case no ref is updated, or when the
+   *     update fails for any other reason.
+   */
+  public boolean compareAndPut(Project.NameKey project, Collection<ReceiveCommand> commands)
+      throws GlobalRefDbSystemError {
+    checkTablesActive();
+    // DynamoDB rejects the transactions updating an item more than once
+    Set<String> refNames = new HashSet<>();
+    for (ReceiveCommand cmd : commands) {
+      if (!refNames.add(cmd.getRefName())) {
+        throw new GlobalRefDbSystemError(
+            String.format(
+                "Cannot update the refs of project %s: %s is updated more than once",
+                project.get(), cmd.getRefName()),
+            new IllegalArgumentException("Duplicate ref name " + cmd.getRefName()));
+      }
+    }
+    try (Timer1.Context<Operation> ctx = metrics.startOperation(Operation.COMPARE_AND_PUT_BATCH)) {
+      for (List<ReceiveCommand> chunk : Iterables.partition(commands, MAX_TRANSACT_WRITE_ITEMS)) {
+        doCompareAndPut(project, chunk);
+      }
+      return true;
+    }
   }
 
   private boolean doCompareAndPut(
-      Project.NameKey project, String refPath, String currValueForPath, String newValueForPath)
+      Project.NameKey project, String refName, String currValueForPath, String newValueForPath)
       throws GlobalRefDbSystemError {
+    String refPath = pathFor(project, refName);
     UpdateItemRequest updateItemRequest =
         new UpdateItemRequest()
             .withTableName(configuration.getRefsDbTableName())
-            .withKey(ImmutableMap.of(REF_DB_PRIMARY_KEY, new AttributeValue(refPath)))
+            .withKey(keySchema.keyOf(project, refName))
             .withExpressionAttributeValues(
-                ImmutableMap.of(
-                    ":old_value", new AttributeValue(currValueForPath),
-                    ":new_value", new AttributeValue(newValueForPath)))
-            .withUpdateExpression(String.format("SET %s = %s", REF_DB_VALUE_KEY, ":new_value"))
-            .withConditionExpression(
-                String.format(
-                    "attribute_not_exists(%s) OR %s = :old_value",
-                    REF_DB_PRIMARY_KEY, REF_DB_VALUE_KEY));
-    try {
+                compareAndPutAttributeValues(valueFormat, currValueForPath, newValueForPath))
+            .withUpdateExpression(COMPARE_AND_PUT_UPDATE_EXPRESSION)
+            .withConditionExpression(compareAndPutCondition(keySchema, currValueForPath));
+    try (Timer1.Context<Operation> ctx = metrics.startOperation(Operation.COMPARE_AND_PUT)) {
+      migrateFromLegacyTable(project, refName);
       dynamoDBClient.updateItem(updateItemRequest);
       logger.atFine().log(
           "Updated path for project %s. Current: %s New: %s",
           project.get(), currValueForPath, newValueForPath);
       return true;
     } catch (ConditionalCheckFailedException e) {
+      metrics.incrementConditionalCheckFailures(1);
       throw new GlobalRefDbSystemError(
           String.format(
               "Conditional Check Failure when updating refPath %s. expected: %s New: %s",
@@ -146,33 +383,346 @@ public class DynamoDBRefDatabase implements GlobalRefDatabase {
     }
   }
 
+  private void doCompareAndPut(Project.NameKey project, List<ReceiveCommand> commands)
+      throws GlobalRefDbSystemError {
+    List<TransactWriteItem> transactItems = new ArrayList<>(commands.size());
+    for (ReceiveCommand cmd : commands) {
+      transactItems.add(
+          new TransactWriteItem()
+              .withUpdate(
+                  new Update()
+                      .withTableName(configuration.getRefsDbTableName())
+                      .withKey(keySchema.keyOf(project, cmd.getRefName()))
+                      .withExpressionAttributeValues(
+                          compareAndPutAttributeValues(
+                              valueFormat, cmd.getOldId().getName(), cmd.getNewId().getName()))
+                      .withUpdateExpression(COMPARE_AND_PUT_UPDATE_EXPRESSION)
+                      .withConditionExpression(
+                          compareAndPutCondition(keySchema, cmd.getOldId().getName()))));
+    }
+    try {
+      for (ReceiveCommand cmd : commands) {
+        migrateFromLegacyTable(project, cmd.getRefName());
+      }
+      dynamoDBClient.transactWriteItems(
+          new TransactWriteItemsRequest().withTransactItems(transactItems));
+      logger.atFine().log("Updated %d refs of project %s", commands.size(), project.get());
+    } catch (TransactionCanceledException e) {
+      List<String> failedRefs = conditionalCheckFailures(commands, e);
+      if (failedRefs.isEmpty()) {
+        throw new GlobalRefDbSystemError(
+            String.format(
+                "Transaction cancelled when updating %d refs of project %s",
+                commands.size(), project.get()),
+            e);
+      }
+      metrics.incrementConditionalCheckFailures(failedRefs.size());
+      throw new GlobalRefDbSystemError(
+          String.format(
+              "Conditional Check Failure when updating refs of project %s: %s",
+              project.get(), String.join(", ", failedRefs)),
+          e);
+    } catch (Exception e) {
+      throw new GlobalRefDbSystemError(
+          String.format("Error updating %d refs of project %s", commands.size(), project.get()), e);
+    }
+  }
+
+  private static List<String> conditionalCheckFailures(
+      List<ReceiveCommand> commands, TransactionCanceledException e) {
+    List<CancellationReason> reasons =
+        firstNonNull(e.getCancellationReasons(), Collections.emptyList());
+    List<String> failedRefs = new ArrayList<>();
+    // Cancellation reasons are listed in the same order as the transaction items
+    for (int i = 0; i < reasons.size() && i < commands.size(); i++) {
+      if (CONDITIONAL_CHECK_FAILED.equals(reasons.get(i).getCode())) {
+        ReceiveCommand cmd = commands.get(i);
+        failedRefs.add(
+            String.format(
+                "%s (expected: %s new: %s)",
+                cmd.getRefName(), cmd.getOldId().getName(), cmd.getNewId().getName()));
+      }
+    }
+    return failedRefs;
+  }
+
+  /**
+   * The stored value is compared against both the string and the binary representation of the
+   * expected object id, so that updates succeed whatever {@link RefValueFormat} it was written
+   * with.
+   */
+  static String compareAndPutCondition(RefsDbKeySchema keySchema, String currValue) {
+    String condition =
+        String.format(
+            "attribute_not_exists(%s) OR %s = :old_value",
+            keySchema.hashKeyName(), REF_DB_VALUE_KEY);
+    if (ObjectId.isId(currValue)) {
+      condition += String.format(" OR %s = :old_binary_value", REF_DB_VALUE_KEY);
+    }
+    return condition;
+  }
+
+  static Map<String, AttributeValue> compareAndPutAttributeValues(
+      RefValueFormat valueFormat, String currValue, String newValue) {
+    Map<String, AttributeValue> values = new HashMap<>();
+    values.put(":old_value", new AttributeValue(currValue));
+    if (ObjectId.isId(currValue)) {
+      values.put(":old_binary_value", RefValueFormat.binaryValueOf(currValue));
+    }
+    values.put(":new_value", valueFormat.encode(newValue));
+    return values;
+  }
+
   @Override
   public AutoCloseable lockRef(Project.NameKey project, String refName)
       throws GlobalRefDbLockException {
+    checkTablesActive();
+    try (Timer1.Context<Operation> ctx = metrics.startOperation(Operation.LOCK_REF)) {
+      return doLockRef(project, refName);
+    }
+  }
+
+  /**
+   * Locks a set of refs of a project, to be updated together.
+   *
+   * <p>Batches of at least {@code projectLockMinRefs} refs take a single DynamoDB lock for the
+   * whole project, rather than one per ref, and then wait for the refs of the batch already locked
+   * on their own to be released. The smaller batches lock each ref, in order.
+   *
+   * @return the lock of the refs, released when closed.
+   * @throws GlobalRefDbLockException when any of the refs cannot be locked.
+   */
+  public AutoCloseable lockRefs(Project.NameKey project, Collection<String> refNames)
+      throws GlobalRefDbLockException {
+    checkTablesActive();
+    try (Timer1.Context<Operation> ctx = metrics.startOperation(Operation.LOCK_REF_BATCH)) {
+      List<String> sortedRefNames = refNames.stream().sorted().distinct().collect(toList());
+      if (!useProjectLock(sortedRefNames.size())) {
+        return lockEachRef(project, sortedRefNames);
+      }
+      return doLockProject(project, sortedRefNames);
+    }
+  }
+
+  private boolean useProjectLock(int refs) {
+    int projectLockMinRefs = configuration.getProjectLockMinRefs();
+    return configuration.getLockMode() == RefLockMode.DYNAMODB
+        && projectLockMinRefs > 0
+        && refs >= projectLockMinRefs;
+  }
+
+  /** Refs are locked in order, so that concurrent batches of overlapping refs cannot deadlock. */
+  private AutoCloseable lockEachRef(Project.NameKey project, List<String> sortedRefNames)
+      throws GlobalRefDbLockException {
+    Deque<AutoCloseable> locks = new ArrayDeque<>(sortedRefNames.size());
+    try {
+      for (String refName : sortedRefNames) {
+        locks.push(doLockRef(project, refName));
+      }
+    } catch (RuntimeException e) {
+      try {
+        closeAll(locks);
+      } catch (GlobalRefDbSystemError releaseFailure) {
+        e.addSuppressed(releaseFailure);
+      }
+      throw e;
+    }
+    return () -> closeAll(locks);
+  }
+
+  private static void closeAll(Deque<AutoCloseable> locks) throws GlobalRefDbSystemError {
+    Exception failure = null;
+    while (!locks.isEmpty()) {
+      try {
+        locks.pop().close();
+      } catch (Exception e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+    if (failure != null) {
+      throw new GlobalRefDbSystemError("Failed to release the locks of the refs", failure);
+    }
+  }
+
+  private AutoCloseable doLockProject(Project.NameKey project, List<String> sortedRefNames)
+      throws GlobalRefDbLockException {
+    String projectLockKey = projectLockKey(project);
+    String firstRefName = sortedRefNames.get(0);
+    RefDbLock projectLock;
+    try {
+      projectLock = acquireLock(projectLockKey);
+    } catch (InterruptedException e) {
+      logger.atSevere().withCause(e).log(
+          "Received interrupted signal when trying to acquire lock for %s", projectLockKey);
+      throw new GlobalRefDbLockException(project.get(), firstRefName, e);
+    } catch (TimeoutException e) {
+      logger.atSevere().withCause(e).log("Failed to acquire local lock for %s", projectLockKey);
+      throw new GlobalRefDbLockException(project.get(), firstRefName, e);
+    } catch (LockNotGrantedException e) {
+      metrics.incrementLockNotGranted();
+      logger.atSevere().withCause(e).log("Failed to acquire lock for %s", projectLockKey);
+      throw new GlobalRefDbLockException(project.get(), firstRefName, e);
+    }
+
+    boolean locked = false;
+    try {
+      awaitRefLocksReleased(project, sortedRefNames);
+      logger.atFine().log(
+          "Acquired lock for %s covering %d refs", projectLockKey, sortedRefNames.size());
+      locked = true;
+      return projectLock;
+    } finally {
+      if (!locked) {
+        projectLock.close();
+      }
+    }
+  }
+
+  /**
+   * Waits for the refs locked on their own, before the lock of their project was acquired, to be
+   * released. The ref locks acquired afterwards are released straight away by their owner, which
+   * then waits for the project lock, see {@link #doLockRef}.
+   */
+  private void awaitRefLocksReleased(Project.NameKey project, List<String> sortedRefNames)
+      throws GlobalRefDbLockException {
+    String refName = sortedRefNames.get(0);
+    try {
+      for (List<String> chunk : Iterables.partition(sortedRefNames, MAX_BATCH_GET_ITEMS)) {
+        List<Map<String, AttributeValue>> keys = new ArrayList<>(chunk.size());
+        for (String chunkRefName : chunk) {
+          keys.add(DynamoDBLocks.lockKeyOf(pathFor(project, chunkRefName)));
+        }
+        for (Map<String, AttributeValue> item :
+            batchGetItems(configuration.getLocksTableName(), keys, true)) {
+          if (item.containsKey(LOCK_DB_IS_RELEASED_KEY)) {
+            continue;
+          }
+          String refPath = item.get(LOCK_DB_PRIMARY_KEY).getS();
+          refName = refPath.substring(pathFor(project, "").length());
+          logger.atFine().log("Waiting for %s to be released", refPath);
+          acquireLock(refPath).close();
+        }
+      }
+    } catch (InterruptedException e) {
+      logger.atSevere().withCause(e).log(
+          "Received interrupted signal when waiting for the locks of the refs of %s",
+          project.get());
+      throw new GlobalRefDbLockException(project.get(), refName, e);
+    } catch (TimeoutException e) {
+      logger.atSevere().withCause(e).log(
+          "Failed to acquire local lock for %s", pathFor(project, refName));
+      throw new GlobalRefDbLockException(project.get(), refName, e);
+    } catch (LockNotGrantedException e) {
+      metrics.incrementLockNotGranted();
+      logger.atSevere().withCause(e).log(
+          "Failed to acquire lock for %s", pathFor(project, refName));
+      throw new GlobalRefDbLockException(project.get(), refName, e);
+    } catch (Exception e) {
+      throw new GlobalRefDbLockException(project.get(), refName, e);
+    }
+  }
+
+  private AutoCloseable doLockRef(Project.NameKey project, String refName)
+      throws GlobalRefDbLockException {
     String refPath = pathFor(project, refName);
     try {
-      // Attempts to acquire a lock until it either acquires the lock, or a specified
-      // additionalTimeToWaitForLock is reached.
-      // TODO: 'additionalTimeToWaitForLock' should be configurable
-      // Hydrate with instanceId and ServerId and CurrentUser and Thread
-      LockItem lockItem =
-          lockClient.acquireLock(AcquireLockOptions.builder(refPath).withSortKey(refPath).build());
-      logger.atFine().log("Acquired lock for %s", refPath);
-      return lockItem;
+      if (configuration.getLockMode() == RefLockMode.OPTIMISTIC) {
+        // Concurrent updates from other nodes are rejected by the conditional write in
+        // compareAndPut, so there is no need to pay for a remote lock.
+        return localRefLocks.lock(refPath, localLockTimeout.toMillis(), TimeUnit.MILLISECONDS);
+      }
+
+      for (int attempt = 1; ; attempt++) {
+        RefDbLock refLock = acquireLock(refPath);
+        boolean projectLocked;
+        try {
+          projectLocked = configuration.getProjectLockMinRefs() > 0 && isProjectLocked(project);
+        } catch (RuntimeException e) {
+          refLock.close();
+          throw e;
+        }
+        if (!projectLocked) {
+          logger.atFine().log("Acquired lock for %s", refPath);
+          return refLock;
+        }
+
+        // A batch update of the project is in progress: give way to it, as it may be waiting for
+        // this ref, and try again once it is completed.
+        refLock.close();
+        metrics.incrementProjectLockWaits();
+        if (attempt >= configuration.getProjectLockMaxWaits()) {
+          throw new LockNotGrantedException(
+              String.format(
+                  "%s is still locked by batch updates after %d attempts",
+                  projectLockKey(project), attempt));
+        }
+        acquireLock(projectLockKey(project)).close();
+      }
     } catch (InterruptedException e) {
       logger.atSevere().withCause(e).log(
           "Received interrupted signal when trying to acquire lock for %s", refPath);
       throw new GlobalRefDbLockException(project.get(), refName, e);
+    } catch (TimeoutException e) {
+      logger.atSevere().withCause(e).log("Failed to acquire local lock for %s", refPath);
+      throw new GlobalRefDbLockException(project.get(), refName, e);
     } catch (LockNotGrantedException e) {
+      metrics.incrementLockNotGranted();
       logger.atSevere().withCause(e).log("Failed to acquire lock for %s", refPath);
       throw new GlobalRefDbLockException(project.get(), refName, e);
+    } catch (AmazonClientException e) {
+      // Also thrown without calling DynamoDB while its circuit breaker is open
+      logger.atSevere().withCause(e).log("DynamoDB failed to lock %s", refPath);
+      throw new GlobalRefDbLockException(project.get(), refName, e);
     }
   }
 
+  /**
+   * Acquires the DynamoDB lock of a key of the locks table, after its local lock: only one thread
+   * per node at a time contends for the DynamoDB lock of a key.
+   */
+  private RefDbLock acquireLock(String lockKey) throws InterruptedException, TimeoutException {
+    LocalRefLock localLock =
+        localRefLocks.lock(lockKey, localLockTimeout.toMillis(), TimeUnit.MILLISECONDS);
+    boolean locked = false;
+    try (Timer0.Context ctx = metrics.startRemoteLockAcquire()) {
+      // TODO: Hydrate with instanceId and ServerId and CurrentUser and Thread
+      LockItem lockItem = locks.acquire(lockKey);
+      locked = true;
+      // The local lock is held until the DynamoDB lock is released, so that the next thread of
+      // this node locking the key does not find it still locked in DynamoDB.
+      return () -> locks.release(lockItem, localLock::close);
+    } finally {
+      if (!locked) {
+        localLock.close();
+      }
+    }
+  }
+
+  private boolean isProjectLocked(Project.NameKey project) {
+    return locks.isLocked(projectLockKey(project));
+  }
+
+  /** Ref names are never empty, so the key cannot be the one of a ref. */
+  static String projectLockKey(Project.NameKey project) {
+    return pathFor(project, "");
+  }
+
   @Override
   public boolean exists(Project.NameKey project, String refName) {
-    try {
-      if (!exists(getPathFromDynamoDB(project, refName))) {
+    checkTablesActive();
+    try (Timer1.Context<Operation> ctx = metrics.startOperation(Operation.EXISTS)) {
+      if (configuration.getExistsReadConsistency() == ReadConsistency.EVENTUAL
+          && getEventuallyConsistentRefValue(project, refName, Operation.EXISTS, true, v -> true)
+              .isPresent()) {
+        return true;
+      }
+
+      // Existence checks are the first requests to be dropped when DynamoDB is overloaded
+      if (!getRefValueFromDynamoDB(project, refName, true).isPresent()) {
         logger.atFine().log("ref '%s' does not exist in dynamodb", pathFor(project, refName));
         return false;
       }
@@ -188,37 +738,472 @@ public class DynamoDBRefDatabase implements GlobalRefDatabase {
 
   @Override
   public void remove(Project.NameKey project) throws GlobalRefDbSystemError {
-    // TODO: to remove all refs related to project we'd need to be able to query
-    // dynamodb by 'project': perhaps we should have a composite key of:
-    // PK: project, SK: ref
+    checkTablesActive();
+    if (keySchema != RefsDbKeySchema.PROJECT_REF) {
+      logger.atWarning().log(
+          "Cannot remove the refs of project %s: refs table '%s' uses the %s key schema, which"
+              + " cannot be queried by project",
+          project, configuration.getRefsDbTableName(), keySchema);
+      return;
+    }
+
+    int threads = configuration.getRemoveProjectThreads();
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            threads,
+            new ThreadFactoryBuilder().setNameFormat("DynamoDB-remove-project-%d").build());
+    // Bound the number of pending batches, so that the Query pagination is throttled by
+    // the pace of the deletions.
+    Semaphore pendingBatches = new Semaphore(2 * threads);
+    List<Future<?>> deletions = new ArrayList<>();
+    int deletedRefs = 0;
+    try (Timer1.Context<Operation> ctx = metrics.startOperation(Operation.REMOVE)) {
+      Map<String, AttributeValue> exclusiveStartKey = null;
+      do {
+        QueryResult page =
+            dynamoDBClient.query(
+                new QueryRequest()
+                    .withTableName(configuration.getRefsDbTableName())
+                    .withKeyConditionExpression("#project = :project")
+                    .withProjectionExpression("#project, #refName")
+                    .withExpressionAttributeNames(
+                        ImmutableMap.of(
+                            "#project", REF_DB_PROJECT_KEY, "#refName", REF_DB_REF_NAME_KEY))
+                    .withExpressionAttributeValues(
+                        ImmutableMap.of(":project", new AttributeValue(project.get())))
+                    .withConsistentRead(true)
+                    .withExclusiveStartKey(exclusiveStartKey));
+
+        for (List<Map<String, AttributeValue>> keys :
+            Iterables.partition(page.getItems(), MAX_BATCH_WRITE_ITEMS)) {
+          pendingBatches.acquire();
+          deletions.add(
+              executor.submit(
+                  () -> {
+                    try {
+                      batchDeleteFromDynamoDB(keys);
+                      return null;
+                    } finally {
+                      pendingBatches.release();
+                    }
+                  }));
+          deletedRefs += keys.size();
+        }
+        exclusiveStartKey = page.getLastEvaluatedKey();
+      } while (exclusiveStartKey != null && !exclusiveStartKey.isEmpty());
+
+      for (Future<?> deletion : deletions) {
+        deletion.get();
+      }
+      logger.atInfo().log("Removed %d refs of project %s", deletedRefs, project);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GlobalRefDbSystemError(
+          String.format("Interrupted while removing the refs of project %s", project), e);
+    } catch (Exception e) {
+      throw new GlobalRefDbSystemError(
+          String.format("Error removing the refs of project %s", project), e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Loads all the refs of a project into a short-lived view, for the callers validating many refs
+   * of the project at once, e.g. during a mirror push or a replication catch-up. The refs are read
+   * with strongly consistent {@code Query} pages of up to 1 MB, rather than one {@code GetItem} per
+   * ref. With the {@code REF_PATH} key schema, which cannot be queried by project, the view reads
+   * the refs one by one.
+   */
+  public PrefetchedRefs prefetch(Project.NameKey project) throws GlobalRefDbSystemError {
+    checkTablesActive();
+    boolean readMissingRefs = configuration.getLegacyRefsDbTableName().isPresent();
+    if (keySchema != RefsDbKeySchema.PROJECT_REF) {
+      logger.atFine().log(
+          "Cannot prefetch the refs of project %s: refs table '%s' uses the %s key schema",
+          project, configuration.getRefsDbTableName(), keySchema);
+      return new PrefetchedRefs(
+          this,
+          project,
+          Optional.empty(),
+          readMissingRefs,
+          System.nanoTime(),
+          configuration.getPrefetchMaxAge());
+    }
+
+    try (Timer1.Context<Operation> ctx = metrics.startOperation(Operation.PREFETCH)) {
+      // The refs may be updated by the other nodes as soon as the first page is read
+      long prefetchedAtNanos = System.nanoTime();
+      Map<String, String> valuesByRefName = new HashMap<>();
+      Map<String, AttributeValue> exclusiveStartKey = null;
+      do {
+        QueryResult page =
+            dynamoDBClient.query(
+                new QueryRequest()
+                    .withTableName(configuration.getRefsDbTableName())
+                    .withKeyConditionExpression("#project = :project")
+                    .withProjectionExpression("#refName, #refValue")
+                    .withExpressionAttributeNames(
+                        ImmutableMap.of(
+                            "#project",
+                            REF_DB_PROJECT_KEY,
+                            "#refName",
+                            REF_DB_REF_NAME_KEY,
+                            "#refValue",
+                            REF_DB_VALUE_KEY))
+                    .withExpressionAttributeValues(
+                        ImmutableMap.of(":project", new AttributeValue(project.get())))
+                    .withConsistentRead(true)
+                    .withExclusiveStartKey(exclusiveStartKey));
+
+        for (Map<String, AttributeValue> item : page.getItems()) {
+          valuesByRefName.put(
+              item.get(REF_DB_REF_NAME_KEY).getS(),
+              RefValueFormat.decode(item.get(REF_DB_VALUE_KEY)));
+        }
+        exclusiveStartKey = page.getLastEvaluatedKey();
+      } while (exclusiveStartKey != null && !exclusiveStartKey.isEmpty());
+
+      logger.atFine().log("Prefetched %d refs of project %s", valuesByRefName.size(), project);
+      return new PrefetchedRefs(
+          this,
+          project,
+          Optional.of(valuesByRefName),
+          readMissingRefs,
+          prefetchedAtNanos,
+          configuration.getPrefetchMaxAge());
+    } catch (RuntimeException e) {
+      throw new GlobalRefDbSystemError(
+          String.format("Error prefetching the refs of project %s", project), e);
+    }
   }
 
   @SuppressWarnings("unchecked")
   @Override
   public <T> Optional<T> get(Project.NameKey project, String refName, Class<T> clazz)
       throws GlobalRefDbSystemError {
-    try {
-      GetItemResult item = getPathFromDynamoDB(project, refName);
-      if (!exists(item)) {
-        return Optional.empty();
+    checkTablesActive();
+    try (Timer1.Context<Operation> ctx = metrics.startOperation(Operation.GET)) {
+      Optional<AttributeValue> refValue = Optional.empty();
+      if (configuration.getGetReadConsistency() == ReadConsistency.EVENTUAL) {
+        refValue =
+            getEventuallyConsistentRefValue(project, refName, Operation.GET, false, v -> true);
+      }
+      if (!refValue.isPresent()) {
+        refValue = getRefValueFromDynamoDB(project, refName, false);
       }
-      String refValue = item.getItem().get(REF_DB_VALUE_KEY).getS();
 
       // TODO: not every string might be cast to T (it should work now because the
       // only usage of this function requests string, but we should be serializing
       // deserializing objects before adding them to dynamo.
-      return Optional.ofNullable((T) refValue);
+      return refValue.map(value -> (T) RefValueFormat.decode(value));
     } catch (Exception e) {
       logger.atSevere().withCause(e).log("Cannot get value for %s", pathFor(project, refName));
       return Optional.empty();
     }
   }
 
-  private GetItemResult getPathFromDynamoDB(Project.NameKey project, String refName) {
-    return dynamoDBClient.getItem(
-        configuration.getRefsDbTableName(),
-        ImmutableMap.of(REF_DB_PRIMARY_KEY, new AttributeValue(pathFor(project, refName))),
-        true);
+  /**
+   * Reads a ref with an eventually consistent read, which costs half of a strongly consistent one.
+   *
+   * @param trusted whether the value read can be trusted by the operation. An eventually consistent
+   *     read can miss the latest updates, so it is only trusted when a stale value would not be
+   *     harmful.
+   * @return the value read, when it can be trusted. Otherwise the operation falls back to a
+   *     strongly consistent read.
+   */
+  private Optional<AttributeValue> getEventuallyConsistentRefValue(
+      Project.NameKey project,
+      String refName,
+      Operation operation,
+      boolean sheddable,
+      Predicate<AttributeValue> trusted) {
+    metrics.incrementEventuallyConsistentReads(operation, 1);
+    Optional<AttributeValue> refValue =
+        getRefValueFromRefsTable(project, refName, sheddable, false).filter(trusted);
+    if (!refValue.isPresent()) {
+      metrics.incrementStrongReadFallbacks(operation, 1);
+    }
+    return refValue;
+  }
+
+  private Optional<AttributeValue> getRefValueFromDynamoDB(
+      Project.NameKey project, String refName, boolean sheddable) {
+    Optional<AttributeValue> refValue =
+        getRefValueFromRefsTable(project, refName, sheddable, true);
+    if (!refValue.isPresent()) {
+      refValue = getMigratedRefValue(project, refName);
+    }
+    return refValue;
+  }
+
+  /**
+   * Reads a ref from the refs table. Concurrent reads of the same ref share a single {@code
+   * GetItem} call.
+   */
+  private Optional<AttributeValue> getRefValueFromRefsTable(
+      Project.NameKey project, String refName, boolean sheddable, boolean consistentRead) {
+    return refReads.get(
+        new RefRead(pathFor(project, refName), sheddable, consistentRead),
+        () -> doGetRefValueFromRefsTable(project, refName, sheddable, consistentRead));
+  }
+
+  private Optional<AttributeValue> doGetRefValueFromRefsTable(
+      Project.NameKey project, String refName, boolean sheddable, boolean consistentRead) {
+    return getItemFromRefsTable(project, refName, sheddable, consistentRead)
+        .map(item -> item.get(REF_DB_VALUE_KEY));
+  }
+
+  private Optional<Map<String, AttributeValue>> getItemFromRefsTable(
+      Project.NameKey project, String refName, boolean sheddable, boolean consistentRead) {
+    Map<String, AttributeValue> key = keySchema.keyOf(project, refName);
+    // Sheddable reads are left out of the batches, so that the rate limiter can drop them alone
+    if (refReadBatcher.isPresent() && !sheddable && consistentRead) {
+      return refReadBatcher.get().get(key);
+    }
+
+    // Each attempt sends its own request, as the request handlers keep their state in it
+    GetItemResult result =
+        hedgedReads.read(
+            () -> {
+              GetItemRequest getItemRequest =
+                  new GetItemRequest()
+                      .withTableName(configuration.getRefsDbTableName())
+                      .withKey(key)
+                      .withConsistentRead(consistentRead);
+              if (sheddable) {
+                getItemRequest.addHandlerContext(DynamoDBRateLimitingHandler.SHEDDABLE, true);
+              }
+              return dynamoDBClient.getItem(getItemRequest);
+            });
+    return exists(result) ? Optional.of(result.getItem()) : Optional.empty();
+  }
+
+  private Optional<AttributeValue> getMigratedRefValue(Project.NameKey project, String refName) {
+    return migrateFromLegacyTable(project, refName)
+        ? getRefValueFromRefsTable(project, refName, false, true)
+        : Optional.empty();
+  }
+
+  /**
+   * Moves a ref from the legacy refs table, when one is configured, to the refs table. The ref is
+   * copied only if it is not in the refs table yet, which is authoritative, and is then removed
+   * from the legacy refs table so that the migration converges.
+   *
+   * @return true if the ref was found in the legacy refs table.
+   */
+  private boolean migrateFromLegacyTable(Project.NameKey project, String refName) {
+    Optional<String> legacyTableName = configuration.getLegacyRefsDbTableName();
+    if (!legacyTableName.isPresent()) {
+      return false;
+    }
+
+    Map<String, AttributeValue> legacyKey = RefsDbKeySchema.REF_PATH.keyOf(project, refName);
+    GetItemResult legacyResult = dynamoDBClient.getItem(legacyTableName.get(), legacyKey, true);
+    if (!exists(legacyResult)) {
+      return false;
+    }
+
+    Map<String, AttributeValue> item = new HashMap<>(keySchema.keyOf(project, refName));
+    item.put(REF_DB_VALUE_KEY, legacyResult.getItem().get(REF_DB_VALUE_KEY));
+    try {
+      dynamoDBClient.putItem(
+          new PutItemRequest()
+              .withTableName(configuration.getRefsDbTableName())
+              .withItem(item)
+              .withConditionExpression(
+                  String.format("attribute_not_exists(%s)", keySchema.hashKeyName())));
+      logger.atFine().log(
+          "Migrated %s from legacy refs table '%s'",
+          pathFor(project, refName), legacyTableName.get());
+    } catch (ConditionalCheckFailedException e) {
+      logger.atFine().log(
+          "%s was already migrated from legacy refs table '%s'",
+          pathFor(project, refName), legacyTableName.get());
+    }
+    dynamoDBClient.deleteItem(legacyTableName.get(), legacyKey);
+    return true;
+  }
+
+  private Map<String, AttributeValue> batchGetRefValuesFromDynamoDB(
+      Project.NameKey project, List<String> refNames, boolean consistentRead)
+      throws InterruptedException {
+    Map<String, AttributeValue> valuesByRefName = new HashMap<>();
+    for (Map<String, AttributeValue> item :
+        batchGetItems(
+            refNames.stream().map(refName -> keySchema.keyOf(project, refName)).collect(toList()),
+            consistentRead)) {
+      valuesByRefName.put(keySchema.refNameOf(project, item), item.get(REF_DB_VALUE_KEY));
+    }
+    return valuesByRefName;
+  }
+
+  /** Loads a batch of reads gathered from concurrent threads, possibly of different projects. */
+  private Map<Map<String, AttributeValue>, Map<String, AttributeValue>> batchGetItemsByKey(
+      Set<Map<String, AttributeValue>> keys) throws InterruptedException {
+    metrics.recordReadBatchSize(keys.size());
+    Set<String> keyNames =
+        keySchema.keySchema().stream().map(KeySchemaElement::getAttributeName).collect(toSet());
+    Map<Map<String, AttributeValue>, Map<String, AttributeValue>> itemsByKey = new HashMap<>();
+    for (Map<String, AttributeValue> item : batchGetItems(keys, true)) {
+      itemsByKey.put(ImmutableMap.copyOf(Maps.filterKeys(item, keyNames::contains)), item);
+    }
+    return itemsByKey;
+  }
+
+  private List<Map<String, AttributeValue>> batchGetItems(
+      Collection<Map<String, AttributeValue>> keys, boolean consistentRead)
+      throws InterruptedException {
+    return batchGetItems(configuration.getRefsDbTableName(), keys, consistentRead);
+  }
+
+  private List<Map<String, AttributeValue>> batchGetItems(
+      String tableName, Collection<Map<String, AttributeValue>> keys, boolean consistentRead)
+      throws InterruptedException {
+    Map<String, KeysAndAttributes> requestItems =
+        ImmutableMap.of(
+            tableName, new KeysAndAttributes().withKeys(keys).withConsistentRead(consistentRead));
+
+    List<Map<String, AttributeValue>> items = new ArrayList<>(keys.size());
+    for (int attempt = 0; !requestItems.isEmpty(); attempt++) {
+      if (attempt > 0) {
+        if (attempt == MAX_BATCH_ATTEMPTS) {
+          throw new IllegalStateException(
+              String.format(
+                  "%d keys still unprocessed after %d BatchGetItem attempts",
+                  requestItems.get(tableName).getKeys().size(), attempt));
+        }
+        Thread.sleep(BATCH_RETRY_BASE_DELAY_MS << (attempt - 1));
+      }
+
+      BatchGetItemResult result =
+          dynamoDBClient.batchGetItem(new BatchGetItemRequest().withRequestItems(requestItems));
+      items.addAll(
+          firstNonNull(result.getResponses(), NO_BATCH_GET_RESPONSES)
+              .getOrDefault(tableName, Collections.emptyList()));
+      requestItems = firstNonNull(result.getUnprocessedKeys(), Collections.emptyMap());
+    }
+    return items;
+  }
+
+  private void batchDeleteFromDynamoDB(List<Map<String, AttributeValue>> keys)
+      throws InterruptedException {
+    batchWriteToDynamoDB(
+        keys.stream().map(key -> new WriteRequest(new DeleteRequest(key))).collect(toList()));
+  }
+
+  /**
+   * Applies up to {@value #MAX_BATCH_WRITE_ITEMS} writes to the refs table with {@code
+   * BatchWriteItem}, retrying the unprocessed ones with an exponential backoff.
+   */
+  void batchWriteToDynamoDB(List<WriteRequest> writeRequests) throws InterruptedException {
+    String tableName = configuration.getRefsDbTableName();
+    Map<String, List<WriteRequest>> requestItems = ImmutableMap.of(tableName, writeRequests);
+
+    for (int attempt = 0; !requestItems.isEmpty(); attempt++) {
+      if (attempt > 0) {
+        if (attempt == MAX_BATCH_ATTEMPTS) {
+          throw new IllegalStateException(
+              String.format(
+                  "%d writes still unprocessed after %d BatchWriteItem attempts",
+                  requestItems.get(tableName).size(), attempt));
+        }
+        Thread.sleep(BATCH_RETRY_BASE_DELAY_MS << (attempt - 1));
+      }
+
+      requestItems =
+          firstNonNull(
+              dynamoDBClient
+                  .batchWriteItem(new BatchWriteItemRequest().withRequestItems(requestItems))
+                  .getUnprocessedItems(),
+              Collections.emptyMap());
+    }
+  }
+
+  /**
+   * Puts up to {@value #MAX_TRANSACT_WRITE_ITEMS} items in the refs table with {@code
+   * TransactWriteItems}, each on the condition that its key is not in the refs table yet. When some
+   * of the keys are, the transaction is cancelled and sent again without them, so that the items
+   * written by other sites in the meantime are left untouched.
+   *
+   * @return the number of items put.
+   */
+  int transactPutIfAbsent(List<Map<String, AttributeValue>> items) throws InterruptedException {
+    String condition = String.format("attribute_not_exists(%s)", keySchema.hashKeyName());
+    List<Map<String, AttributeValue>> itemsToPut = items;
+    for (int attempt = 0; !itemsToPut.isEmpty(); attempt++) {
+      try {
+        dynamoDBClient.transactWriteItems(
+            new TransactWriteItemsRequest()
+                .withTransactItems(
+                    itemsToPut.stream()
+                        .map(
+                            item ->
+                                new TransactWriteItem()
+                                    .withPut(
+                                        new Put()
+                                            .withTableName(configuration.getRefsDbTableName())
+                                            .withItem(item)
+                                            .withConditionExpression(condition)))
+                        .collect(toList())));
+        return itemsToPut.size();
+      } catch (TransactionCanceledException e) {
+        List<CancellationReason> reasons =
+            firstNonNull(e.getCancellationReasons(), Collections.emptyList());
+        List<Map<String, AttributeValue>> absentItems = new ArrayList<>();
+        // Cancellation reasons are listed in the same order as the transaction items
+        for (int i = 0; i < itemsToPut.size(); i++) {
+          if (i >= reasons.size() || !CONDITIONAL_CHECK_FAILED.equals(reasons.get(i).getCode())) {
+            absentItems.add(itemsToPut.get(i));
+          }
+        }
+        if (absentItems.size() == itemsToPut.size()) {
+          // Cancelled for another reason, e.g. a conflicting transaction
+          if (attempt + 1 == MAX_BATCH_ATTEMPTS) {
+            throw e;
+          }
+          Thread.sleep(BATCH_RETRY_BASE_DELAY_MS << attempt);
+        }
+        itemsToPut = absentItems;
+      }
+    }
+    return 0;
+  }
+
+  /** Identifies the reads of a ref that can share a single call. */
+  static class RefRead {
+    final String refPath;
+    // Sheddable reads can be dropped by the rate limiter, so they are never shared with the others
+    final boolean sheddable;
+    final boolean consistentRead;
+
+    RefRead(String refPath, boolean sheddable, boolean consistentRead) {
+      this.refPath = refPath;
+      this.sheddable = sheddable;
+      this.consistentRead = consistentRead;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof RefRead)) {
+        return false;
+      }
+      RefRead other = (RefRead) o;
+      return refPath.equals(other.refPath)
+          && sheddable == other.sheddable
+          && consistentRead == other.consistentRead;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(refPath, sheddable, consistentRead);
+    }
+  }
+
+  /** A lock whose release cannot fail. */
+  private interface RefDbLock extends AutoCloseable {
+    @Override
+    void close();
   }
 
   private boolean exists(GetItemResult result) {
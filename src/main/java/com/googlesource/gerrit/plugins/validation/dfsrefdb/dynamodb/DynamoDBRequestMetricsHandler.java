@@ -0,0 +1,180 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsResult;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects the metrics of the individual DynamoDB requests issued through the AWS SDK v1 client,
+ * both by the refs database and by the lock client: retries, throttling and consumed capacity.
+ */
+@Singleton
+class DynamoDBRequestMetricsHandler extends RequestHandler2 {
+  private static final HandlerContextKey<Integer> ATTEMPTS =
+      new HandlerContextKey<>("RefDbRequestAttempts");
+  static final ImmutableSet<String> THROTTLING_ERROR_CODES =
+      ImmutableSet.of(
+          "ProvisionedThroughputExceededException", "RequestLimitExceeded", "ThrottlingException");
+
+  private final RefDbMetrics metrics;
+
+  @Inject
+  DynamoDBRequestMetricsHandler(RefDbMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public AmazonWebServiceRequest beforeExecution(AmazonWebServiceRequest request) {
+    if (request instanceof GetItemRequest) {
+      ((GetItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+    } else if (request instanceof BatchGetItemRequest) {
+      ((BatchGetItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+    } else if (request instanceof QueryRequest) {
+      ((QueryRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+    } else if (request instanceof ScanRequest) {
+      ((ScanRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+    } else if (request instanceof PutItemRequest) {
+      ((PutItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+    } else if (request instanceof UpdateItemRequest) {
+      ((UpdateItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+    } else if (request instanceof DeleteItemRequest) {
+      ((DeleteItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+    } else if (request instanceof BatchWriteItemRequest) {
+      ((BatchWriteItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+    } else if (request instanceof TransactWriteItemsRequest) {
+      ((TransactWriteItemsRequest) request)
+          .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+    }
+    return request;
+  }
+
+  @Override
+  public void beforeAttempt(HandlerBeforeAttemptContext context) {
+    Request<?> request = context.getRequest();
+    Integer attempts = request.getHandlerContext(ATTEMPTS);
+    if (attempts != null) {
+      metrics.incrementRequestRetries(requestName(request));
+    }
+    request.addHandlerContext(ATTEMPTS, attempts == null ? 1 : attempts + 1);
+  }
+
+  @Override
+  public void afterAttempt(HandlerAfterAttemptContext context) {
+    Exception e = context.getException();
+    if (e instanceof AmazonServiceException
+        && THROTTLING_ERROR_CODES.contains(((AmazonServiceException) e).getErrorCode())) {
+      metrics.incrementRequestsThrottled(requestName(context.getRequest()));
+    }
+  }
+
+  @Override
+  public void afterResponse(Request<?> request, Response<?> response) {
+    String requestName = requestName(request);
+    Object result = response.getAwsResponse();
+    if (result instanceof GetItemResult) {
+      addConsumedReadCapacity(requestName, ((GetItemResult) result).getConsumedCapacity());
+    } else if (result instanceof BatchGetItemResult) {
+      addConsumedReadCapacity(requestName, ((BatchGetItemResult) result).getConsumedCapacity());
+    } else if (result instanceof QueryResult) {
+      addConsumedReadCapacity(requestName, ((QueryResult) result).getConsumedCapacity());
+    } else if (result instanceof ScanResult) {
+      addConsumedReadCapacity(requestName, ((ScanResult) result).getConsumedCapacity());
+    } else if (result instanceof PutItemResult) {
+      addConsumedWriteCapacity(requestName, ((PutItemResult) result).getConsumedCapacity());
+    } else if (result instanceof UpdateItemResult) {
+      addConsumedWriteCapacity(requestName, ((UpdateItemResult) result).getConsumedCapacity());
+    } else if (result instanceof DeleteItemResult) {
+      addConsumedWriteCapacity(requestName, ((DeleteItemResult) result).getConsumedCapacity());
+    } else if (result instanceof BatchWriteItemResult) {
+      addConsumedWriteCapacity(requestName, ((BatchWriteItemResult) result).getConsumedCapacity());
+    } else if (result instanceof TransactWriteItemsResult) {
+      addConsumedWriteCapacity(
+          requestName, ((TransactWriteItemsResult) result).getConsumedCapacity());
+    }
+  }
+
+  private void addConsumedReadCapacity(String requestName, ConsumedCapacity consumedCapacity) {
+    addConsumedReadCapacity(requestName, Collections.singletonList(consumedCapacity));
+  }
+
+  private void addConsumedReadCapacity(
+      String requestName, List<ConsumedCapacity> consumedCapacities) {
+    metrics.addConsumedReadCapacity(requestName, capacityUnits(consumedCapacities));
+  }
+
+  private void addConsumedWriteCapacity(String requestName, ConsumedCapacity consumedCapacity) {
+    addConsumedWriteCapacity(requestName, Collections.singletonList(consumedCapacity));
+  }
+
+  private void addConsumedWriteCapacity(
+      String requestName, List<ConsumedCapacity> consumedCapacities) {
+    metrics.addConsumedWriteCapacity(requestName, capacityUnits(consumedCapacities));
+  }
+
+  private static double capacityUnits(List<ConsumedCapacity> consumedCapacities) {
+    double capacityUnits = 0;
+    if (consumedCapacities != null) {
+      for (ConsumedCapacity consumedCapacity : consumedCapacities) {
+        if (consumedCapacity != null && consumedCapacity.getCapacityUnits() != null) {
+          capacityUnits += consumedCapacity.getCapacityUnits();
+        }
+      }
+    }
+    return capacityUnits;
+  }
+
+  private static String requestName(Request<?> request) {
+    return requestName(request.getOriginalRequest());
+  }
+
+  static String requestName(AmazonWebServiceRequest request) {
+    String requestClass = request.getClass().getSimpleName();
+    return requestClass.endsWith("Request")
+        ? requestClass.substring(0, requestClass.length() - "Request".length())
+        : requestClass;
+  }
+}
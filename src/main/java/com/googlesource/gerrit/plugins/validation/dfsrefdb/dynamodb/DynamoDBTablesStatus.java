@@ -0,0 +1,82 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.inject.Singleton;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Whether the DynamoDB tables have been verified to be active by {@link DynamoDBLifeCycleManager}.
+ * The global ref-db is not ready until then, while the failed verifications are retried.
+ */
+@Singleton
+class DynamoDBTablesStatus {
+  private final CompletableFuture<Void> active = new CompletableFuture<>();
+  private volatile Throwable lastFailure;
+
+  @VisibleForTesting
+  static DynamoDBTablesStatus active() {
+    DynamoDBTablesStatus status = new DynamoDBTablesStatus();
+    status.markActive();
+    return status;
+  }
+
+  void markActive() {
+    active.complete(null);
+  }
+
+  /** Records the failure of a verification, which is retried: the tables may still be active. */
+  void recordFailure(Throwable cause) {
+    lastFailure = cause;
+  }
+
+  boolean isActive() {
+    return active.isDone();
+  }
+
+  /**
+   * Waits for the tables to be active.
+   *
+   * @throws GlobalRefDbSystemError when the tables are not active within the timeout.
+   */
+  void awaitActive(long timeout, TimeUnit unit) throws GlobalRefDbSystemError {
+    if (isActive()) {
+      return;
+    }
+
+    try {
+      active.get(timeout, unit);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GlobalRefDbSystemError("Interrupted while waiting for the DynamoDB tables", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("The DynamoDB tables status cannot fail", e);
+    } catch (TimeoutException e) {
+      Throwable failure = lastFailure;
+      if (failure != null) {
+        throw new GlobalRefDbSystemError(
+            "The DynamoDB tables could not be verified yet, the global ref-db is not ready",
+            failure);
+      }
+      throw new GlobalRefDbSystemError(
+          "The DynamoDB tables are not active yet, the global ref-db is not ready", e);
+    }
+  }
+}
@@ -0,0 +1,106 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRequestMetricsHandler.THROTTLING_ERROR_CODES;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDbAsyncRequestMetricsInterceptor.requestName;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.AbortedException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttribute;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+
+/**
+ * Fails the requests of the AWS SDK v2 client of {@link DynamoDBAsyncRefDatabase} fast, without
+ * sending them, while the {@link CircuitBreaker} of {@link DynamoDBCircuitBreakerHandler} is open.
+ * The requests of both clients count towards the same failure rate.
+ */
+@Singleton
+class DynamoDbAsyncCircuitBreakerInterceptor implements ExecutionInterceptor {
+  private static final ExecutionAttribute<CircuitBreaker.Permit> PERMIT =
+      new ExecutionAttribute<>("RefDbCircuitBreakerPermit");
+  private static final ExecutionAttribute<Long> START_NANOS =
+      new ExecutionAttribute<>("RefDbCircuitBreakerStartNanos");
+
+  private final Optional<CircuitBreaker> circuitBreaker;
+  private final RefDbMetrics metrics;
+
+  @Inject
+  DynamoDbAsyncCircuitBreakerInterceptor(
+      DynamoDBCircuitBreakerHandler circuitBreakerHandler, RefDbMetrics metrics) {
+    this.circuitBreaker = circuitBreakerHandler.circuitBreaker();
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void beforeExecution(
+      Context.BeforeExecution context, ExecutionAttributes executionAttributes) {
+    if (!circuitBreaker.isPresent()) {
+      return;
+    }
+
+    CircuitBreaker.Permit permit = circuitBreaker.get().tryAcquire();
+    if (permit == CircuitBreaker.Permit.REJECTED) {
+      String requestName = requestName(context.request());
+      metrics.incrementCircuitBreakerRejected(requestName);
+      throw SdkClientException.create(
+          String.format("%s failed fast: DynamoDB circuit breaker is open", requestName));
+    }
+    executionAttributes.putAttribute(PERMIT, permit);
+    executionAttributes.putAttribute(START_NANOS, System.nanoTime());
+  }
+
+  @Override
+  public void afterExecution(
+      Context.AfterExecution context, ExecutionAttributes executionAttributes) {
+    onResult(executionAttributes, false);
+  }
+
+  @Override
+  public void onExecutionFailure(
+      Context.FailedExecution context, ExecutionAttributes executionAttributes) {
+    onResult(executionAttributes, isDynamoDBFailure(context.exception()));
+  }
+
+  private void onResult(ExecutionAttributes executionAttributes, boolean failed) {
+    CircuitBreaker.Permit permit = executionAttributes.getAttribute(PERMIT);
+    if (permit == null) {
+      return;
+    }
+    circuitBreaker
+        .get()
+        .onResult(
+            permit, failed, System.nanoTime() - executionAttributes.getAttribute(START_NANOS));
+  }
+
+  private static boolean isDynamoDBFailure(Throwable e) {
+    if (e instanceof AwsServiceException) {
+      AwsServiceException serviceException = (AwsServiceException) e;
+      return serviceException.statusCode() >= 500
+          || (serviceException.awsErrorDetails() != null
+              && THROTTLING_ERROR_CODES.contains(serviceException.awsErrorDetails().errorCode()));
+    }
+    // A cancelled request, e.g. a hedged read that lost the race, says nothing about the health of
+    // DynamoDB
+    return !(e instanceof AbortedException || e instanceof CancellationException);
+  }
+}
@@ -0,0 +1,141 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import java.time.Duration;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.core.retry.backoff.BackoffStrategy;
+import software.amazon.awssdk.core.retry.backoff.FullJitterBackoffStrategy;
+import software.amazon.awssdk.core.retry.conditions.TokenBucketExceptionCostFunction;
+import software.amazon.awssdk.core.retry.conditions.TokenBucketRetryCondition;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClientBuilder;
+
+/**
+ * Provides the AWS SDK v2 client of {@link DynamoDBAsyncRefDatabase}.
+ *
+ * <p>The client, and its Netty event loops, are only created on the first request of an enabled
+ * {@link DynamoDBAsyncRefDatabase}. It is configured with the same connection pool, timeouts,
+ * retries and request handlers as the AWS SDK v1 client of {@link AmazonDynamoDBProvider}.
+ */
+@Singleton
+class DynamoDbAsyncClientProvider implements Provider<DynamoDbAsyncClient>, LifecycleListener {
+  private static final int RETRY_COST = 5;
+
+  private final Configuration configuration;
+  private final DynamoDbAsyncRateLimitingInterceptor rateLimitingInterceptor;
+  private final DynamoDbAsyncCircuitBreakerInterceptor circuitBreakerInterceptor;
+  private final DynamoDbAsyncRequestMetricsInterceptor requestMetricsInterceptor;
+  private DynamoDbAsyncClient client;
+
+  @Inject
+  DynamoDbAsyncClientProvider(
+      Configuration configuration,
+      DynamoDbAsyncRateLimitingInterceptor rateLimitingInterceptor,
+      DynamoDbAsyncCircuitBreakerInterceptor circuitBreakerInterceptor,
+      DynamoDbAsyncRequestMetricsInterceptor requestMetricsInterceptor) {
+    this.configuration = configuration;
+    this.rateLimitingInterceptor = rateLimitingInterceptor;
+    this.circuitBreakerInterceptor = circuitBreakerInterceptor;
+    this.requestMetricsInterceptor = requestMetricsInterceptor;
+  }
+
+  @Override
+  public synchronized DynamoDbAsyncClient get() {
+    if (client == null) {
+      DynamoDbAsyncClientBuilder builder =
+          DynamoDbAsyncClient.builder()
+              .credentialsProvider(DefaultCredentialsProvider.create())
+              .httpClientBuilder(httpClientBuilder())
+              .overrideConfiguration(overrideConfiguration());
+      configuration.getRegion().ifPresent(builder::region);
+      configuration.getEndpoint().ifPresent(builder::endpointOverride);
+      client = builder.build();
+    }
+    return client;
+  }
+
+  private NettyNioAsyncHttpClient.Builder httpClientBuilder() {
+    NettyNioAsyncHttpClient.Builder builder =
+        NettyNioAsyncHttpClient.builder()
+            .maxConcurrency(configuration.getMaxConnections())
+            .connectionTimeout(configuration.getConnectionTimeout())
+            .readTimeout(configuration.getSocketTimeout())
+            .writeTimeout(configuration.getSocketTimeout())
+            .connectionMaxIdleTime(configuration.getConnectionMaxIdle())
+            .tcpKeepAlive(configuration.getTcpKeepAlive());
+    Duration connectionTtl = configuration.getConnectionTtl();
+    if (!connectionTtl.isZero()) {
+      builder.connectionTimeToLive(connectionTtl);
+    }
+    return builder;
+  }
+
+  private ClientOverrideConfiguration overrideConfiguration() {
+    BackoffStrategy backoffStrategy =
+        FullJitterBackoffStrategy.builder()
+            .baseDelay(configuration.getRetryBaseDelay())
+            .maxBackoffTime(configuration.getMaxRetryBackoff())
+            .build();
+    ClientOverrideConfiguration.Builder builder =
+        ClientOverrideConfiguration.builder()
+            .retryPolicy(
+                RetryPolicy.builder()
+                    .numRetries(configuration.getMaxErrorRetries())
+                    .backoffStrategy(backoffStrategy)
+                    .throttlingBackoffStrategy(backoffStrategy)
+                    // Same retry budget as the AWS SDK v1 client, where each retry costs 5
+                    // tokens out of a bucket of 5 times the budget.
+                    .retryCapacityCondition(
+                        TokenBucketRetryCondition.builder()
+                            .tokenBucketSize(configuration.getRetryBudget() * RETRY_COST)
+                            .exceptionCost(
+                                TokenBucketExceptionCostFunction.builder()
+                                    .throttlingExceptionCost(RETRY_COST)
+                                    .defaultExceptionCost(RETRY_COST))
+                            .build())
+                    .build())
+            .addExecutionInterceptor(circuitBreakerInterceptor)
+            .addExecutionInterceptor(rateLimitingInterceptor)
+            .addExecutionInterceptor(requestMetricsInterceptor);
+    Duration requestTimeout = configuration.getRequestTimeout();
+    if (!requestTimeout.isZero()) {
+      builder.apiCallAttemptTimeout(requestTimeout);
+    }
+    Duration clientExecutionTimeout = configuration.getClientExecutionTimeout();
+    if (!clientExecutionTimeout.isZero()) {
+      builder.apiCallTimeout(clientExecutionTimeout);
+    }
+    return builder.build();
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public synchronized void stop() {
+    if (client != null) {
+      client.close();
+      client = null;
+    }
+  }
+}
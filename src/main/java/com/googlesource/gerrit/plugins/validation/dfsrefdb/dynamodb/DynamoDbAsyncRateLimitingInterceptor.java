@@ -0,0 +1,81 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRequestMetricsHandler.THROTTLING_ERROR_CODES;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Optional;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.SdkRequest;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+/**
+ * Limits the rate of the requests of the AWS SDK v2 client of {@link DynamoDBAsyncRefDatabase} with
+ * the rate limiters of {@link DynamoDBRateLimitingHandler}, so that the requests of both clients
+ * share the same limits.
+ *
+ * <p>Each attempt waits for the limiter before being sent. Unlike with the AWS SDK v1 client, no
+ * request is dropped when overloaded, and only the requests that fail because they were throttled
+ * slow the limiter down, as the AWS SDK v2 does not expose the error of the attempts that are
+ * retried.
+ */
+@Singleton
+class DynamoDbAsyncRateLimitingInterceptor implements ExecutionInterceptor {
+  private final DynamoDBRateLimitingHandler rateLimitingHandler;
+
+  @Inject
+  DynamoDbAsyncRateLimitingInterceptor(DynamoDBRateLimitingHandler rateLimitingHandler) {
+    this.rateLimitingHandler = rateLimitingHandler;
+  }
+
+  @Override
+  public void beforeTransmission(
+      Context.BeforeTransmission context, ExecutionAttributes executionAttributes) {
+    rateLimiterOf(context.request()).ifPresent(AdaptiveRateLimiter::acquire);
+  }
+
+  @Override
+  public void afterExecution(
+      Context.AfterExecution context, ExecutionAttributes executionAttributes) {
+    rateLimiterOf(context.request()).ifPresent(AdaptiveRateLimiter::onSuccess);
+  }
+
+  @Override
+  public void onExecutionFailure(
+      Context.FailedExecution context, ExecutionAttributes executionAttributes) {
+    Throwable e = context.exception();
+    if (e instanceof AwsServiceException
+        && ((AwsServiceException) e).awsErrorDetails() != null
+        && THROTTLING_ERROR_CODES.contains(
+            ((AwsServiceException) e).awsErrorDetails().errorCode())) {
+      rateLimiterOf(context.request()).ifPresent(AdaptiveRateLimiter::onThrottled);
+    }
+  }
+
+  private Optional<AdaptiveRateLimiter> rateLimiterOf(SdkRequest request) {
+    if (request instanceof GetItemRequest) {
+      return rateLimitingHandler.rateLimiterOf(((GetItemRequest) request).tableName(), false);
+    } else if (request instanceof UpdateItemRequest) {
+      return rateLimitingHandler.rateLimiterOf(((UpdateItemRequest) request).tableName(), true);
+    }
+    return Optional.empty();
+  }
+}
@@ -0,0 +1,122 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRequestMetricsHandler.THROTTLING_ERROR_CODES;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.SdkRequest;
+import software.amazon.awssdk.core.SdkResponse;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttribute;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.services.dynamodb.model.ConsumedCapacity;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.ReturnConsumedCapacity;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+
+/**
+ * Collects the metrics of the individual DynamoDB requests issued through the AWS SDK v2 client of
+ * {@link DynamoDBAsyncRefDatabase}, like {@link DynamoDBRequestMetricsHandler} does for the AWS SDK
+ * v1 client: retries, throttling and consumed capacity.
+ *
+ * <p>Only the requests that fail because they were throttled are counted as throttled, as the AWS
+ * SDK v2 does not expose the error of the attempts that are retried.
+ */
+@Singleton
+class DynamoDbAsyncRequestMetricsInterceptor implements ExecutionInterceptor {
+  private static final ExecutionAttribute<Integer> ATTEMPTS =
+      new ExecutionAttribute<>("RefDbRequestAttempts");
+
+  private final RefDbMetrics metrics;
+
+  @Inject
+  DynamoDbAsyncRequestMetricsInterceptor(RefDbMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public SdkRequest modifyRequest(
+      Context.ModifyRequest context, ExecutionAttributes executionAttributes) {
+    SdkRequest request = context.request();
+    if (request instanceof GetItemRequest) {
+      return ((GetItemRequest) request)
+          .toBuilder()
+          .returnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+          .build();
+    }
+    if (request instanceof UpdateItemRequest) {
+      return ((UpdateItemRequest) request)
+          .toBuilder()
+          .returnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+          .build();
+    }
+    return request;
+  }
+
+  @Override
+  public void beforeTransmission(
+      Context.BeforeTransmission context, ExecutionAttributes executionAttributes) {
+    Integer attempts = executionAttributes.getAttribute(ATTEMPTS);
+    if (attempts != null) {
+      metrics.incrementRequestRetries(requestName(context.request()));
+    }
+    executionAttributes.putAttribute(ATTEMPTS, attempts == null ? 1 : attempts + 1);
+  }
+
+  @Override
+  public void afterExecution(
+      Context.AfterExecution context, ExecutionAttributes executionAttributes) {
+    String requestName = requestName(context.request());
+    SdkResponse response = context.response();
+    if (response instanceof GetItemResponse) {
+      metrics.addConsumedReadCapacity(
+          requestName, capacityUnits(((GetItemResponse) response).consumedCapacity()));
+    } else if (response instanceof UpdateItemResponse) {
+      metrics.addConsumedWriteCapacity(
+          requestName, capacityUnits(((UpdateItemResponse) response).consumedCapacity()));
+    }
+  }
+
+  @Override
+  public void onExecutionFailure(
+      Context.FailedExecution context, ExecutionAttributes executionAttributes) {
+    Throwable e = context.exception();
+    if (e instanceof AwsServiceException
+        && ((AwsServiceException) e).awsErrorDetails() != null
+        && THROTTLING_ERROR_CODES.contains(
+            ((AwsServiceException) e).awsErrorDetails().errorCode())) {
+      metrics.incrementRequestsThrottled(requestName(context.request()));
+    }
+  }
+
+  private static double capacityUnits(ConsumedCapacity consumedCapacity) {
+    return consumedCapacity == null || consumedCapacity.capacityUnits() == null
+        ? 0
+        : consumedCapacity.capacityUnits();
+  }
+
+  static String requestName(SdkRequest request) {
+    String requestClass = request.getClass().getSimpleName();
+    return requestClass.endsWith("Request")
+        ? requestClass.substring(0, requestClass.length() - "Request".length())
+        : requestClass;
+  }
+}
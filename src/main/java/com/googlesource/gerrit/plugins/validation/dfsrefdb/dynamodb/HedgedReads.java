@@ -0,0 +1,333 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Sends a second, identical, read when the first one has not completed after a delay, and returns
+ * the first response. This cuts the tail latency caused by the occasional slow DynamoDB request.
+ *
+ * <p>Both reads are sent by a pool of as many threads as {@code maxConnections}, as more reads in
+ * flight would only wait for a connection, while the calling thread waits for the first response.
+ * The read that loses the race is then cancelled, by interrupting its thread. When all the threads
+ * of the pool are busy, the read is sent by the calling thread, without hedging. The non-blocking
+ * reads of {@link DynamoDBAsyncRefDatabase} are hedged by a timer instead, see {@link
+ * #readAsync(Supplier)}.
+ *
+ * <p>The delay is a percentile of the latency of the recent reads, so that only the slowest reads
+ * are hedged, and never less than a minimum delay. The hedged reads are further capped to a
+ * percentage of all the reads, so that hedging cannot double the load when DynamoDB slows down as a
+ * whole.
+ */
+@Singleton
+class HedgedReads implements LifecycleListener {
+  @VisibleForTesting static final int MIN_SAMPLES = 100;
+  private static final int WINDOW_SIZE = 1000;
+  private static final int DELAY_UPDATE_INTERVAL = 100;
+  private static final double MAX_HEDGE_BURST = 10;
+
+  private final int percentile;
+  private final long minDelayNanos;
+  private final double hedgeRatio;
+  private final RefDbMetrics metrics;
+  private final ExecutorService executor;
+  private final ScheduledExecutorService timer;
+
+  private final long[] latencies = new long[WINDOW_SIZE];
+  private int nextLatency;
+  private int samples;
+  private int samplesSinceDelayUpdate;
+  private double hedgeBudget;
+  private volatile long hedgeDelayNanos = Long.MAX_VALUE;
+
+  @Inject
+  HedgedReads(Configuration configuration, RefDbMetrics metrics) {
+    this(
+        configuration.getHedgedReadPercentile(),
+        configuration.getHedgedReadMinDelay(),
+        configuration.getMaxHedgedReadsPercent(),
+        configuration.getMaxConnections(),
+        metrics);
+  }
+
+  @VisibleForTesting
+  HedgedReads(
+      int percentile,
+      Duration minDelay,
+      int maxHedgedReadsPercent,
+      int maxThreads,
+      RefDbMetrics metrics) {
+    this.percentile = percentile;
+    this.minDelayNanos = minDelay.toNanos();
+    this.hedgeRatio = maxHedgedReadsPercent / 100.0;
+    this.metrics = metrics;
+    // No queue: a read waiting for a thread is better sent by the calling thread straight away
+    this.executor =
+        isEnabled()
+            ? new ThreadPoolExecutor(
+                0,
+                maxThreads,
+                60,
+                TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                new ThreadFactoryBuilder()
+                    .setNameFormat("dynamodb-hedged-reads-%d")
+                    .setDaemon(true)
+                    .build())
+            : null;
+    this.timer =
+        isEnabled()
+            ? Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                    .setNameFormat("dynamodb-hedged-reads-timer-%d")
+                    .setDaemon(true)
+                    .build())
+            : null;
+  }
+
+  boolean isEnabled() {
+    return percentile > 0;
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      timer.shutdownNow();
+    }
+  }
+
+  /**
+   * @param read sends the read; called once per attempt, so that each attempt sends its own
+   *     request.
+   * @return the first response of the read or of the hedged read.
+   */
+  <T> T read(Supplier<T> read) {
+    if (!isEnabled()) {
+      return read.get();
+    }
+
+    CompletableFuture<T> result = new CompletableFuture<>();
+    Attempts attempts = new Attempts();
+    Future<?> firstRead;
+    try {
+      firstRead = send(read, result, attempts, false);
+    } catch (RejectedExecutionException e) {
+      // All the threads are busy
+      long start = System.nanoTime();
+      T response = read.get();
+      recordLatency(System.nanoTime() - start);
+      return response;
+    }
+
+    acquireHedgeBudget();
+    Future<?> hedgedRead = null;
+    try {
+      long delayNanos = hedgeDelayNanos;
+      if (delayNanos == Long.MAX_VALUE) {
+        return result.get();
+      }
+
+      try {
+        return result.get(delayNanos, TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        if (tryHedge()) {
+          hedgedRead = hedge(read, result, attempts);
+        }
+        return result.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GlobalRefDbSystemError("Interrupted while waiting for a DynamoDB read", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new GlobalRefDbSystemError("DynamoDB read failed", e);
+    } finally {
+      // Cancel the read that lost the race
+      firstRead.cancel(true);
+      if (hedgedRead != null) {
+        hedgedRead.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Like {@link #read(Supplier)}, for a read that does not block: the hedged read is sent by a
+   * timer when the first read has not completed after the delay, and the read that loses the race
+   * is cancelled.
+   *
+   * @param read sends the read; called once per attempt, so that each attempt sends its own
+   *     request.
+   * @return the first response of the read or of the hedged read.
+   */
+  <T> CompletableFuture<T> readAsync(Supplier<CompletableFuture<T>> read) {
+    if (!isEnabled()) {
+      return read.get();
+    }
+
+    CompletableFuture<T> result = new CompletableFuture<>();
+    Attempts attempts = new Attempts();
+    CompletableFuture<T> firstRead = sendAsync(read, result, attempts, false);
+    result.whenComplete((response, e) -> firstRead.cancel(true));
+
+    acquireHedgeBudget();
+    long delayNanos = hedgeDelayNanos;
+    if (delayNanos != Long.MAX_VALUE) {
+      ScheduledFuture<?> hedge =
+          timer.schedule(
+              () -> {
+                if (!result.isDone() && tryHedge()) {
+                  attempts.pending.incrementAndGet();
+                  metrics.incrementHedgedReads();
+                  CompletableFuture<T> hedgedRead = sendAsync(read, result, attempts, true);
+                  result.whenComplete((response, e) -> hedgedRead.cancel(true));
+                }
+              },
+              delayNanos,
+              TimeUnit.NANOSECONDS);
+      result.whenComplete((response, e) -> hedge.cancel(false));
+    }
+    return result;
+  }
+
+  private <T> CompletableFuture<T> sendAsync(
+      Supplier<CompletableFuture<T>> read,
+      CompletableFuture<T> result,
+      Attempts attempts,
+      boolean hedge) {
+    long start = System.nanoTime();
+    CompletableFuture<T> attempt;
+    try {
+      attempt = read.get();
+    } catch (RuntimeException e) {
+      attempt = new CompletableFuture<>();
+      attempt.completeExceptionally(e);
+    }
+    attempt.whenComplete(
+        (response, e) -> {
+          if (e == null) {
+            recordLatency(System.nanoTime() - start);
+            if (result.complete(response) && hedge) {
+              metrics.incrementHedgedReadWins();
+            }
+          } else {
+            attempts.failure = e;
+            attempts.failed(result);
+          }
+        });
+    // The attempt itself, so that cancelling it aborts the request
+    return attempt;
+  }
+
+  private <T> Future<?> hedge(Supplier<T> read, CompletableFuture<T> result, Attempts attempts) {
+    attempts.pending.incrementAndGet();
+    try {
+      Future<?> hedgedRead = send(read, result, attempts, true);
+      metrics.incrementHedgedReads();
+      return hedgedRead;
+    } catch (RejectedExecutionException e) {
+      // The first read may have failed in the meantime, counting on the hedged read
+      attempts.failed(result);
+      return null;
+    }
+  }
+
+  private <T> Future<?> send(
+      Supplier<T> read, CompletableFuture<T> result, Attempts attempts, boolean hedge) {
+    return executor.submit(
+        () -> {
+          long start = System.nanoTime();
+          try {
+            T response = read.get();
+            recordLatency(System.nanoTime() - start);
+            if (result.complete(response) && hedge) {
+              metrics.incrementHedgedReadWins();
+            }
+          } catch (RuntimeException e) {
+            attempts.failure = e;
+            attempts.failed(result);
+          }
+        });
+  }
+
+  /** The read fails only when none of the attempts sent succeeded. */
+  private static class Attempts {
+    final AtomicInteger pending = new AtomicInteger(1);
+    volatile Throwable failure;
+
+    void failed(CompletableFuture<?> result) {
+      if (pending.decrementAndGet() == 0) {
+        result.completeExceptionally(failure);
+      }
+    }
+  }
+
+  private synchronized void acquireHedgeBudget() {
+    hedgeBudget = Math.min(MAX_HEDGE_BURST, hedgeBudget + hedgeRatio);
+  }
+
+  private synchronized boolean tryHedge() {
+    if (hedgeBudget < 1) {
+      return false;
+    }
+    hedgeBudget -= 1;
+    return true;
+  }
+
+  private synchronized void recordLatency(long nanos) {
+    latencies[nextLatency] = nanos;
+    nextLatency = (nextLatency + 1) % WINDOW_SIZE;
+    samples = Math.min(samples + 1, WINDOW_SIZE);
+    if (++samplesSinceDelayUpdate >= DELAY_UPDATE_INTERVAL && samples >= MIN_SAMPLES) {
+      samplesSinceDelayUpdate = 0;
+      long[] sorted = Arrays.copyOf(latencies, samples);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile / 100.0 * samples) - 1;
+      hedgeDelayNanos = Math.max(minDelayNanos, sorted[Math.max(0, index)]);
+    }
+  }
+
+  @VisibleForTesting
+  long getHedgeDelayNanos() {
+    return hedgeDelayNanos;
+  }
+}
@@ -0,0 +1,111 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.gerrit.metrics.Timer0;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In-JVM locks keyed by refPath, taken before contending for the DynamoDB lock of a ref.
+ *
+ * <p>Threads of the same node racing for a ref queue up locally, in arrival order, so that only one
+ * of them at a time polls the lock table. Locks are created on demand and discarded as soon as no
+ * thread holds or waits for them; unlike striped locks, unrelated refs never contend.
+ */
+@Singleton
+class LocalRefLocks {
+  private final ConcurrentHashMap<String, RefLockState> locks = new ConcurrentHashMap<>();
+  private final RefDbMetrics metrics;
+
+  @Inject
+  LocalRefLocks(RefDbMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  LocalRefLock lock(String refPath, long timeout, TimeUnit unit)
+      throws InterruptedException, TimeoutException {
+    RefLockState refLock =
+        locks.compute(
+            refPath,
+            (path, existingLock) -> {
+              RefLockState lock = existingLock == null ? new RefLockState(path) : existingLock;
+              lock.users++;
+              return lock;
+            });
+
+    boolean locked = false;
+    try (Timer0.Context ctx = metrics.startLocalLockWait()) {
+      locked = refLock.permit.tryAcquire(timeout, unit);
+    } finally {
+      if (!locked) {
+        release(refLock);
+      }
+    }
+
+    if (!locked) {
+      metrics.incrementLocalLockTimeouts();
+      throw new TimeoutException(
+          String.format("Timed out after %d %s waiting for local lock", timeout, unit));
+    }
+    return new LocalRefLock(refLock);
+  }
+
+  @VisibleForTesting
+  int size() {
+    return locks.size();
+  }
+
+  private void release(RefLockState refLock) {
+    locks.computeIfPresent(refLock.refPath, (path, lock) -> --lock.users == 0 ? null : lock);
+  }
+
+  /** A hold of the lock of a ref, released once however many times it is closed. */
+  class LocalRefLock implements AutoCloseable {
+    private final RefLockState refLock;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private LocalRefLock(RefLockState refLock) {
+      this.refLock = refLock;
+    }
+
+    @Override
+    public void close() {
+      // Releasing twice would let two threads hold the lock
+      if (released.compareAndSet(false, true)) {
+        refLock.permit.release();
+        release(refLock);
+      }
+    }
+  }
+
+  private static class RefLockState {
+    private final String refPath;
+    // Not owned by a thread, so that a lock can be released by another thread than its holder.
+    private final Semaphore permit = new Semaphore(1, true);
+    // Threads holding or waiting for the lock, guarded by the locks map.
+    private int users;
+
+    private RefLockState(String refPath) {
+      this.refPath = refPath;
+    }
+  }
+}
@@ -0,0 +1,131 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.LockItem;
+import com.amazonaws.services.dynamodbv2.model.LockNotGrantedException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renews the leases of all the DynamoDB locks held by this node in a single scheduled pass.
+ *
+ * <p>Only the locks whose lease would otherwise expire before the next pass are renewed: most ref
+ * locks are released well within their lease and never cost a heartbeat, so that the writes to the
+ * locks table grow with the locks held for long rather than with the time.
+ */
+@Singleton
+class LockHeartbeats implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final long heartbeatPeriodNanos;
+  private final long renewAfterNanos;
+  private final RefDbMetrics metrics;
+  private final Ticker ticker;
+  // Locks held by this node, with the time their lease was last renewed
+  private final ConcurrentMap<LockItem, Long> heldLocks = new ConcurrentHashMap<>();
+  private ScheduledExecutorService scheduler;
+
+  @Inject
+  LockHeartbeats(Configuration configuration, RefDbMetrics metrics) {
+    this(
+        configuration.getLockLeaseDuration(),
+        configuration.getLockHeartbeatPeriod(),
+        metrics,
+        Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  LockHeartbeats(
+      Duration leaseDuration, Duration heartbeatPeriod, RefDbMetrics metrics, Ticker ticker) {
+    this.heartbeatPeriodNanos = heartbeatPeriod.toNanos();
+    // A lock not renewed by this pass must still be leased until the one after next.
+    this.renewAfterNanos = Math.max(0, leaseDuration.toNanos() - 2 * heartbeatPeriodNanos);
+    this.metrics = metrics;
+    this.ticker = ticker;
+  }
+
+  @Override
+  public synchronized void start() {
+    if (scheduler == null) {
+      scheduler =
+          Executors.newSingleThreadScheduledExecutor(
+              new ThreadFactoryBuilder()
+                  .setNameFormat("dynamodb-lock-heartbeats-%d")
+                  .setDaemon(true)
+                  .build());
+      scheduler.scheduleAtFixedRate(
+          this::renewExpiringLocks,
+          heartbeatPeriodNanos,
+          heartbeatPeriodNanos,
+          TimeUnit.NANOSECONDS);
+    }
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  void register(LockItem lockItem) {
+    heldLocks.put(lockItem, ticker.read());
+  }
+
+  void unregister(LockItem lockItem) {
+    heldLocks.remove(lockItem);
+  }
+
+  @VisibleForTesting
+  void renewExpiringLocks() {
+    long now = ticker.read();
+    for (Map.Entry<LockItem, Long> heldLock : heldLocks.entrySet()) {
+      if (now - heldLock.getValue() < renewAfterNanos) {
+        continue;
+      }
+
+      LockItem lockItem = heldLock.getKey();
+      try {
+        lockItem.sendHeartBeat();
+        metrics.incrementLockHeartbeats();
+        heldLocks.replace(lockItem, now);
+      } catch (LockNotGrantedException e) {
+        // Released in the meantime, or taken over by another node after its lease expired
+        if (heldLocks.remove(lockItem) != null) {
+          logger.atSevere().withCause(e).log(
+              "Lost the lock of %s before releasing it", lockItem.getPartitionKey());
+        }
+      } catch (RuntimeException e) {
+        logger.atWarning().withCause(e).log(
+            "Failed to renew the lock of %s, retrying in the next pass",
+            lockItem.getPartitionKey());
+      }
+    }
+  }
+}
@@ -0,0 +1,191 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Releases the DynamoDB locks in the background, so that a ref update completes without waiting for
+ * the round trip deleting its lock.
+ *
+ * <p>The releases are spread over single-threaded lanes by lock key, so that the releases of a key
+ * run in order. A failed release is retried on its lane with an exponential backoff, and given up
+ * after {@link #MAX_RELEASE_ATTEMPTS}, leaving the lock to expire with its lease. When {@code
+ * lockReleaseQueueSize} releases are already pending, locks are released by the calling thread.
+ */
+@Singleton
+class LockReleaser implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  @VisibleForTesting static final int MAX_RELEASE_ATTEMPTS = 5;
+  private static final long STOP_TIMEOUT_SECONDS = 10;
+
+  private final int queueSize;
+  private final long retryMinIntervalNanos;
+  private final long retryMaxIntervalNanos;
+  private final RefDbMetrics metrics;
+  private final ScheduledExecutorService[] lanes;
+  private final AtomicInteger pendingReleases = new AtomicInteger();
+
+  @Inject
+  LockReleaser(Configuration configuration, RefDbMetrics metrics) {
+    this(
+        configuration.getLockReleaseQueueSize(),
+        configuration.getLockReleaseThreads(),
+        configuration.getLockRetryMinInterval(),
+        configuration.getLockRetryMaxInterval(),
+        metrics);
+  }
+
+  @VisibleForTesting
+  LockReleaser(
+      int queueSize,
+      int threads,
+      Duration retryMinInterval,
+      Duration retryMaxInterval,
+      RefDbMetrics metrics) {
+    this.queueSize = queueSize;
+    this.retryMinIntervalNanos = retryMinInterval.toNanos();
+    this.retryMaxIntervalNanos = Math.max(retryMinIntervalNanos, retryMaxInterval.toNanos());
+    this.metrics = metrics;
+    this.lanes = new ScheduledExecutorService[isEnabled() ? Math.max(1, threads) : 0];
+    ThreadFactory threadFactory =
+        new ThreadFactoryBuilder()
+            .setNameFormat("dynamodb-lock-release-%d")
+            .setDaemon(true)
+            .build();
+    for (int i = 0; i < lanes.length; i++) {
+      lanes[i] = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    }
+  }
+
+  boolean isEnabled() {
+    return queueSize > 0;
+  }
+
+  @Override
+  public void start() {}
+
+  /** Lets the pending releases complete, so that other nodes do not wait for their leases. */
+  @Override
+  public void stop() {
+    for (ScheduledExecutorService lane : lanes) {
+      lane.shutdown();
+    }
+    try {
+      for (ScheduledExecutorService lane : lanes) {
+        if (!lane.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+          logger.atWarning().log(
+              "Stopped before releasing all the DynamoDB locks, they expire with their lease");
+          lane.shutdownNow();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Runs {@code release}, in the background when enabled, and then {@code andThen}, whether the
+   * release succeeded or not.
+   *
+   * @param lockKey the key of the lock released, whose releases run in order.
+   * @param release releases the lock, throwing a {@link RuntimeException} on failure.
+   * @param andThen run once the lock is released, e.g. to release the local lock of the key.
+   */
+  void release(String lockKey, Runnable release, Runnable andThen) {
+    if (isEnabled() && enqueue()) {
+      ScheduledExecutorService lane = lanes[Math.floorMod(lockKey.hashCode(), lanes.length)];
+      try {
+        lane.execute(() -> releaseInBackground(lane, lockKey, release, andThen, 1));
+        return;
+      } catch (RejectedExecutionException e) {
+        // Stopping: release from the calling thread
+        dequeue();
+      }
+    }
+
+    try {
+      release.run();
+    } finally {
+      andThen.run();
+    }
+  }
+
+  @VisibleForTesting
+  int pendingReleases() {
+    return pendingReleases.get();
+  }
+
+  private boolean enqueue() {
+    int pending = pendingReleases.incrementAndGet();
+    if (pending > queueSize) {
+      dequeue();
+      return false;
+    }
+    metrics.recordLockReleaseQueueDepth(pending);
+    return true;
+  }
+
+  private void dequeue() {
+    metrics.recordLockReleaseQueueDepth(pendingReleases.decrementAndGet());
+  }
+
+  private void releaseInBackground(
+      ScheduledExecutorService lane,
+      String lockKey,
+      Runnable release,
+      Runnable andThen,
+      int attempt) {
+    try {
+      release.run();
+    } catch (RuntimeException e) {
+      if (attempt < MAX_RELEASE_ATTEMPTS) {
+        long backoffNanos = Math.min(retryMaxIntervalNanos, retryMinIntervalNanos << (attempt - 1));
+        try {
+          lane.schedule(
+              () -> releaseInBackground(lane, lockKey, release, andThen, attempt + 1),
+              backoffNanos,
+              TimeUnit.NANOSECONDS);
+          metrics.incrementLockReleaseRetries();
+          logger.atWarning().withCause(e).log(
+              "Failed to release the lock of %s, retrying in %d ms",
+              lockKey, TimeUnit.NANOSECONDS.toMillis(backoffNanos));
+          return;
+        } catch (RejectedExecutionException stopped) {
+          e.addSuppressed(stopped);
+        }
+      }
+      logger.atSevere().withCause(e).log(
+          "Failed to release the lock of %s after %d attempts, it expires with its lease",
+          lockKey, attempt);
+    }
+
+    dequeue();
+    andThen.run();
+  }
+}
@@ -0,0 +1,127 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers the keys looked up by concurrent threads into batches, loaded with a single call.
+ *
+ * <p>The first thread looking up a key opens a batch and waits for the batch window to elapse, or
+ * for the batch to reach its maximum size, before loading all the keys of the batch. The other
+ * threads add their keys to the open batch and wait for its result. No background thread is needed:
+ * a batch is always loaded by one of the threads waiting for it.
+ */
+class MicroBatcher<K, V> {
+
+  /** Loads a batch of keys. */
+  interface BatchLoader<K, V> {
+    /** @return the values of the keys found, keys not found are omitted. */
+    Map<K, V> load(Set<K> keys) throws Exception;
+  }
+
+  private final long windowNanos;
+  private final int maxBatchSize;
+  private final BatchLoader<K, V> loader;
+  private Batch openBatch;
+
+  MicroBatcher(long window, TimeUnit unit, int maxBatchSize, BatchLoader<K, V> loader) {
+    this.windowNanos = unit.toNanos(window);
+    this.maxBatchSize = maxBatchSize;
+    this.loader = loader;
+  }
+
+  /**
+   * @return the value of the key, loaded with the other keys of its batch.
+   * @throws com.google.common.util.concurrent.UncheckedExecutionException when the batch could not
+   *     be loaded.
+   */
+  Optional<V> get(K key) {
+    Batch batch;
+    boolean opened = false;
+    boolean full = false;
+    synchronized (this) {
+      if (openBatch == null) {
+        openBatch = new Batch();
+        opened = true;
+      }
+      batch = openBatch;
+      batch.keys.add(key);
+      if (batch.keys.size() >= maxBatchSize) {
+        close(batch);
+        full = true;
+      }
+    }
+
+    if (full) {
+      batch.load();
+    } else if (opened && waitForWindow(batch)) {
+      batch.load();
+    }
+    return Optional.ofNullable(Futures.getUnchecked(batch.result).get(key));
+  }
+
+  /** @return true when the batch was closed by the window elapsing, rather than being full. */
+  private synchronized boolean waitForWindow(Batch batch) {
+    boolean interrupted = false;
+    long deadline = System.nanoTime() + windowNanos;
+    try {
+      for (long remaining = windowNanos; batch.isOpen && remaining > 0; ) {
+        try {
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        } catch (InterruptedException e) {
+          // Load the batch right away, the other threads are waiting for it
+          interrupted = true;
+          break;
+        }
+        remaining = deadline - System.nanoTime();
+      }
+      if (!batch.isOpen) {
+        return false;
+      }
+      close(batch);
+      return true;
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void close(Batch batch) {
+    batch.isOpen = false;
+    openBatch = null;
+    notifyAll();
+  }
+
+  private class Batch {
+    final Set<K> keys = new LinkedHashSet<>();
+    final SettableFuture<Map<K, V>> result = SettableFuture.create();
+    boolean isOpen = true;
+
+    void load() {
+      try {
+        result.set(loader.load(keys));
+      } catch (Throwable e) {
+        result.setException(e);
+      }
+    }
+  }
+}
@@ -36,5 +36,10 @@ class Module extends LifecycleModule {
     bind(AmazonDynamoDB.class).toProvider(AmazonDynamoDBProvider.class).in(SINGLETON);
     bind(AmazonDynamoDBLockClient.class).toProvider(DynamoDBLockClientProvider.class).in(SINGLETON);
     listener().to(DynamoDBLifeCycleManager.class);
+    listener().to(DynamoDbAsyncClientProvider.class);
+    listener().to(DynamoDBAsyncRefDatabase.class);
+    listener().to(HedgedReads.class);
+    listener().to(LockHeartbeats.class);
+    listener().to(LockReleaser.class);
   }
 }
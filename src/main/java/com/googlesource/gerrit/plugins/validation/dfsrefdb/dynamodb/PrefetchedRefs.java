@@ -0,0 +1,113 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.google.gerrit.entities.Project;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+
+/**
+ * Short-lived view of all the refs of a project, returned by {@link
+ * DynamoDBRefDatabase#prefetch(Project.NameKey)} to the callers validating many refs of a project
+ * at once.
+ *
+ * <p>The view ages as soon as it is loaded: a ref whose local value does not match the prefetched
+ * one is read again from DynamoDB, and every ref is read again once the view is older than {@code
+ * prefetchMaxAge}. When the refs could not be prefetched, or may still be in the legacy refs table,
+ * the refs missing from the view are read one by one.
+ */
+public class PrefetchedRefs {
+  private final DynamoDBRefDatabase refDb;
+  private final Project.NameKey project;
+  private final Optional<Map<String, String>> valuesByRefName;
+  private final boolean readMissingRefs;
+  private final long prefetchedAtNanos;
+  private final long maxAgeNanos;
+
+  /**
+   * @param prefetchedAtNanos the {@link System#nanoTime()} at which the refs started to be read.
+   * @param maxAge how long the prefetched refs can be used.
+   */
+  PrefetchedRefs(
+      DynamoDBRefDatabase refDb,
+      Project.NameKey project,
+      Optional<Map<String, String>> valuesByRefName,
+      boolean readMissingRefs,
+      long prefetchedAtNanos,
+      Duration maxAge) {
+    this.refDb = refDb;
+    this.project = project;
+    this.valuesByRefName = valuesByRefName;
+    this.readMissingRefs = readMissingRefs || !valuesByRefName.isPresent();
+    this.prefetchedAtNanos = prefetchedAtNanos;
+    this.maxAgeNanos = maxAge.toNanos();
+  }
+
+  /** @see DynamoDBRefDatabase#isUpToDate(Project.NameKey, Ref) */
+  public boolean isUpToDate(Ref ref) throws GlobalRefDbLockException {
+    if (isExpired()) {
+      return refDb.isUpToDate(project, ref);
+    }
+    Optional<String> value = prefetchedValue(ref.getName());
+    if (!value.isPresent()) {
+      return !readMissingRefs || refDb.isUpToDate(project, ref);
+    }
+    if (ObjectId.isId(value.get()) && ObjectId.fromString(value.get()).equals(ref.getObjectId())) {
+      return true;
+    }
+    return refDb.isUpToDate(project, ref);
+  }
+
+  /** @see DynamoDBRefDatabase#exists(Project.NameKey, String) */
+  public boolean exists(String refName) {
+    if (isExpired()) {
+      return refDb.exists(project, refName);
+    }
+    if (prefetchedValue(refName).isPresent()) {
+      return true;
+    }
+    return readMissingRefs && refDb.exists(project, refName);
+  }
+
+  /** @see DynamoDBRefDatabase#get(Project.NameKey, String, Class) */
+  public Optional<String> get(String refName) throws GlobalRefDbSystemError {
+    if (isExpired()) {
+      return refDb.get(project, refName, String.class);
+    }
+    Optional<String> value = prefetchedValue(refName);
+    if (value.isPresent() || !readMissingRefs) {
+      return value;
+    }
+    return refDb.get(project, refName, String.class);
+  }
+
+  /** @return the number of refs prefetched, or zero when they could not be. */
+  public int size() {
+    return valuesByRefName.map(Map::size).orElse(0);
+  }
+
+  private boolean isExpired() {
+    return System.nanoTime() - prefetchedAtNanos > maxAgeNanos;
+  }
+
+  private Optional<String> prefetchedValue(String refName) {
+    return valuesByRefName.map(values -> values.get(refName));
+  }
+}
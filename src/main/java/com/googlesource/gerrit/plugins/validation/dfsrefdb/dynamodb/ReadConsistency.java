@@ -0,0 +1,26 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+/** Consistency of the reads of the refs table done by a global ref-db operation. */
+enum ReadConsistency {
+  /** Always read the latest value of the ref, at the cost of a full read capacity unit. */
+  STRONG,
+  /**
+   * Read the ref with an eventually consistent read first, at half the cost, and fall back to a
+   * strongly consistent read when the value read is missing or does not satisfy the operation.
+   */
+  EVENTUAL
+}
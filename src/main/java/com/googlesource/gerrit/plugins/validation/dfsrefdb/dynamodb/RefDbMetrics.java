@@ -0,0 +1,418 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Counter1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.Histogram0;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.gerrit.metrics.Timer1;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Singleton
+class RefDbMetrics {
+  /** Operations of the global ref-db whose latency is tracked. */
+  enum Operation {
+    IS_UP_TO_DATE,
+    IS_UP_TO_DATE_BATCH,
+    COMPARE_AND_PUT,
+    COMPARE_AND_PUT_BATCH,
+    LOCK_REF,
+    LOCK_REF_BATCH,
+    EXISTS,
+    GET,
+    REMOVE,
+    PREFETCH
+  }
+
+  private static final long MILLI_UNITS = 1000L;
+
+  private final Timer1<Operation> operationLatency;
+  private final Counter0 conditionalCheckFailures;
+  private final Timer0 localLockWaitLatency;
+  private final Counter0 localLockTimeouts;
+  private final Timer0 remoteLockAcquireLatency;
+  private final Counter0 lockNotGranted;
+  private final Counter0 projectLockWaits;
+  private final Counter0 lockHeartbeats;
+  private final Counter0 lockRetries;
+  private final Counter0 lockReleaseRetries;
+  private final AtomicLong lockReleaseQueueDepth = new AtomicLong();
+  private final Counter0 coalescedReads;
+  private final Histogram0 readBatchSize;
+  private final Counter1<Operation> eventuallyConsistentReads;
+  private final Counter1<Operation> strongReadFallbacks;
+  private final Counter0 hedgedReads;
+  private final Counter0 hedgedReadWins;
+  private final Counter0 connectionPoolSaturated;
+  private final Counter0 circuitBreakerOpened;
+  private final Counter1<String> circuitBreakerRejected;
+  private final AtomicLong circuitBreakerState = new AtomicLong();
+  private final AtomicLong connectionsLeased = new AtomicLong();
+  private final AtomicLong connectionsAvailable = new AtomicLong();
+  private final AtomicLong requestsPendingConnection = new AtomicLong();
+  private final Counter1<String> requestRetries;
+  private final Counter1<String> requestsThrottled;
+  private final Counter1<String> requestsShed;
+  private final Counter1<String> consumedReadCapacity;
+  private final Counter1<String> consumedWriteCapacity;
+  private final ConcurrentMap<String, AtomicLong> consumedReadMilliUnits =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, AtomicLong> consumedWriteMilliUnits =
+      new ConcurrentHashMap<>();
+
+  @Inject
+  RefDbMetrics(MetricMaker metricMaker) {
+    Field<String> requestField =
+        Field.ofString("request", Field.ignoreMetadata())
+            .description("The DynamoDB API called, e.g. GetItem.")
+            .build();
+    this.operationLatency =
+        metricMaker.newTimer(
+            "operation/latency",
+            new Description("Latency of the global ref-db operations")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS),
+            Field.ofEnum(Operation.class, "operation", Field.ignoreMetadata())
+                .description("The global ref-db operation.")
+                .build());
+    this.conditionalCheckFailures =
+        metricMaker.newCounter(
+            "compare_and_put/conditional_check_failures",
+            new Description(
+                    "Ref updates rejected because the stored value was not the expected one")
+                .setRate()
+                .setUnit("errors"));
+    this.localLockWaitLatency =
+        metricMaker.newTimer(
+            "lock/local_wait_latency",
+            new Description("Time spent waiting for another thread of this node to release a ref")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS));
+    this.localLockTimeouts =
+        metricMaker.newCounter(
+            "lock/local_wait_timeouts",
+            new Description("Refs that could not be locked within this node before timing out")
+                .setRate()
+                .setUnit("errors"));
+    this.remoteLockAcquireLatency =
+        metricMaker.newTimer(
+            "lock/remote_acquire_latency",
+            new Description("Time spent acquiring the DynamoDB lock of a ref")
+                .setCumulative()
+                .setUnit(Units.MILLISECONDS));
+    this.lockNotGranted =
+        metricMaker.newCounter(
+            "lock/not_granted",
+            new Description("Refs whose DynamoDB lock could not be acquired")
+                .setRate()
+                .setUnit("errors"));
+    this.projectLockWaits =
+        metricMaker.newCounter(
+            "lock/project_lock_waits",
+            new Description(
+                    "Ref locks released to wait for the batch update holding the project lock")
+                .setRate()
+                .setUnit("waits"));
+    this.lockHeartbeats =
+        metricMaker.newCounter(
+            "lock/heartbeats",
+            new Description("Leases of DynamoDB locks renewed because they were held for long")
+                .setRate()
+                .setUnit("heartbeats"));
+    this.lockRetries =
+        metricMaker.newCounter(
+            "lock/retries",
+            new Description("Attempts to acquire a DynamoDB lock held by another node")
+                .setRate()
+                .setUnit("retries"));
+    this.lockReleaseRetries =
+        metricMaker.newCounter(
+            "lock/release_retries",
+            new Description("Failed releases of DynamoDB locks retried in the background")
+                .setRate()
+                .setUnit("retries"));
+    metricMaker.newCallbackMetric(
+        "lock/release_queue_depth",
+        Long.class,
+        new Description("DynamoDB locks waiting to be released in the background")
+            .setGauge()
+            .setUnit("locks"),
+        lockReleaseQueueDepth::get);
+    this.coalescedReads =
+        metricMaker.newCounter(
+            "read/coalesced",
+            new Description(
+                    "Ref reads served by joining an in-flight DynamoDB read of the same ref")
+                .setRate()
+                .setUnit("reads"));
+    this.readBatchSize =
+        metricMaker.newHistogram(
+            "read/batch_size",
+            new Description("Number of ref reads gathered from concurrent threads into a batch")
+                .setCumulative()
+                .setUnit("reads"));
+    Field<Operation> operationField =
+        Field.ofEnum(Operation.class, "operation", Field.ignoreMetadata())
+            .description("The global ref-db operation.")
+            .build();
+    this.eventuallyConsistentReads =
+        metricMaker.newCounter(
+            "read/eventually_consistent",
+            new Description("Ref reads done with an eventually consistent read first")
+                .setRate()
+                .setUnit("reads"),
+            operationField);
+    this.strongReadFallbacks =
+        metricMaker.newCounter(
+            "read/strong_fallbacks",
+            new Description(
+                    "Eventually consistent ref reads that had to be repeated with a strongly"
+                        + " consistent read")
+                .setRate()
+                .setUnit("reads"),
+            operationField);
+    this.hedgedReads =
+        metricMaker.newCounter(
+            "read/hedged",
+            new Description("Ref reads sent a second time because the first one was too slow")
+                .setRate()
+                .setUnit("reads"));
+    this.hedgedReadWins =
+        metricMaker.newCounter(
+            "read/hedge_wins",
+            new Description("Hedged ref reads that completed before the first read")
+                .setRate()
+                .setUnit("reads"));
+    this.connectionPoolSaturated =
+        metricMaker.newCounter(
+            "dynamodb/connection_pool/saturated",
+            new Description(
+                    "DynamoDB requests that found all the HTTP connections of the pool leased")
+                .setRate()
+                .setUnit("requests"));
+    metricMaker.newCallbackMetric(
+        "dynamodb/connection_pool/leased",
+        Long.class,
+        new Description("HTTP connections to DynamoDB in use when the last request was sent")
+            .setGauge()
+            .setUnit("connections"),
+        connectionsLeased::get);
+    metricMaker.newCallbackMetric(
+        "dynamodb/connection_pool/available",
+        Long.class,
+        new Description("Idle HTTP connections to DynamoDB when the last request was sent")
+            .setGauge()
+            .setUnit("connections"),
+        connectionsAvailable::get);
+    metricMaker.newCallbackMetric(
+        "dynamodb/connection_pool/pending",
+        Long.class,
+        new Description(
+                "DynamoDB requests waiting for an HTTP connection when the last request was sent")
+            .setGauge()
+            .setUnit("requests"),
+        requestsPendingConnection::get);
+    this.circuitBreakerOpened =
+        metricMaker.newCounter(
+            "dynamodb/circuit_breaker/opened",
+            new Description("Times the circuit breaker stopped sending requests to DynamoDB")
+                .setRate()
+                .setUnit("transitions"));
+    this.circuitBreakerRejected =
+        metricMaker.newCounter(
+            "dynamodb/circuit_breaker/rejected",
+            new Description("DynamoDB requests failed fast because the circuit breaker was open")
+                .setRate()
+                .setUnit("requests"),
+            requestField);
+    metricMaker.newCallbackMetric(
+        "dynamodb/circuit_breaker/state",
+        Long.class,
+        new Description("State of the circuit breaker: 0 closed, 1 half-open, 2 open")
+            .setGauge()
+            .setUnit("state"),
+        circuitBreakerState::get);
+    this.requestRetries =
+        metricMaker.newCounter(
+            "dynamodb/retries",
+            new Description("DynamoDB requests retried by the AWS SDK")
+                .setRate()
+                .setUnit("retries"),
+            requestField);
+    this.requestsThrottled =
+        metricMaker.newCounter(
+            "dynamodb/throttled",
+            new Description("DynamoDB requests rejected because of the table or account throughput")
+                .setRate()
+                .setUnit("errors"),
+            requestField);
+    this.requestsShed =
+        metricMaker.newCounter(
+            "dynamodb/shed",
+            new Description("Low-priority DynamoDB requests dropped by the client rate limiter")
+                .setRate()
+                .setUnit("requests"),
+            requestField);
+    this.consumedReadCapacity =
+        metricMaker.newCounter(
+            "dynamodb/consumed_read_capacity",
+            new Description("Read capacity units consumed by DynamoDB requests")
+                .setRate()
+                .setUnit("RCU"),
+            requestField);
+    this.consumedWriteCapacity =
+        metricMaker.newCounter(
+            "dynamodb/consumed_write_capacity",
+            new Description("Write capacity units consumed by DynamoDB requests")
+                .setRate()
+                .setUnit("WCU"),
+            requestField);
+  }
+
+  Timer1.Context<Operation> startOperation(Operation operation) {
+    return operationLatency.start(operation);
+  }
+
+  void incrementConditionalCheckFailures(long failures) {
+    conditionalCheckFailures.incrementBy(failures);
+  }
+
+  Timer0.Context startLocalLockWait() {
+    return localLockWaitLatency.start();
+  }
+
+  void incrementLocalLockTimeouts() {
+    localLockTimeouts.increment();
+  }
+
+  Timer0.Context startRemoteLockAcquire() {
+    return remoteLockAcquireLatency.start();
+  }
+
+  void incrementLockNotGranted() {
+    lockNotGranted.increment();
+  }
+
+  void incrementProjectLockWaits() {
+    projectLockWaits.increment();
+  }
+
+  void incrementLockHeartbeats() {
+    lockHeartbeats.increment();
+  }
+
+  void incrementLockRetries() {
+    lockRetries.increment();
+  }
+
+  void incrementLockReleaseRetries() {
+    lockReleaseRetries.increment();
+  }
+
+  void recordLockReleaseQueueDepth(long depth) {
+    lockReleaseQueueDepth.set(depth);
+  }
+
+  void incrementCoalescedReads() {
+    coalescedReads.increment();
+  }
+
+  void recordReadBatchSize(int size) {
+    readBatchSize.record(size);
+  }
+
+  void incrementEventuallyConsistentReads(Operation operation, long reads) {
+    eventuallyConsistentReads.incrementBy(operation, reads);
+  }
+
+  void incrementStrongReadFallbacks(Operation operation, long reads) {
+    strongReadFallbacks.incrementBy(operation, reads);
+  }
+
+  void incrementHedgedReads() {
+    hedgedReads.increment();
+  }
+
+  void incrementHedgedReadWins() {
+    hedgedReadWins.increment();
+  }
+
+  void recordConnectionPool(long leased, long available, long pending, int maxConnections) {
+    connectionsLeased.set(leased);
+    connectionsAvailable.set(available);
+    requestsPendingConnection.set(pending);
+    if (leased >= maxConnections) {
+      connectionPoolSaturated.increment();
+    }
+  }
+
+  void recordCircuitBreakerState(CircuitBreaker.State state) {
+    circuitBreakerState.set(state.ordinal());
+    if (state == CircuitBreaker.State.OPEN) {
+      circuitBreakerOpened.increment();
+    }
+  }
+
+  void incrementCircuitBreakerRejected(String request) {
+    circuitBreakerRejected.increment(request);
+  }
+
+  void incrementRequestRetries(String request) {
+    requestRetries.increment(request);
+  }
+
+  void incrementRequestsThrottled(String request) {
+    requestsThrottled.increment(request);
+  }
+
+  void incrementRequestsShed(String request) {
+    requestsShed.increment(request);
+  }
+
+  void addConsumedReadCapacity(String request, double capacityUnits) {
+    addCapacityUnits(consumedReadCapacity, consumedReadMilliUnits, request, capacityUnits);
+  }
+
+  void addConsumedWriteCapacity(String request, double capacityUnits) {
+    addCapacityUnits(consumedWriteCapacity, consumedWriteMilliUnits, request, capacityUnits);
+  }
+
+  /**
+   * Counters only hold whole numbers, whilst a request can consume a fraction of a capacity unit:
+   * accumulate the exact amount and increment the counter whenever a whole unit is reached.
+   */
+  private static void addCapacityUnits(
+      Counter1<String> counter,
+      ConcurrentMap<String, AtomicLong> milliUnitsByRequest,
+      String request,
+      double capacityUnits) {
+    long milliUnits = Math.round(capacityUnits * MILLI_UNITS);
+    long before =
+        milliUnitsByRequest.computeIfAbsent(request, k -> new AtomicLong()).getAndAdd(milliUnits);
+    long wholeUnits = (before + milliUnits) / MILLI_UNITS - before / MILLI_UNITS;
+    if (wholeUnits > 0) {
+      counter.incrementBy(request, wholeUnits);
+    }
+  }
+}
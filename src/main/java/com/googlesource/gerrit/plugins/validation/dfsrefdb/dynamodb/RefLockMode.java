@@ -0,0 +1,26 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+/** How {@code lockRef} protects a ref against concurrent updates from other nodes. */
+enum RefLockMode {
+  /** Acquire a lease-based lock in the locks table for the duration of the update. */
+  DYNAMODB,
+  /**
+   * Do not take any remote lock and rely on the conditional write of {@code compareAndPut} to
+   * reject updates based on a stale value.
+   */
+  OPTIMISTIC
+}
@@ -0,0 +1,86 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.google.gerrit.common.Nullable;
+import java.nio.ByteBuffer;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Format of the ref values written to the refs table.
+ *
+ * <p>Values are always decoded regardless of the format they were written with, so that the format
+ * can be changed with a rolling restart.
+ */
+enum RefValueFormat {
+  /** The 40 characters hex representation of the ref value. */
+  STRING,
+  /**
+   * The raw 20 bytes of the object id, as a binary attribute. Values that are not an object id are
+   * still written as strings.
+   */
+  BINARY;
+
+  AttributeValue encode(String refValue) {
+    if (this == BINARY && ObjectId.isId(refValue)) {
+      return binaryValueOf(refValue);
+    }
+    return new AttributeValue(refValue);
+  }
+
+  static AttributeValue binaryValueOf(String objectId) {
+    byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+    ObjectId.fromString(objectId).copyRawTo(raw, 0);
+    return new AttributeValue().withB(ByteBuffer.wrap(raw));
+  }
+
+  static String decode(AttributeValue value) {
+    if (value.getB() == null) {
+      return value.getS();
+    }
+    return decode(value.getB());
+  }
+
+  static String decode(ByteBuffer binaryValue) {
+    return decodeObjectId(binaryValue).name();
+  }
+
+  /**
+   * Decodes a ref value straight to an object id, without going through its hex representation
+   * when it was written as {@link #BINARY}.
+   *
+   * @return the object id, or null when the ref value is not an object id.
+   */
+  @Nullable
+  static ObjectId decodeObjectId(AttributeValue value) {
+    if (value.getB() == null) {
+      return decodeObjectId(value.getS());
+    }
+    return decodeObjectId(value.getB());
+  }
+
+  @Nullable
+  static ObjectId decodeObjectId(String stringValue) {
+    return ObjectId.isId(stringValue) ? ObjectId.fromString(stringValue) : null;
+  }
+
+  static ObjectId decodeObjectId(ByteBuffer binaryValue) {
+    byte[] raw = new byte[binaryValue.remaining()];
+    binaryValue.duplicate().get(raw);
+    return ObjectId.fromRaw(raw);
+  }
+}
@@ -0,0 +1,364 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.REF_DB_PRIMARY_KEY;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.REF_DB_PROJECT_KEY;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.REF_DB_REF_NAME_KEY;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.REF_DB_VALUE_KEY;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Finds the refs whose value in the refs table differs from the one in the local repositories.
+ *
+ * <p>With the {@link RefsDbKeySchema#PROJECT_REF} key schema the refs of each project are read with
+ * a {@code Query}, which also finds the local refs missing from the refs table. With the {@link
+ * RefsDbKeySchema#REF_PATH} key schema the whole refs table is read with a parallel segmented
+ * {@code Scan}, which only finds the refs of the refs table that are missing or different locally.
+ *
+ * <p>Pages are read with eventually consistent reads, throttled on the read capacity they consume.
+ * Every difference is read again, from both the refs table with a strongly consistent read and the
+ * local repository, before being reported, so that refs updated while being checked are not
+ * reported.
+ */
+@Singleton
+class RefsDbChecker {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final int PAGE_SIZE = 100;
+  private static final String REFS_PREFIX = "/refs/";
+
+  enum DifferenceType {
+    /** The local ref is not in the refs table. */
+    MISSING_IN_REFS_TABLE,
+    /** The ref of the refs table does not exist locally. */
+    MISSING_LOCALLY,
+    /** The local ref and the ref of the refs table point to different objects. */
+    DIFFERENT
+  }
+
+  /** Outcome of a check. */
+  static class Result {
+    final long checkedRefs;
+    final long differences;
+    final long repairedRefs;
+
+    Result(long checkedRefs, long differences, long repairedRefs) {
+      this.checkedRefs = checkedRefs;
+      this.differences = differences;
+      this.repairedRefs = repairedRefs;
+    }
+  }
+
+  private final GitRepositoryManager repoManager;
+  private final AmazonDynamoDB dynamoDBClient;
+  private final DynamoDBRefDatabase refDb;
+  private final Configuration configuration;
+  private final RefsDbKeySchema keySchema;
+
+  @Inject
+  RefsDbChecker(
+      GitRepositoryManager repoManager,
+      AmazonDynamoDB dynamoDBClient,
+      DynamoDBRefDatabase refDb,
+      Configuration configuration) {
+    this.repoManager = repoManager;
+    this.dynamoDBClient = dynamoDBClient;
+    this.refDb = refDb;
+    this.configuration = configuration;
+    this.keySchema = configuration.getRefsDbKeySchema();
+  }
+
+  /**
+   * Checks the refs of a set of projects, or of all the projects.
+   *
+   * @param threads number of projects, or of scan segments, read in parallel.
+   * @param maxReadCapacityPerSecond maximum read capacity units consumed per second.
+   * @param repair whether to add the local value of the refs missing from the refs table. Updates
+   *     are conditional, so that refs updated in the meantime are not overwritten.
+   * @param trustLocal whether to also overwrite the refs of the refs table different from the local
+   *     ones when repairing. Otherwise they are only reported, as the refs table may be ahead of
+   *     the local repositories.
+   * @param report receives a message for every difference found.
+   */
+  Result check(
+      Optional<Collection<Project.NameKey>> projects,
+      int threads,
+      int maxReadCapacityPerSecond,
+      boolean repair,
+      boolean trustLocal,
+      Consumer<String> report)
+      throws Exception {
+    Check check =
+        new Check(RateLimiter.create(maxReadCapacityPerSecond), repair, trustLocal, report);
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            threads, new ThreadFactoryBuilder().setNameFormat("DynamoDB-check-%d").build());
+    try {
+      List<Future<?>> tasks = new ArrayList<>();
+      if (keySchema == RefsDbKeySchema.PROJECT_REF) {
+        for (Project.NameKey project : projects.orElseGet(repoManager::list)) {
+          tasks.add(executor.submit(() -> check.queryProject(project)));
+        }
+      } else {
+        Optional<Set<Project.NameKey>> projectsToCheck = projects.map(HashSet::new);
+        for (int segment = 0; segment < threads; segment++) {
+          int s = segment;
+          tasks.add(executor.submit(() -> check.scanSegment(s, threads, projectsToCheck)));
+        }
+      }
+      for (Future<?> task : tasks) {
+        task.get();
+      }
+      return new Result(check.checkedRefs.get(), check.differences.get(), check.repairedRefs.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private class Check {
+    final RateLimiter readCapacityLimiter;
+    final boolean repair;
+    final boolean trustLocal;
+    final Consumer<String> report;
+    final AtomicLong checkedRefs = new AtomicLong();
+    final AtomicLong differences = new AtomicLong();
+    final AtomicLong repairedRefs = new AtomicLong();
+
+    Check(
+        RateLimiter readCapacityLimiter,
+        boolean repair,
+        boolean trustLocal,
+        Consumer<String> report) {
+      this.readCapacityLimiter = readCapacityLimiter;
+      this.repair = repair;
+      this.trustLocal = trustLocal;
+      this.report = report;
+    }
+
+    Void queryProject(Project.NameKey project) throws IOException {
+      Map<String, String> localRefs = localRefsOf(project);
+      Map<String, AttributeValue> exclusiveStartKey = null;
+      do {
+        QueryResult page =
+            dynamoDBClient.query(
+                new QueryRequest()
+                    .withTableName(configuration.getRefsDbTableName())
+                    .withKeyConditionExpression("#project = :project")
+                    .withExpressionAttributeNames(ImmutableMap.of("#project", REF_DB_PROJECT_KEY))
+                    .withExpressionAttributeValues(
+                        ImmutableMap.of(":project", new AttributeValue(project.get())))
+                    .withLimit(PAGE_SIZE)
+                    .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+                    .withExclusiveStartKey(exclusiveStartKey));
+        for (Map<String, AttributeValue> item : page.getItems()) {
+          String refName = item.get(REF_DB_REF_NAME_KEY).getS();
+          compare(project, refName, valueOf(item), Optional.ofNullable(localRefs.remove(refName)));
+        }
+        throttle(page.getConsumedCapacity());
+        exclusiveStartKey = page.getLastEvaluatedKey();
+      } while (exclusiveStartKey != null && !exclusiveStartKey.isEmpty());
+
+      // The local refs left were not found in the refs table
+      for (Map.Entry<String, String> localRef : localRefs.entrySet()) {
+        compare(project, localRef.getKey(), Optional.empty(), Optional.of(localRef.getValue()));
+      }
+      return null;
+    }
+
+    Void scanSegment(int segment, int totalSegments, Optional<Set<Project.NameKey>> projects)
+        throws IOException {
+      Map<String, AttributeValue> exclusiveStartKey = null;
+      do {
+        ScanResult page =
+            dynamoDBClient.scan(
+                new ScanRequest()
+                    .withTableName(configuration.getRefsDbTableName())
+                    .withSegment(segment)
+                    .withTotalSegments(totalSegments)
+                    .withLimit(PAGE_SIZE)
+                    .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL)
+                    .withExclusiveStartKey(exclusiveStartKey));
+        for (Map<String, AttributeValue> item : page.getItems()) {
+          String refPath = item.get(REF_DB_PRIMARY_KEY).getS();
+          int refNameStart = refPath.indexOf(REFS_PREFIX);
+          if (refNameStart <= 1) {
+            logger.atFine().log("Skipping %s: not the path of a ref", refPath);
+            continue;
+          }
+          Project.NameKey project = Project.nameKey(refPath.substring(1, refNameStart));
+          if (!projects.isPresent() || projects.get().contains(project)) {
+            String refName = refPath.substring(refNameStart + 1);
+            compare(project, refName, valueOf(item), localValueOf(project, refName));
+          }
+        }
+        throttle(page.getConsumedCapacity());
+        exclusiveStartKey = page.getLastEvaluatedKey();
+      } while (exclusiveStartKey != null && !exclusiveStartKey.isEmpty());
+      return null;
+    }
+
+    private void compare(
+        Project.NameKey project,
+        String refName,
+        Optional<String> refsTableValue,
+        Optional<String> localValue)
+        throws IOException {
+      if (refsTableValue.isPresent() && !ObjectId.isId(refsTableValue.get())) {
+        // Not a ref, e.g. a value stored by compareAndPut(project, refName, currValue, newValue)
+        return;
+      }
+      checkedRefs.incrementAndGet();
+      if (isSameRef(refsTableValue, localValue)) {
+        return;
+      }
+
+      // The ref might have been updated since it was read
+      refsTableValue = stronglyConsistentValueOf(project, refName);
+      localValue = localValueOf(project, refName);
+      if (isSameRef(refsTableValue, localValue)) {
+        return;
+      }
+
+      DifferenceType type =
+          !refsTableValue.isPresent()
+              ? DifferenceType.MISSING_IN_REFS_TABLE
+              : !localValue.isPresent() ? DifferenceType.MISSING_LOCALLY : DifferenceType.DIFFERENT;
+      differences.incrementAndGet();
+      report.accept(
+          String.format(
+              "%s %s:%s refs-table=%s local=%s",
+              type,
+              project,
+              refName,
+              refsTableValue.orElse("<none>"),
+              localValue.orElse("<none>")));
+
+      if (!repair || type == DifferenceType.MISSING_LOCALLY) {
+        return;
+      }
+      if (type == DifferenceType.DIFFERENT && !trustLocal) {
+        // The local repository may as well be behind the refs table
+        logger.atWarning().log(
+            "Not repairing %s:%s: refs-table=%s local=%s",
+            project, refName, refsTableValue.get(), localValue.get());
+        report.accept(
+            String.format(
+                "NOT REPAIRED %s:%s: use --trust-local to overwrite the refs table",
+                project, refName));
+        return;
+      }
+      try {
+        refDb.compareAndPut(
+            project,
+            refName,
+            refsTableValue.orElse(ObjectId.zeroId().getName()),
+            localValue.get());
+        repairedRefs.incrementAndGet();
+        report.accept(String.format("REPAIRED %s:%s", project, refName));
+      } catch (GlobalRefDbSystemError e) {
+        logger.atWarning().withCause(e).log("Cannot repair %s:%s", project, refName);
+        report.accept(String.format("NOT REPAIRED %s:%s: %s", project, refName, e.getMessage()));
+      }
+    }
+
+    private void throttle(ConsumedCapacity consumedCapacity) {
+      double units = consumedCapacity == null ? 1 : consumedCapacity.getCapacityUnits();
+      readCapacityLimiter.acquire(Math.max(1, (int) Math.ceil(units)));
+    }
+  }
+
+  /** A deleted ref is stored as the zero id in the refs table. */
+  private static boolean isSameRef(Optional<String> refsTableValue, Optional<String> localValue) {
+    String zeroId = ObjectId.zeroId().getName();
+    return refsTableValue.orElse(zeroId).equals(localValue.orElse(zeroId));
+  }
+
+  private static Optional<String> valueOf(Map<String, AttributeValue> item) {
+    return Optional.ofNullable(item.get(REF_DB_VALUE_KEY)).map(RefValueFormat::decode);
+  }
+
+  private Optional<String> stronglyConsistentValueOf(Project.NameKey project, String refName) {
+    Map<String, AttributeValue> item =
+        dynamoDBClient
+            .getItem(
+                new GetItemRequest()
+                    .withTableName(configuration.getRefsDbTableName())
+                    .withKey(keySchema.keyOf(project, refName))
+                    .withConsistentRead(true))
+            .getItem();
+    return item == null || item.isEmpty() ? Optional.empty() : valueOf(item);
+  }
+
+  private Map<String, String> localRefsOf(Project.NameKey project) throws IOException {
+    Map<String, String> localRefs = new HashMap<>();
+    try (Repository repo = repoManager.openRepository(project)) {
+      for (Ref ref : repo.getRefDatabase().getRefs()) {
+        if (!ref.isSymbolic() && ref.getObjectId() != null) {
+          localRefs.put(ref.getName(), ref.getObjectId().getName());
+        }
+      }
+    } catch (RepositoryNotFoundException e) {
+      logger.atFine().log("Project %s does not exist locally", project);
+    }
+    return localRefs;
+  }
+
+  private Optional<String> localValueOf(Project.NameKey project, String refName)
+      throws IOException {
+    try (Repository repo = repoManager.openRepository(project)) {
+      return Optional.ofNullable(repo.exactRef(refName))
+          .filter(ref -> !ref.isSymbolic())
+          .map(Ref::getObjectId)
+          .map(ObjectId::getName);
+    } catch (RepositoryNotFoundException e) {
+      return Optional.empty();
+    }
+  }
+}
@@ -0,0 +1,109 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.REF_DB_PRIMARY_KEY;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.REF_DB_PROJECT_KEY;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.REF_DB_REF_NAME_KEY;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.pathFor;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.entities.Project;
+import java.util.List;
+import java.util.Map;
+
+/** Layout of the primary key of the refs table. */
+enum RefsDbKeySchema {
+  /** Single hash key holding the full path of the ref, as returned by {@code pathFor}. */
+  REF_PATH {
+    @Override
+    Map<String, AttributeValue> keyOf(Project.NameKey project, String refName) {
+      return ImmutableMap.of(REF_DB_PRIMARY_KEY, new AttributeValue(pathFor(project, refName)));
+    }
+
+    @Override
+    String refNameOf(Project.NameKey project, Map<String, AttributeValue> item) {
+      return item.get(REF_DB_PRIMARY_KEY).getS().substring(pathFor(project, "").length());
+    }
+
+    @Override
+    String hashKeyName() {
+      return REF_DB_PRIMARY_KEY;
+    }
+
+    @Override
+    List<AttributeDefinition> attributeDefinitions() {
+      return ImmutableList.of(new AttributeDefinition(REF_DB_PRIMARY_KEY, ScalarAttributeType.S));
+    }
+
+    @Override
+    List<KeySchemaElement> keySchema() {
+      return ImmutableList.of(new KeySchemaElement(REF_DB_PRIMARY_KEY, KeyType.HASH));
+    }
+  },
+
+  /**
+   * Composite key with the project name as hash key and the ref name as range key, which allows all
+   * the refs of a project to be queried.
+   */
+  PROJECT_REF {
+    @Override
+    Map<String, AttributeValue> keyOf(Project.NameKey project, String refName) {
+      return ImmutableMap.of(
+          REF_DB_PROJECT_KEY, new AttributeValue(project.get()),
+          REF_DB_REF_NAME_KEY, new AttributeValue(refName));
+    }
+
+    @Override
+    String refNameOf(Project.NameKey project, Map<String, AttributeValue> item) {
+      return item.get(REF_DB_REF_NAME_KEY).getS();
+    }
+
+    @Override
+    String hashKeyName() {
+      return REF_DB_PROJECT_KEY;
+    }
+
+    @Override
+    List<AttributeDefinition> attributeDefinitions() {
+      return ImmutableList.of(
+          new AttributeDefinition(REF_DB_PROJECT_KEY, ScalarAttributeType.S),
+          new AttributeDefinition(REF_DB_REF_NAME_KEY, ScalarAttributeType.S));
+    }
+
+    @Override
+    List<KeySchemaElement> keySchema() {
+      return ImmutableList.of(
+          new KeySchemaElement(REF_DB_PROJECT_KEY, KeyType.HASH),
+          new KeySchemaElement(REF_DB_REF_NAME_KEY, KeyType.RANGE));
+    }
+  };
+
+  abstract Map<String, AttributeValue> keyOf(Project.NameKey project, String refName);
+
+  abstract String refNameOf(Project.NameKey project, Map<String, AttributeValue> item);
+
+  abstract String hashKeyName();
+
+  abstract List<AttributeDefinition> attributeDefinitions();
+
+  abstract List<KeySchemaElement> keySchema();
+}
@@ -0,0 +1,289 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.MAX_BATCH_WRITE_ITEMS;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.REF_DB_VALUE_KEY;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.google.common.collect.Iterables;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.annotations.PluginData;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Populates the refs table with the refs of the local repositories, to onboard an existing site
+ * onto the DynamoDB global ref-db.
+ *
+ * <p>Refs are written {@value DynamoDBRefDatabase#MAX_BATCH_WRITE_ITEMS} at a time, by a pool of
+ * workers, with a {@code TransactWriteItems} of puts conditioned on the refs not being in the refs
+ * table yet, so that the refs updated by other sites are not rolled back. When the seeding is
+ * forced, refs are written unconditionally, with {@code BatchWriteItem}.
+ *
+ * <p>Each project fully seeded is recorded in a checkpoint file, so that an interrupted seeding
+ * resumes from the projects not seeded yet.
+ */
+@Singleton
+class RefsDbSeeder {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  static final String CHECKPOINT_FILE_NAME = "seed.checkpoint";
+
+  private final GitRepositoryManager repoManager;
+  private final DynamoDBRefDatabase refDb;
+  private final RefsDbKeySchema keySchema;
+  private final RefValueFormat valueFormat;
+  private final Path checkpointFile;
+
+  @Inject
+  RefsDbSeeder(
+      GitRepositoryManager repoManager,
+      DynamoDBRefDatabase refDb,
+      Configuration configuration,
+      @PluginData Path pluginData) {
+    this.repoManager = repoManager;
+    this.refDb = refDb;
+    this.keySchema = configuration.getRefsDbKeySchema();
+    this.valueFormat = configuration.getRefValueFormat();
+    this.checkpointFile = pluginData.resolve(CHECKPOINT_FILE_NAME);
+  }
+
+  /** Outcome of a seeding. */
+  static class Result {
+    final int seededProjects;
+    final int skippedProjects;
+    final List<Project.NameKey> failedProjects;
+    final long seededRefs;
+    final long skippedRefs;
+
+    Result(
+        int seededProjects,
+        int skippedProjects,
+        List<Project.NameKey> failedProjects,
+        long seededRefs,
+        long skippedRefs) {
+      this.seededProjects = seededProjects;
+      this.skippedProjects = skippedProjects;
+      this.failedProjects = failedProjects;
+      this.seededRefs = seededRefs;
+      this.skippedRefs = skippedRefs;
+    }
+  }
+
+  /** @return all the projects of the site. */
+  Collection<Project.NameKey> allProjects() {
+    return repoManager.list();
+  }
+
+  /**
+   * Seeds the refs of a set of projects.
+   *
+   * @param threads number of workers writing to DynamoDB.
+   * @param maxRefsPerSecond maximum rate of the ref writes, or 0 for no limit.
+   * @param restart whether to seed again the projects recorded in the checkpoint file.
+   * @param force whether to overwrite the refs already in the refs table with their local value.
+   * @param progress receives a message every time a project is seeded or fails.
+   */
+  Result seed(
+      Collection<Project.NameKey> projects,
+      int threads,
+      int maxRefsPerSecond,
+      boolean restart,
+      boolean force,
+      Consumer<String> progress)
+      throws IOException, InterruptedException {
+    if (restart) {
+      Files.deleteIfExists(checkpointFile);
+    }
+    Set<Project.NameKey> checkpointedProjects = readCheckpoint();
+    Optional<RateLimiter> rateLimiter =
+        maxRefsPerSecond > 0 ? Optional.of(RateLimiter.create(maxRefsPerSecond)) : Optional.empty();
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            threads, new ThreadFactoryBuilder().setNameFormat("DynamoDB-seed-%d").build());
+    // Bound the number of pending batches, so that reading the refs is throttled by the pace of
+    // the writes.
+    Semaphore pendingBatches = new Semaphore(2 * threads);
+    long startNanos = System.nanoTime();
+    AtomicLong seededRefs = new AtomicLong();
+    AtomicLong skippedRefs = new AtomicLong();
+    AtomicInteger seededProjects = new AtomicInteger();
+    List<Project.NameKey> failedProjects = Collections.synchronizedList(new ArrayList<>());
+    List<CompletableFuture<Void>> projectsSeeded = new ArrayList<>();
+    int skippedProjects = 0;
+    try {
+      for (Project.NameKey project : projects) {
+        if (checkpointedProjects.contains(project)) {
+          skippedProjects++;
+          continue;
+        }
+
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        AtomicLong projectSeededRefs = new AtomicLong();
+        AtomicLong projectSkippedRefs = new AtomicLong();
+        try (Repository repo = repoManager.openRepository(project)) {
+          for (List<Ref> refs :
+              Iterables.partition(
+                  seedableRefs(repo.getRefDatabase().getRefs()), MAX_BATCH_WRITE_ITEMS)) {
+            pendingBatches.acquire();
+            batches.add(
+                CompletableFuture.runAsync(
+                    () -> {
+                      try {
+                        List<Map<String, AttributeValue>> items =
+                            refs.stream().map(ref -> itemOf(project, ref)).collect(toList());
+                        rateLimiter.ifPresent(r -> r.acquire(items.size()));
+                        int written;
+                        if (force) {
+                          refDb.batchWriteToDynamoDB(
+                              items.stream()
+                                  .map(item -> new WriteRequest(new PutRequest(item)))
+                                  .collect(toList()));
+                          written = items.size();
+                        } else {
+                          written = refDb.transactPutIfAbsent(items);
+                        }
+                        projectSeededRefs.addAndGet(written);
+                        seededRefs.addAndGet(written);
+                        projectSkippedRefs.addAndGet(items.size() - written);
+                        skippedRefs.addAndGet(items.size() - written);
+                      } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new CompletionException(e);
+                      } finally {
+                        pendingBatches.release();
+                      }
+                    },
+                    executor));
+          }
+        } catch (IOException e) {
+          logger.atSevere().withCause(e).log("Cannot read the refs of project %s", project);
+          failedProjects.add(project);
+          progress.accept(String.format("%s: failed, cannot read its refs: %s", project, e));
+          continue;
+        }
+
+        projectsSeeded.add(
+            CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0]))
+                .thenRun(
+                    () -> {
+                      checkpoint(project);
+                      seededProjects.incrementAndGet();
+                      progress.accept(
+                          String.format(
+                              "%s: %d refs seeded, %d already in the refs table"
+                                  + " [total: %d refs, %.0f refs/s]",
+                              project,
+                              projectSeededRefs.get(),
+                              projectSkippedRefs.get(),
+                              seededRefs.get(),
+                              refsPerSecond(seededRefs.get(), startNanos)));
+                    })
+                .exceptionally(
+                    e -> {
+                      logger.atSevere().withCause(e).log("Failed to seed project %s", project);
+                      failedProjects.add(project);
+                      progress.accept(String.format("%s: failed: %s", project, e.getCause()));
+                      return null;
+                    }));
+      }
+
+      for (CompletableFuture<Void> projectSeeded : projectsSeeded) {
+        projectSeeded.join();
+      }
+      return new Result(
+          seededProjects.get(),
+          skippedProjects,
+          new ArrayList<>(failedProjects),
+          seededRefs.get(),
+          skippedRefs.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static List<Ref> seedableRefs(List<Ref> refs) {
+    // Symbolic refs, like HEAD, are not stored in the global ref-db
+    return refs.stream()
+        .filter(ref -> !ref.isSymbolic() && ref.getObjectId() != null)
+        .collect(toList());
+  }
+
+  private Map<String, AttributeValue> itemOf(Project.NameKey project, Ref ref) {
+    Map<String, AttributeValue> item = new HashMap<>(keySchema.keyOf(project, ref.getName()));
+    item.put(REF_DB_VALUE_KEY, valueFormat.encode(ref.getObjectId().getName()));
+    return item;
+  }
+
+  private static double refsPerSecond(long refs, long startNanos) {
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    return elapsedMillis == 0 ? 0 : refs * 1000.0 / elapsedMillis;
+  }
+
+  private Set<Project.NameKey> readCheckpoint() throws IOException {
+    if (!Files.exists(checkpointFile)) {
+      return Collections.emptySet();
+    }
+    return Files.readAllLines(checkpointFile, UTF_8).stream()
+        .filter(line -> !line.isEmpty())
+        .map(Project::nameKey)
+        .collect(toSet());
+  }
+
+  private synchronized void checkpoint(Project.NameKey project) {
+    try {
+      Files.write(
+          checkpointFile,
+          Collections.singletonList(project.get()),
+          UTF_8,
+          StandardOpenOption.CREATE,
+          StandardOpenOption.APPEND);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
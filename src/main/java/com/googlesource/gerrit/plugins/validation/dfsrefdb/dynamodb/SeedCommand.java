@@ -0,0 +1,104 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import com.google.gerrit.common.data.GlobalCapability;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.annotations.RequiresCapability;
+import com.google.gerrit.sshd.CommandMetaData;
+import com.google.gerrit.sshd.SshCommand;
+import com.google.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.kohsuke.args4j.Option;
+
+@RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
+@CommandMetaData(
+    name = "seed",
+    description = "Populate the refs table with the refs of the local repositories")
+class SeedCommand extends SshCommand {
+  private static final int DEFAULT_THREADS = 4;
+
+  @Option(
+      name = "--project",
+      aliases = {"-p"},
+      metaVar = "PROJECT",
+      usage = "project to seed, can be repeated (default: all the projects)")
+  private List<String> projects = new ArrayList<>();
+
+  @Option(name = "--threads", metaVar = "N", usage = "number of workers writing to DynamoDB")
+  private int threads = DEFAULT_THREADS;
+
+  @Option(
+      name = "--max-refs-per-second",
+      metaVar = "N",
+      usage = "maximum rate of the ref writes (default: unlimited)")
+  private int maxRefsPerSecond;
+
+  @Option(name = "--restart", usage = "seed again the projects already seeded by a previous run")
+  private boolean restart;
+
+  @Option(
+      name = "--force",
+      usage = "overwrite the refs already in the refs table with their local value")
+  private boolean force;
+
+  private final RefsDbSeeder seeder;
+
+  @Inject
+  SeedCommand(RefsDbSeeder seeder) {
+    this.seeder = seeder;
+  }
+
+  @Override
+  protected void run() throws Exception {
+    if (threads <= 0) {
+      throw die("--threads must be positive");
+    }
+
+    Collection<Project.NameKey> projectsToSeed =
+        projects.isEmpty()
+            ? seeder.allProjects()
+            : projects.stream().map(Project::nameKey).collect(Collectors.toList());
+    long startNanos = System.nanoTime();
+    RefsDbSeeder.Result result =
+        seeder.seed(
+            projectsToSeed, threads, maxRefsPerSecond, restart, force, this::printProgress);
+
+    printProgress(
+        String.format(
+            "Seeded %d refs of %d projects in %d s"
+                + " (%d refs already in the refs table, %d projects already seeded, %d failed)",
+            result.seededRefs,
+            result.seededProjects,
+            TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos),
+            result.skippedRefs,
+            result.skippedProjects,
+            result.failedProjects.size()));
+    if (!result.failedProjects.isEmpty()) {
+      throw die(
+          String.format(
+              "Failed to seed projects %s: run the command again to retry them",
+              result.failedProjects));
+    }
+  }
+
+  private synchronized void printProgress(String message) {
+    stdout.println(message);
+    stdout.flush();
+  }
+}
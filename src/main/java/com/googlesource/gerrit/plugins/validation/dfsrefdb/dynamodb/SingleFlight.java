@@ -0,0 +1,98 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import com.google.common.util.concurrent.Futures;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls for the same key: while a call is in flight, the other threads asking
+ * for the same key wait for it and share its result, or its failure, instead of making their own
+ * call.
+ *
+ * <p>A thread joining an in-flight call may not observe a write completed after that call was
+ * started, as if its own call had been sent at the same time.
+ */
+class SingleFlight<K, V> {
+  private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+  private final Runnable onSharedCall;
+
+  /** @param onSharedCall invoked every time a thread joins an in-flight call. */
+  SingleFlight(Runnable onSharedCall) {
+    this.onSharedCall = onSharedCall;
+  }
+
+  /**
+   * @return the result of the in-flight call for the key, or of a new call to the loader when none
+   *     is in flight.
+   * @throws com.google.common.util.concurrent.UncheckedExecutionException when joining a call that
+   *     failed.
+   */
+  V get(K key, Supplier<V> loader) {
+    CompletableFuture<V> call = new CompletableFuture<>();
+    CompletableFuture<V> inFlightCall = inFlight.putIfAbsent(key, call);
+    if (inFlightCall != null) {
+      onSharedCall.run();
+      return Futures.getUnchecked(inFlightCall);
+    }
+
+    try {
+      V value = loader.get();
+      call.complete(value);
+      return value;
+    } catch (RuntimeException | Error e) {
+      call.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, call);
+    }
+  }
+
+  /**
+   * Like {@link #get(Object, Supplier)}, for a loader that does not block: its call is in flight
+   * until the future it returns completes.
+   *
+   * @return the result of the in-flight call for the key, or of a new call to the loader when none
+   *     is in flight. Cancelling it does not cancel the call shared with the other callers.
+   */
+  CompletableFuture<V> getAsync(K key, Supplier<CompletableFuture<V>> loader) {
+    CompletableFuture<V> call = new CompletableFuture<>();
+    CompletableFuture<V> inFlightCall = inFlight.putIfAbsent(key, call);
+    if (inFlightCall != null) {
+      onSharedCall.run();
+      return inFlightCall.thenApply(value -> value);
+    }
+
+    try {
+      loader
+          .get()
+          .whenComplete(
+              (value, e) -> {
+                inFlight.remove(key, call);
+                if (e == null) {
+                  call.complete(value);
+                } else {
+                  call.completeExceptionally(e);
+                }
+              });
+    } catch (RuntimeException | Error e) {
+      inFlight.remove(key, call);
+      call.completeExceptionally(e);
+    }
+    return call.thenApply(value -> value);
+  }
+}
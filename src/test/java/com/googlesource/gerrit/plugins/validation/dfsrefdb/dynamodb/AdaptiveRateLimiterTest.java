@@ -0,0 +1,97 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Ticker;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AdaptiveRateLimiterTest {
+  private static final double MAX_RATE = 100.0;
+
+  private FakeTicker ticker;
+  private AdaptiveRateLimiter rateLimiter;
+
+  @Before
+  public void setup() {
+    ticker = new FakeTicker();
+    rateLimiter = new AdaptiveRateLimiter(MAX_RATE, ticker);
+  }
+
+  @Test
+  public void shouldStartAtTheMaximumRate() {
+    assertThat(rateLimiter.getRate()).isEqualTo(MAX_RATE);
+  }
+
+  @Test
+  public void shouldHalveTheRateWhenThrottled() {
+    rateLimiter.onThrottled();
+
+    assertThat(rateLimiter.getRate()).isEqualTo(MAX_RATE / 2);
+  }
+
+  @Test
+  public void shouldDecreaseTheRateAtMostOncePerSecond() {
+    rateLimiter.onThrottled();
+    ticker.advance(500, TimeUnit.MILLISECONDS);
+    rateLimiter.onThrottled();
+
+    assertThat(rateLimiter.getRate()).isEqualTo(MAX_RATE / 2);
+
+    ticker.advance(500, TimeUnit.MILLISECONDS);
+    rateLimiter.onThrottled();
+
+    assertThat(rateLimiter.getRate()).isEqualTo(MAX_RATE / 4);
+  }
+
+  @Test
+  public void shouldNotDecreaseTheRateBelowTheMinimum() {
+    for (int i = 0; i < 10; i++) {
+      rateLimiter.onThrottled();
+      ticker.advance(1, TimeUnit.SECONDS);
+    }
+
+    assertThat(rateLimiter.getRate()).isEqualTo(MAX_RATE * AdaptiveRateLimiter.MIN_RATE_FRACTION);
+  }
+
+  @Test
+  public void shouldRecoverTheRateWithoutThrottling() {
+    rateLimiter.onThrottled();
+    ticker.advance(5, TimeUnit.SECONDS);
+    rateLimiter.onSuccess();
+
+    assertThat(rateLimiter.getRate()).isWithin(0.001).of(MAX_RATE * 3 / 4);
+
+    ticker.advance(1, TimeUnit.MINUTES);
+    rateLimiter.onSuccess();
+
+    assertThat(rateLimiter.getRate()).isEqualTo(MAX_RATE);
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long time, TimeUnit unit) {
+      nanos += unit.toNanos(time);
+    }
+  }
+}
@@ -0,0 +1,153 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Ticker;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+  private static final int FAILURE_RATE_PERCENT = 50;
+  private static final long SLOW_REQUEST_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final int MIN_REQUESTS = 10;
+  private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+  private static final long OPEN_NANOS = TimeUnit.SECONDS.toNanos(30);
+  private static final int PROBES = 2;
+
+  private FakeTicker ticker;
+  private List<CircuitBreaker.State> transitions;
+  private CircuitBreaker circuitBreaker;
+
+  @Before
+  public void setup() {
+    ticker = new FakeTicker();
+    transitions = new ArrayList<>();
+    circuitBreaker =
+        new CircuitBreaker(
+            FAILURE_RATE_PERCENT,
+            SLOW_REQUEST_NANOS,
+            MIN_REQUESTS,
+            WINDOW_NANOS,
+            OPEN_NANOS,
+            PROBES,
+            transitions::add,
+            ticker);
+  }
+
+  @Test
+  public void shouldNotOpenBeforeTheMinimumNumberOfRequests() {
+    sendRequests(MIN_REQUESTS - 1, true);
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    assertThat(circuitBreaker.tryAcquire()).isEqualTo(CircuitBreaker.Permit.REQUEST);
+  }
+
+  @Test
+  public void shouldOpenWhenTheFailureRateIsReached() {
+    sendRequests(MIN_REQUESTS / 2, false);
+    sendRequests(MIN_REQUESTS / 2, true);
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    assertThat(circuitBreaker.tryAcquire()).isEqualTo(CircuitBreaker.Permit.REJECTED);
+    assertThat(transitions).containsExactly(CircuitBreaker.State.OPEN);
+  }
+
+  @Test
+  public void shouldCountSlowRequestsAsFailures() {
+    for (int i = 0; i < MIN_REQUESTS; i++) {
+      circuitBreaker.onResult(circuitBreaker.tryAcquire(), false, SLOW_REQUEST_NANOS);
+    }
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+  }
+
+  @Test
+  public void shouldForgetTheFailuresOfThePreviousWindow() {
+    sendRequests(MIN_REQUESTS - 1, true);
+    ticker.advance(WINDOW_NANOS, TimeUnit.NANOSECONDS);
+    sendRequests(MIN_REQUESTS - 1, false);
+    sendRequests(1, true);
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  public void shouldCloseWhenAllTheProbesSucceed() {
+    sendRequests(MIN_REQUESTS, true);
+    ticker.advance(OPEN_NANOS, TimeUnit.NANOSECONDS);
+
+    CircuitBreaker.Permit firstProbe = circuitBreaker.tryAcquire();
+    CircuitBreaker.Permit secondProbe = circuitBreaker.tryAcquire();
+    assertThat(firstProbe).isEqualTo(CircuitBreaker.Permit.PROBE);
+    assertThat(secondProbe).isEqualTo(CircuitBreaker.Permit.PROBE);
+    assertThat(circuitBreaker.tryAcquire()).isEqualTo(CircuitBreaker.Permit.REJECTED);
+
+    circuitBreaker.onResult(firstProbe, false, 0);
+    circuitBreaker.onResult(secondProbe, false, 0);
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    assertThat(transitions)
+        .containsExactly(
+            CircuitBreaker.State.OPEN, CircuitBreaker.State.HALF_OPEN, CircuitBreaker.State.CLOSED)
+        .inOrder();
+  }
+
+  @Test
+  public void shouldReopenWhenAProbeFails() {
+    sendRequests(MIN_REQUESTS, true);
+    ticker.advance(OPEN_NANOS, TimeUnit.NANOSECONDS);
+
+    circuitBreaker.onResult(circuitBreaker.tryAcquire(), true, 0);
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    assertThat(circuitBreaker.tryAcquire()).isEqualTo(CircuitBreaker.Permit.REJECTED);
+  }
+
+  @Test
+  public void shouldProbeAgainWhenTheProbesOutcomeIsLost() {
+    sendRequests(MIN_REQUESTS, true);
+    ticker.advance(OPEN_NANOS, TimeUnit.NANOSECONDS);
+    for (int i = 0; i < PROBES; i++) {
+      circuitBreaker.tryAcquire();
+    }
+    ticker.advance(OPEN_NANOS, TimeUnit.NANOSECONDS);
+
+    assertThat(circuitBreaker.tryAcquire()).isEqualTo(CircuitBreaker.Permit.PROBE);
+  }
+
+  private void sendRequests(int requests, boolean failed) {
+    for (int i = 0; i < requests; i++) {
+      circuitBreaker.onResult(circuitBreaker.tryAcquire(), failed, 0);
+    }
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long time, TimeUnit unit) {
+      nanos += unit.toNanos(time);
+    }
+  }
+}
@@ -15,13 +15,56 @@
 package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
 
 import static com.google.common.truth.Truth.assertThat;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_BILLING_MODE;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_CAPACITY_UNITS;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE_PERCENT;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_CIRCUIT_BREAKER_MIN_REQUESTS;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_CIRCUIT_BREAKER_PROBES;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_CIRCUIT_BREAKER_SLOW_REQUEST_THRESHOLD;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_CIRCUIT_BREAKER_WINDOW;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_CLIENT_EXECUTION_TIMEOUT;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_CONNECTION_MAX_IDLE;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_CONNECTION_TIMEOUT;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_CONNECTION_TTL;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_HEDGED_READ_MIN_DELAY;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_HEDGED_READ_PERCENTILE;
 import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_LOCKS_TABLE_NAME;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_LOCK_HEARTBEAT_PERIOD;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_LOCK_LEASE_DURATION;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_LOCK_MODE;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_LOCK_RELEASE_QUEUE_SIZE;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_LOCK_RELEASE_THREADS;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_LOCK_RETRY_MAX_INTERVAL;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_LOCK_RETRY_MIN_INTERVAL;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_LOCK_WAIT_TIMEOUT;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_MAX_CONNECTIONS;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_MAX_ERROR_RETRIES;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_MAX_HEDGED_READS_PERCENT;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_MAX_REQUESTS_PER_SECOND;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_MAX_RETRY_BACKOFF;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_PREFETCH_MAX_AGE;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_PREWARM_CONNECTIONS;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_PROJECT_LOCK_MAX_WAITS;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_PROJECT_LOCK_MIN_REFS;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_READ_BATCH_WINDOW;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_READ_CONSISTENCY;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_REFS_DB_KEY_SCHEMA;
 import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_REFS_DB_TABLE_NAME;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_REF_VALUE_FORMAT;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_REMOVE_PROJECT_THREADS;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_REQUEST_TIMEOUT;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_RETRY_BASE_DELAY;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_RETRY_BUDGET;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_SOCKET_TIMEOUT;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_TABLES_ACTIVE_TIMEOUT;
 import static org.mockito.Mockito.when;
 
+import com.amazonaws.services.dynamodbv2.model.BillingMode;
 import com.google.gerrit.server.config.PluginConfig;
 import com.google.gerrit.server.config.PluginConfigFactory;
 import java.net.URI;
+import java.time.Duration;
 import org.eclipse.jgit.lib.Config;
 import org.junit.Before;
 import org.junit.Test;
@@ -118,4 +161,559 @@ public class ConfigurationTest {
     Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
     assertThat(configuration.getRegion().get()).isEqualTo(Region.EU_CENTRAL_1);
   }
+
+  @Test
+  public void shouldReadDefaultRefsDbKeySchema() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getRefsDbKeySchema()).isEqualTo(DEFAULT_REFS_DB_KEY_SCHEMA);
+  }
+
+  @Test
+  public void shouldReadConfiguredRefsDbKeySchema() {
+    pluginConfig.setString("refsDbKeySchema", "PROJECT_REF");
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getRefsDbKeySchema()).isEqualTo(RefsDbKeySchema.PROJECT_REF);
+  }
+
+  @Test
+  public void shouldReadEmptyLegacyRefsDbTableNameByDefault() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getLegacyRefsDbTableName().isPresent()).isFalse();
+  }
+
+  @Test
+  public void shouldReadConfiguredLegacyRefsDbTableName() {
+    pluginConfig.setString("legacyRefsDbTableName", "foobar");
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getLegacyRefsDbTableName().get()).isEqualTo("foobar");
+  }
+
+  @Test
+  public void shouldReadDefaultRemoveProjectThreads() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getRemoveProjectThreads()).isEqualTo(DEFAULT_REMOVE_PROJECT_THREADS);
+  }
+
+  @Test
+  public void shouldReadConfiguredRemoveProjectThreads() {
+    pluginConfig.setInt("removeProjectThreads", 8);
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getRemoveProjectThreads()).isEqualTo(8);
+  }
+
+  @Test
+  public void shouldReadDefaultLockMode() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getLockMode()).isEqualTo(DEFAULT_LOCK_MODE);
+  }
+
+  @Test
+  public void shouldReadConfiguredLockMode() {
+    pluginConfig.setString("lockMode", "OPTIMISTIC");
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getLockMode()).isEqualTo(RefLockMode.OPTIMISTIC);
+  }
+
+  @Test
+  public void shouldReadDefaultProjectLockMinRefs() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getProjectLockMinRefs()).isEqualTo(DEFAULT_PROJECT_LOCK_MIN_REFS);
+    assertThat(configuration.getProjectLockMaxWaits()).isEqualTo(DEFAULT_PROJECT_LOCK_MAX_WAITS);
+  }
+
+  @Test
+  public void shouldReadConfiguredProjectLockMinRefs() {
+    pluginConfig.setInt("projectLockMinRefs", 50);
+    pluginConfig.setInt("projectLockMaxWaits", 10);
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getProjectLockMinRefs()).isEqualTo(50);
+    assertThat(configuration.getProjectLockMaxWaits()).isEqualTo(10);
+  }
+
+  @Test
+  public void shouldReadDefaultLockTiming() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getLockLeaseDuration()).isEqualTo(DEFAULT_LOCK_LEASE_DURATION);
+    assertThat(configuration.getLockHeartbeatPeriod()).isEqualTo(DEFAULT_LOCK_HEARTBEAT_PERIOD);
+    assertThat(configuration.getLockWaitTimeout()).isEqualTo(DEFAULT_LOCK_WAIT_TIMEOUT);
+    assertThat(configuration.getLockRetryMinInterval()).isEqualTo(DEFAULT_LOCK_RETRY_MIN_INTERVAL);
+    assertThat(configuration.getLockRetryMaxInterval()).isEqualTo(DEFAULT_LOCK_RETRY_MAX_INTERVAL);
+  }
+
+  @Test
+  public void shouldReadConfiguredLockTiming() {
+    pluginConfig.setString("lockLeaseDuration", "30 s");
+    pluginConfig.setString("lockHeartbeatPeriod", "5 s");
+    pluginConfig.setString("lockWaitTimeout", "20 s");
+    pluginConfig.setString("lockRetryMinInterval", "5 ms");
+    pluginConfig.setString("lockRetryMaxInterval", "500 ms");
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getLockLeaseDuration()).isEqualTo(Duration.ofSeconds(30));
+    assertThat(configuration.getLockHeartbeatPeriod()).isEqualTo(Duration.ofSeconds(5));
+    assertThat(configuration.getLockWaitTimeout()).isEqualTo(Duration.ofSeconds(20));
+    assertThat(configuration.getLockRetryMinInterval()).isEqualTo(Duration.ofMillis(5));
+    assertThat(configuration.getLockRetryMaxInterval()).isEqualTo(Duration.ofMillis(500));
+  }
+
+  @Test
+  public void shouldReadDefaultLockRelease() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getLockReleaseQueueSize()).isEqualTo(DEFAULT_LOCK_RELEASE_QUEUE_SIZE);
+    assertThat(configuration.getLockReleaseThreads()).isEqualTo(DEFAULT_LOCK_RELEASE_THREADS);
+  }
+
+  @Test
+  public void shouldReadConfiguredLockRelease() {
+    pluginConfig.setInt("lockReleaseQueueSize", 500);
+    pluginConfig.setInt("lockReleaseThreads", 4);
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getLockReleaseQueueSize()).isEqualTo(500);
+    assertThat(configuration.getLockReleaseThreads()).isEqualTo(4);
+  }
+
+  @Test
+  public void shouldReadDefaultRefValueFormat() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getRefValueFormat()).isEqualTo(DEFAULT_REF_VALUE_FORMAT);
+  }
+
+  @Test
+  public void shouldReadConfiguredRefValueFormat() {
+    pluginConfig.setString("refValueFormat", "BINARY");
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getRefValueFormat()).isEqualTo(RefValueFormat.BINARY);
+  }
+
+  @Test
+  public void shouldReadDefaultMaxReadRequestsPerSecond() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getMaxReadRequestsPerSecond())
+        .isEqualTo(DEFAULT_MAX_REQUESTS_PER_SECOND);
+  }
+
+  @Test
+  public void shouldReadConfiguredMaxReadRequestsPerSecond() {
+    pluginConfig.setInt("maxReadRequestsPerSecond", 500);
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getMaxReadRequestsPerSecond()).isEqualTo(500);
+  }
+
+  @Test
+  public void shouldReadDefaultMaxWriteRequestsPerSecond() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getMaxWriteRequestsPerSecond())
+        .isEqualTo(DEFAULT_MAX_REQUESTS_PER_SECOND);
+  }
+
+  @Test
+  public void shouldReadConfiguredMaxWriteRequestsPerSecond() {
+    pluginConfig.setInt("maxWriteRequestsPerSecond", 100);
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getMaxWriteRequestsPerSecond()).isEqualTo(100);
+  }
+
+  @Test
+  public void shouldReadDefaultMaxErrorRetries() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getMaxErrorRetries()).isEqualTo(DEFAULT_MAX_ERROR_RETRIES);
+  }
+
+  @Test
+  public void shouldReadConfiguredMaxErrorRetries() {
+    pluginConfig.setInt("maxErrorRetries", 3);
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getMaxErrorRetries()).isEqualTo(3);
+  }
+
+  @Test
+  public void shouldReadDefaultRetryBaseDelay() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getRetryBaseDelay()).isEqualTo(DEFAULT_RETRY_BASE_DELAY);
+  }
+
+  @Test
+  public void shouldReadConfiguredRetryBaseDelay() {
+    pluginConfig.setString("retryBaseDelay", "50 ms");
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getRetryBaseDelay()).isEqualTo(Duration.ofMillis(50));
+  }
+
+  @Test
+  public void shouldReadDefaultMaxRetryBackoff() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getMaxRetryBackoff()).isEqualTo(DEFAULT_MAX_RETRY_BACKOFF);
+  }
+
+  @Test
+  public void shouldReadConfiguredMaxRetryBackoff() {
+    pluginConfig.setString("maxRetryBackoff", "5 s");
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getMaxRetryBackoff()).isEqualTo(Duration.ofSeconds(5));
+  }
+
+  @Test
+  public void shouldReadDefaultRetryBudget() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getRetryBudget()).isEqualTo(DEFAULT_RETRY_BUDGET);
+  }
+
+  @Test
+  public void shouldReadConfiguredRetryBudget() {
+    pluginConfig.setInt("retryBudget", 50);
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getRetryBudget()).isEqualTo(50);
+  }
+
+  @Test
+  public void shouldReadDefaultReadBatchWindow() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getReadBatchWindow()).isEqualTo(DEFAULT_READ_BATCH_WINDOW);
+  }
+
+  @Test
+  public void shouldReadConfiguredReadBatchWindow() {
+    pluginConfig.setString("readBatchWindow", "5 ms");
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getReadBatchWindow()).isEqualTo(Duration.ofMillis(5));
+  }
+
+  @Test
+  public void shouldReadDefaultPrefetchMaxAge() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getPrefetchMaxAge()).isEqualTo(DEFAULT_PREFETCH_MAX_AGE);
+  }
+
+  @Test
+  public void shouldReadConfiguredPrefetchMaxAge() {
+    pluginConfig.setString("prefetchMaxAge", "1 s");
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getPrefetchMaxAge()).isEqualTo(Duration.ofSeconds(1));
+  }
+
+  @Test
+  public void shouldReadDefaultReadConsistency() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getIsUpToDateReadConsistency()).isEqualTo(DEFAULT_READ_CONSISTENCY);
+    assertThat(configuration.getExistsReadConsistency()).isEqualTo(DEFAULT_READ_CONSISTENCY);
+    assertThat(configuration.getGetReadConsistency()).isEqualTo(DEFAULT_READ_CONSISTENCY);
+  }
+
+  @Test
+  public void shouldReadConfiguredReadConsistency() {
+    pluginConfig.setString("isUpToDateReadConsistency", "EVENTUAL");
+    pluginConfig.setString("existsReadConsistency", "EVENTUAL");
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getIsUpToDateReadConsistency()).isEqualTo(ReadConsistency.EVENTUAL);
+    assertThat(configuration.getExistsReadConsistency()).isEqualTo(ReadConsistency.EVENTUAL);
+    assertThat(configuration.getGetReadConsistency()).isEqualTo(ReadConsistency.STRONG);
+  }
+
+  @Test
+  public void shouldCreateTablesByDefault() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getCreateTables()).isTrue();
+  }
+
+  @Test
+  public void shouldReadConfiguredCreateTables() {
+    pluginConfig.setBoolean("createTables", false);
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getCreateTables()).isFalse();
+  }
+
+  @Test
+  public void shouldReadDefaultTablesBilling() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getBillingMode()).isEqualTo(DEFAULT_BILLING_MODE);
+    assertThat(configuration.getReadCapacityUnits()).isEqualTo(DEFAULT_CAPACITY_UNITS);
+    assertThat(configuration.getWriteCapacityUnits()).isEqualTo(DEFAULT_CAPACITY_UNITS);
+  }
+
+  @Test
+  public void shouldReadConfiguredTablesBilling() {
+    pluginConfig.setString("billingMode", "PAY_PER_REQUEST");
+    pluginConfig.setLong("readCapacityUnits", 50L);
+    pluginConfig.setLong("writeCapacityUnits", 20L);
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getBillingMode()).isEqualTo(BillingMode.PAY_PER_REQUEST);
+    assertThat(configuration.getReadCapacityUnits()).isEqualTo(50L);
+    assertThat(configuration.getWriteCapacityUnits()).isEqualTo(20L);
+  }
+
+  @Test
+  public void shouldReadDefaultTablesActiveTimeout() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getTablesActiveTimeout()).isEqualTo(DEFAULT_TABLES_ACTIVE_TIMEOUT);
+  }
+
+  @Test
+  public void shouldReadConfiguredTablesActiveTimeout() {
+    pluginConfig.setString("tablesActiveTimeout", "2 min");
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getTablesActiveTimeout()).isEqualTo(Duration.ofMinutes(2));
+  }
+
+  @Test
+  public void shouldReadDefaultConnectionPool() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getMaxConnections()).isEqualTo(DEFAULT_MAX_CONNECTIONS);
+    assertThat(configuration.getConnectionTtl()).isEqualTo(DEFAULT_CONNECTION_TTL);
+    assertThat(configuration.getConnectionMaxIdle()).isEqualTo(DEFAULT_CONNECTION_MAX_IDLE);
+    assertThat(configuration.getTcpKeepAlive()).isFalse();
+    assertThat(configuration.getPrewarmConnections()).isEqualTo(DEFAULT_PREWARM_CONNECTIONS);
+  }
+
+  @Test
+  public void shouldReadConfiguredConnectionPool() {
+    pluginConfig.setInt("maxConnections", 200);
+    pluginConfig.setString("connectionTtl", "5 min");
+    pluginConfig.setString("connectionMaxIdle", "10 min");
+    pluginConfig.setBoolean("tcpKeepAlive", true);
+    pluginConfig.setInt("prewarmConnections", 32);
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getMaxConnections()).isEqualTo(200);
+    assertThat(configuration.getConnectionTtl()).isEqualTo(Duration.ofMinutes(5));
+    assertThat(configuration.getConnectionMaxIdle()).isEqualTo(Duration.ofMinutes(10));
+    assertThat(configuration.getTcpKeepAlive()).isTrue();
+    assertThat(configuration.getPrewarmConnections()).isEqualTo(32);
+  }
+
+  @Test
+  public void shouldReadDefaultTimeouts() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getConnectionTimeout()).isEqualTo(DEFAULT_CONNECTION_TIMEOUT);
+    assertThat(configuration.getSocketTimeout()).isEqualTo(DEFAULT_SOCKET_TIMEOUT);
+    assertThat(configuration.getRequestTimeout()).isEqualTo(DEFAULT_REQUEST_TIMEOUT);
+    assertThat(configuration.getClientExecutionTimeout())
+        .isEqualTo(DEFAULT_CLIENT_EXECUTION_TIMEOUT);
+  }
+
+  @Test
+  public void shouldReadConfiguredTimeouts() {
+    pluginConfig.setString("connectionTimeout", "1 s");
+    pluginConfig.setString("socketTimeout", "2 s");
+    pluginConfig.setString("requestTimeout", "500 ms");
+    pluginConfig.setString("clientExecutionTimeout", "5 s");
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getConnectionTimeout()).isEqualTo(Duration.ofSeconds(1));
+    assertThat(configuration.getSocketTimeout()).isEqualTo(Duration.ofSeconds(2));
+    assertThat(configuration.getRequestTimeout()).isEqualTo(Duration.ofMillis(500));
+    assertThat(configuration.getClientExecutionTimeout()).isEqualTo(Duration.ofSeconds(5));
+  }
+
+  @Test
+  public void shouldReadDefaultHedgedReads() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getHedgedReadPercentile()).isEqualTo(DEFAULT_HEDGED_READ_PERCENTILE);
+    assertThat(configuration.getHedgedReadMinDelay()).isEqualTo(DEFAULT_HEDGED_READ_MIN_DELAY);
+    assertThat(configuration.getMaxHedgedReadsPercent())
+        .isEqualTo(DEFAULT_MAX_HEDGED_READS_PERCENT);
+  }
+
+  @Test
+  public void shouldReadConfiguredHedgedReads() {
+    pluginConfig.setInt("hedgedReadPercentile", 95);
+    pluginConfig.setString("hedgedReadMinDelay", "10 ms");
+    pluginConfig.setInt("maxHedgedReadsPercent", 2);
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getHedgedReadPercentile()).isEqualTo(95);
+    assertThat(configuration.getHedgedReadMinDelay()).isEqualTo(Duration.ofMillis(10));
+    assertThat(configuration.getMaxHedgedReadsPercent()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldReadDefaultCircuitBreaker() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getCircuitBreakerFailureRatePercent())
+        .isEqualTo(DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE_PERCENT);
+    assertThat(configuration.getCircuitBreakerSlowRequestThreshold())
+        .isEqualTo(DEFAULT_CIRCUIT_BREAKER_SLOW_REQUEST_THRESHOLD);
+    assertThat(configuration.getCircuitBreakerMinRequests())
+        .isEqualTo(DEFAULT_CIRCUIT_BREAKER_MIN_REQUESTS);
+    assertThat(configuration.getCircuitBreakerWindow()).isEqualTo(DEFAULT_CIRCUIT_BREAKER_WINDOW);
+    assertThat(configuration.getCircuitBreakerOpenDuration())
+        .isEqualTo(DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION);
+    assertThat(configuration.getCircuitBreakerProbes()).isEqualTo(DEFAULT_CIRCUIT_BREAKER_PROBES);
+  }
+
+  @Test
+  public void shouldReadConfiguredCircuitBreaker() {
+    pluginConfig.setInt("circuitBreakerFailureRatePercent", 50);
+    pluginConfig.setString("circuitBreakerSlowRequestThreshold", "1 s");
+    pluginConfig.setInt("circuitBreakerMinRequests", 100);
+    pluginConfig.setString("circuitBreakerWindow", "1 min");
+    pluginConfig.setString("circuitBreakerOpenDuration", "5 s");
+    pluginConfig.setInt("circuitBreakerProbes", 1);
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getCircuitBreakerFailureRatePercent()).isEqualTo(50);
+    assertThat(configuration.getCircuitBreakerSlowRequestThreshold())
+        .isEqualTo(Duration.ofSeconds(1));
+    assertThat(configuration.getCircuitBreakerMinRequests()).isEqualTo(100);
+    assertThat(configuration.getCircuitBreakerWindow()).isEqualTo(Duration.ofMinutes(1));
+    assertThat(configuration.getCircuitBreakerOpenDuration()).isEqualTo(Duration.ofSeconds(5));
+    assertThat(configuration.getCircuitBreakerProbes()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldDisableTheAsyncRefDatabaseByDefault() {
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getAsyncRefDatabase()).isFalse();
+  }
+
+  @Test
+  public void shouldReadConfiguredAsyncRefDatabase() {
+    pluginConfig.setBoolean("asyncRefDatabase", true);
+    when(pluginConfigFactoryMock.getFromGerritConfig(PLUGIN_NAME))
+        .thenReturn(pluginConfig.asPluginConfig());
+
+    Configuration configuration = new Configuration(pluginConfigFactoryMock, PLUGIN_NAME);
+    assertThat(configuration.getAsyncRefDatabase()).isTrue();
+  }
 }
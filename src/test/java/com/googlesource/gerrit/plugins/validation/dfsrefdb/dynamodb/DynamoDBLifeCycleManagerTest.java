@@ -0,0 +1,91 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.TableStatus;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.google.gerrit.server.config.PluginConfig;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DynamoDBLifeCycleManagerTest {
+  private static final DescribeTableResult ACTIVE_TABLE =
+      new DescribeTableResult()
+          .withTable(new TableDescription().withTableStatus(TableStatus.ACTIVE));
+
+  @Mock private AmazonDynamoDB dynamoDB;
+  private DynamoDBTablesStatus tablesStatus;
+  private DynamoDBLifeCycleManager lifeCycleManager;
+
+  @Before
+  public void setup() {
+    PluginConfig.Update pluginConfig =
+        PluginConfig.Update.forTest("plugins_aws-dynamodb", new Config());
+    pluginConfig.setBoolean("createTables", false);
+    pluginConfig.setString("lockMode", RefLockMode.OPTIMISTIC.name());
+    tablesStatus = new DynamoDBTablesStatus();
+    lifeCycleManager =
+        new DynamoDBLifeCycleManager(
+            new Configuration(pluginConfig.asPluginConfig()), dynamoDB, tablesStatus);
+  }
+
+  @After
+  public void tearDown() {
+    lifeCycleManager.stop();
+  }
+
+  @Test
+  public void shouldBeActiveOnceTheTablesAreVerified() {
+    when(dynamoDB.describeTable(any(DescribeTableRequest.class))).thenReturn(ACTIVE_TABLE);
+
+    lifeCycleManager.start();
+
+    tablesStatus.awaitActive(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void shouldRetryTheVerificationOfTheTablesUntilItSucceeds() {
+    when(dynamoDB.describeTable(any(DescribeTableRequest.class)))
+        .thenThrow(new AmazonServiceException("Service unavailable"))
+        .thenReturn(ACTIVE_TABLE);
+
+    lifeCycleManager.start();
+
+    GlobalRefDbSystemError thrown =
+        assertThrows(
+            GlobalRefDbSystemError.class,
+            () -> tablesStatus.awaitActive(200, TimeUnit.MILLISECONDS));
+    assertThat(thrown).hasMessageThat().contains("could not be verified yet");
+    assertThat(thrown).hasCauseThat().hasMessageThat().contains("Service unavailable");
+    tablesStatus.awaitActive(5, TimeUnit.SECONDS);
+  }
+}
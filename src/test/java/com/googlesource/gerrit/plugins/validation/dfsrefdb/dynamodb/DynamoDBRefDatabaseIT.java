@@ -19,26 +19,51 @@ import static com.google.common.truth.Truth8.assertThat;
 import static com.google.gerrit.testing.GerritJUnit.assertThrows;
 import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_LOCKS_TABLE_NAME;
 import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Configuration.DEFAULT_REFS_DB_TABLE_NAME;
+import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.LOCK_DB_PRIMARY_KEY;
 import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.REF_DB_PRIMARY_KEY;
 import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.REF_DB_VALUE_KEY;
 import static com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.DynamoDBRefDatabase.pathFor;
 import static org.testcontainers.containers.localstack.LocalStackContainer.Service.DYNAMODB;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.services.dynamodbv2.AcquireLockOptions;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBLockClient;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BillingMode;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
 import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.gerrit.acceptance.LightweightPluginDaemonTest;
 import com.google.gerrit.acceptance.TestPlugin;
+import com.google.gerrit.acceptance.UseSsh;
 import com.google.gerrit.acceptance.WaitUtil;
+import com.google.gerrit.acceptance.config.GlobalPluginConfig;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.entities.Project;
+import com.google.gerrit.metrics.DisabledMetricMaker;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectIdRef;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.ReceiveCommand;
 import org.junit.Before;
 import org.junit.Test;
 import org.testcontainers.containers.localstack.LocalStackContainer;
@@ -46,7 +71,8 @@ import org.testcontainers.utility.DockerImageName;
 
 @TestPlugin(
     name = "plugins_aws-dynamodb",
-    sysModule = "com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Module")
+    sysModule = "com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.Module",
+    sshModule = "com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.SshModule")
 public class DynamoDBRefDatabaseIT extends LightweightPluginDaemonTest {
   private static final Duration DYNAMODB_TABLE_CREATION_TIMEOUT = Duration.ofSeconds(10);
 
@@ -72,6 +98,11 @@ public class DynamoDBRefDatabaseIT extends LightweightPluginDaemonTest {
     System.setProperty("aws.secretAccessKey", localstack.getSecretKey());
 
     super.setUpTestPlugin();
+
+    // The tables are created in the background
+    WaitUtil.waitUntil(
+        () -> plugin.getSysInjector().getInstance(DynamoDBTablesStatus.class).isActive(),
+        DYNAMODB_TABLE_CREATION_TIMEOUT);
   }
 
   @Override
@@ -95,6 +126,21 @@ public class DynamoDBRefDatabaseIT extends LightweightPluginDaemonTest {
         DYNAMODB_TABLE_CREATION_TIMEOUT);
   }
 
+  @Test
+  @GlobalPluginConfig(
+      pluginName = "plugins_aws-dynamodb",
+      name = "billingMode",
+      value = "PAY_PER_REQUEST")
+  public void shouldCreateOnDemandTablesWhenConfigured() throws Exception {
+    assertThat(
+            dynamoDBClient()
+                .describeTable(DEFAULT_REFS_DB_TABLE_NAME)
+                .getTable()
+                .getBillingModeSummary()
+                .getBillingMode())
+        .isEqualTo(BillingMode.PAY_PER_REQUEST.toString());
+  }
+
   @Test
   public void getShouldBeEmptyWhenRefDoesntExists() throws Exception {
     Optional<String> maybeRef = dynamoDBRefDatabase().get(project, "refs/not/in/db", String.class);
@@ -226,6 +272,729 @@ public class DynamoDBRefDatabaseIT extends LightweightPluginDaemonTest {
     assertThat(dynamoDBRefDatabase().compareAndPut(project, refName, null, newRefValue)).isTrue();
   }
 
+  @Test
+  @GlobalPluginConfig(
+      pluginName = "plugins_aws-dynamodb",
+      name = "asyncRefDatabase",
+      value = "true")
+  public void isUpToDateShouldSeeTheRefsUpdatedByAnotherSite() throws Exception {
+    String refName = "refs/changes/01/01/meta";
+    String localRefValue = "533d3ccf8a650fb26380faa732921a2c74924d5c";
+    String otherSiteRefValue = "9f6f2963cf44505428c61b935ff1ca65372cf28c";
+
+    assertThat(
+            dynamoDBRefDatabase()
+                .compareAndPut(project, refOf(refName, null), ObjectId.fromString(localRefValue)))
+        .isTrue();
+    createRefInDynamoDB(project, refName, otherSiteRefValue);
+
+    assertThat(dynamoDBRefDatabase().isUpToDate(project, refOf(refName, localRefValue))).isFalse();
+    assertThat(
+            dynamoDBRefDatabase()
+                .isUpToDate(project, ImmutableList.of(refOf(refName, localRefValue))))
+        .containsExactly(refName, false);
+    assertThat(dynamoDBRefDatabase().get(project, refName, String.class))
+        .hasValue(otherSiteRefValue);
+    assertThat(dynamoDBAsyncRefDatabase().isUpToDate(project, refOf(refName, localRefValue)).get())
+        .isFalse();
+  }
+
+  @Test
+  public void batchIsUpToDateShouldCheckEveryRef() {
+    String upToDateRefName = "refs/changes/01/01/meta";
+    String outOfSyncRefName = "refs/changes/02/02/meta";
+    String missingRefName = "refs/changes/03/03/meta";
+    String currentRefValue = "533d3ccf8a650fb26380faa732921a2c74924d5c";
+    String previousRefValue = "9f6f2963cf44505428c61b935ff1ca65372cf28c";
+
+    createRefInDynamoDB(project, upToDateRefName, currentRefValue);
+    createRefInDynamoDB(project, outOfSyncRefName, previousRefValue);
+
+    Map<String, Boolean> upToDate =
+        dynamoDBRefDatabase()
+            .isUpToDate(
+                project,
+                ImmutableList.of(
+                    refOf(upToDateRefName, currentRefValue),
+                    refOf(outOfSyncRefName, currentRefValue),
+                    refOf(missingRefName, currentRefValue)));
+
+    assertThat(upToDate)
+        .containsExactly(upToDateRefName, true, outOfSyncRefName, false, missingRefName, true);
+  }
+
+  @Test
+  public void batchIsUpToDateShouldReadMoreRefsThanASingleBatchGetItem() {
+    String currentRefValue = "533d3ccf8a650fb26380faa732921a2c74924d5c";
+    String previousRefValue = "9f6f2963cf44505428c61b935ff1ca65372cf28c";
+    int numRefs = DynamoDBRefDatabase.MAX_BATCH_GET_ITEMS * 2 + 1;
+
+    List<Ref> refs = new ArrayList<>();
+    for (int i = 0; i < numRefs; i++) {
+      String refName = "refs/heads/branch-" + i;
+      createRefInDynamoDB(project, refName, i == numRefs - 1 ? previousRefValue : currentRefValue);
+      refs.add(refOf(refName, currentRefValue));
+    }
+
+    Map<String, Boolean> upToDate = dynamoDBRefDatabase().isUpToDate(project, refs);
+
+    assertThat(upToDate).hasSize(numRefs);
+    assertThat(upToDate.get("refs/heads/branch-" + (numRefs - 1))).isFalse();
+    assertThat(upToDate.values().stream().filter(isUpToDate -> !isUpToDate).count()).isEqualTo(1);
+  }
+
+  @Test
+  @GlobalPluginConfig(
+      pluginName = "plugins_aws-dynamodb",
+      name = "isUpToDateReadConsistency",
+      value = "EVENTUAL")
+  public void isUpToDateShouldFallBackToStrongReadWhenRefDoesNotPointToTheStoredRefValue() {
+    String refName = "refs/changes/01/01/meta";
+    String currentRefValue = "533d3ccf8a650fb26380faa732921a2c74924d5c";
+    String previousRefValue = "9f6f2963cf44505428c61b935ff1ca65372cf28c";
+
+    createRefInDynamoDB(project, refName, previousRefValue);
+
+    assertThat(dynamoDBRefDatabase().isUpToDate(project, refOf(refName, previousRefValue)))
+        .isTrue();
+    assertThat(dynamoDBRefDatabase().isUpToDate(project, refOf(refName, currentRefValue)))
+        .isFalse();
+  }
+
+  @Test
+  @GlobalPluginConfig(
+      pluginName = "plugins_aws-dynamodb",
+      name = "isUpToDateReadConsistency",
+      value = "EVENTUAL")
+  public void batchIsUpToDateShouldFallBackToStrongReadWhenRefsDoNotPointToTheStoredRefValues() {
+    String currentRefValue = "533d3ccf8a650fb26380faa732921a2c74924d5c";
+    String previousRefValue = "9f6f2963cf44505428c61b935ff1ca65372cf28c";
+
+    createRefInDynamoDB(project, "refs/heads/up-to-date", currentRefValue);
+    createRefInDynamoDB(project, "refs/heads/outdated", previousRefValue);
+
+    Map<String, Boolean> upToDate =
+        dynamoDBRefDatabase()
+            .isUpToDate(
+                project,
+                ImmutableList.of(
+                    refOf("refs/heads/up-to-date", currentRefValue),
+                    refOf("refs/heads/outdated", currentRefValue),
+                    refOf("refs/heads/new", currentRefValue)));
+
+    assertThat(upToDate)
+        .containsExactly(
+            "refs/heads/up-to-date", true, "refs/heads/outdated", false, "refs/heads/new", true);
+  }
+
+  @Test
+  @GlobalPluginConfig(
+      pluginName = "plugins_aws-dynamodb",
+      name = "refsDbKeySchema",
+      value = "PROJECT_REF")
+  public void removeShouldDeleteAllRefsOfProject() {
+    String refValue = "533d3ccf8a650fb26380faa732921a2c74924d5c";
+    Project.NameKey otherProject = Project.nameKey("other-project");
+    int numRefs = DynamoDBRefDatabase.MAX_BATCH_WRITE_ITEMS * 2 + 1;
+
+    for (int i = 0; i < numRefs; i++) {
+      assertThat(
+              dynamoDBRefDatabase()
+                  .compareAndPut(
+                      project,
+                      refOf("refs/heads/branch-" + i, null),
+                      ObjectId.fromString(refValue)))
+          .isTrue();
+    }
+    assertThat(
+            dynamoDBRefDatabase()
+                .compareAndPut(
+                    otherProject, refOf("refs/heads/master", null), ObjectId.fromString(refValue)))
+        .isTrue();
+
+    dynamoDBRefDatabase().remove(project);
+
+    for (int i = 0; i < numRefs; i++) {
+      assertThat(dynamoDBRefDatabase().exists(project, "refs/heads/branch-" + i)).isFalse();
+    }
+    assertThat(dynamoDBRefDatabase().exists(otherProject, "refs/heads/master")).isTrue();
+  }
+
+  @Test
+  @GlobalPluginConfig(
+      pluginName = "plugins_aws-dynamodb",
+      name = "refsDbKeySchema",
+      value = "PROJECT_REF")
+  public void prefetchShouldLoadAllRefsOfProject() {
+    String currentRefValue = "533d3ccf8a650fb26380faa732921a2c74924d5c";
+    String previousRefValue = "9f6f2963cf44505428c61b935ff1ca65372cf28c";
+    int numRefs = DynamoDBRefDatabase.MAX_BATCH_GET_ITEMS * 2 + 1;
+
+    for (int i = 0; i < numRefs; i++) {
+      assertThat(
+              dynamoDBRefDatabase()
+                  .compareAndPut(
+                      project,
+                      refOf("refs/heads/branch-" + i, null),
+                      ObjectId.fromString(currentRefValue)))
+          .isTrue();
+    }
+
+    PrefetchedRefs refs = dynamoDBRefDatabase().prefetch(project);
+
+    assertThat(refs.size()).isEqualTo(numRefs);
+    assertThat(refs.get("refs/heads/branch-0")).hasValue(currentRefValue);
+    assertThat(refs.exists("refs/heads/missing")).isFalse();
+    assertThat(refs.isUpToDate(refOf("refs/heads/branch-1", currentRefValue))).isTrue();
+    assertThat(refs.isUpToDate(refOf("refs/heads/branch-1", previousRefValue))).isFalse();
+    assertThat(refs.isUpToDate(refOf("refs/heads/missing", currentRefValue))).isTrue();
+  }
+
+  @Test
+  public void prefetchShouldReadRefsOneByOneWithRefPathKeySchema() {
+    String refName = "refs/heads/master";
+    String currentRefValue = "533d3ccf8a650fb26380faa732921a2c74924d5c";
+    String previousRefValue = "9f6f2963cf44505428c61b935ff1ca65372cf28c";
+
+    createRefInDynamoDB(project, refName, currentRefValue);
+
+    PrefetchedRefs refs = dynamoDBRefDatabase().prefetch(project);
+
+    assertThat(refs.size()).isEqualTo(0);
+    assertThat(refs.get(refName)).hasValue(currentRefValue);
+    assertThat(refs.exists(refName)).isTrue();
+    assertThat(refs.isUpToDate(refOf(refName, previousRefValue))).isFalse();
+  }
+
+  @Test
+  public void batchCompareAndPutShouldUpdateMoreRefsThanASingleTransaction() {
+    String newRefValue = "533d3ccf8a650fb26380faa732921a2c74924d5c";
+    int numRefs = DynamoDBRefDatabase.MAX_TRANSACT_WRITE_ITEMS + 1;
+    List<ReceiveCommand> commands = new ArrayList<>();
+    for (int i = 0; i < numRefs; i++) {
+      commands.add(
+          new ReceiveCommand(
+              ObjectId.zeroId(), ObjectId.fromString(newRefValue), "refs/heads/branch-" + i));
+    }
+
+    assertThat(dynamoDBRefDatabase().compareAndPut(project, commands)).isTrue();
+
+    for (int i = 0; i < numRefs; i++) {
+      assertThat(dynamoDBRefDatabase().get(project, "refs/heads/branch-" + i, String.class))
+          .hasValue(newRefValue);
+    }
+  }
+
+  @Test
+  public void batchCompareAndPutShouldNotUpdateAnyRefWhenOneIsNotExpected() {
+    String currentRefValue = "533d3ccf8a650fb26380faa732921a2c74924d5c";
+    String newRefValue = "9f6f2963cf44505428c61b935ff1ca65372cf28c";
+    String expectedRefValue = "875ce4b14278b64be61478f91a40cf480758bfba";
+    createRefInDynamoDB(project, "refs/heads/master", currentRefValue);
+    createRefInDynamoDB(project, "refs/heads/stable", currentRefValue);
+
+    GlobalRefDbSystemError thrown =
+        assertThrows(
+            GlobalRefDbSystemError.class,
+            () ->
+                dynamoDBRefDatabase()
+                    .compareAndPut(
+                        project,
+                        ImmutableList.of(
+                            new ReceiveCommand(
+                                ObjectId.fromString(currentRefValue),
+                                ObjectId.fromString(newRefValue),
+                                "refs/heads/master"),
+                            new ReceiveCommand(
+                                ObjectId.fromString(expectedRefValue),
+                                ObjectId.fromString(newRefValue),
+                                "refs/heads/stable"))));
+    assertThat(thrown).hasMessageThat().contains("refs/heads/stable");
+    assertThat(thrown).hasMessageThat().doesNotContain("refs/heads/master");
+    assertThat(dynamoDBRefDatabase().get(project, "refs/heads/master", String.class))
+        .hasValue(currentRefValue);
+  }
+
+  @Test
+  public void batchCompareAndPutShouldRejectARefUpdatedMoreThanOnce() {
+    String currentRefValue = "533d3ccf8a650fb26380faa732921a2c74924d5c";
+    String newRefValue = "9f6f2963cf44505428c61b935ff1ca65372cf28c";
+    createRefInDynamoDB(project, "refs/heads/master", currentRefValue);
+    createRefInDynamoDB(project, "refs/heads/stable", currentRefValue);
+
+    GlobalRefDbSystemError thrown =
+        assertThrows(
+            GlobalRefDbSystemError.class,
+            () ->
+                dynamoDBRefDatabase()
+                    .compareAndPut(
+                        project,
+                        ImmutableList.of(
+                            new ReceiveCommand(
+                                ObjectId.fromString(currentRefValue),
+                                ObjectId.fromString(newRefValue),
+                                "refs/heads/master"),
+                            new ReceiveCommand(
+                                ObjectId.fromString(currentRefValue),
+                                ObjectId.fromString(newRefValue),
+                                "refs/heads/stable"),
+                            new ReceiveCommand(
+                                ObjectId.fromString(newRefValue),
+                                ObjectId.fromString(currentRefValue),
+                                "refs/heads/master"))));
+    assertThat(thrown).hasMessageThat().contains("refs/heads/master is updated more than once");
+    assertThat(dynamoDBRefDatabase().get(project, "refs/heads/master", String.class))
+        .hasValue(currentRefValue);
+    assertThat(dynamoDBRefDatabase().get(project, "refs/heads/stable", String.class))
+        .hasValue(currentRefValue);
+  }
+
+  @Test
+  @GlobalPluginConfig(
+      pluginName = "plugins_aws-dynamodb",
+      name = "refValueFormat",
+      value = "BINARY")
+  public void compareAndPutShouldStoreBinaryRefValues() throws Exception {
+    String refName = "refs/changes/01/01/meta";
+    String currentRefValue = "533d3ccf8a650fb26380faa732921a2c74924d5c";
+    String newRefValue = "9f6f2963cf44505428c61b935ff1ca65372cf28c";
+
+    createRefInDynamoDB(project, refName, currentRefValue);
+
+    assertThat(
+            dynamoDBRefDatabase()
+                .compareAndPut(
+                    project, refOf(refName, currentRefValue), ObjectId.fromString(newRefValue)))
+        .isTrue();
+    assertThat(
+            dynamoDBClient()
+                .getItem(
+                    DEFAULT_REFS_DB_TABLE_NAME,
+                    ImmutableMap.of(
+                        REF_DB_PRIMARY_KEY, new AttributeValue(pathFor(project, refName))),
+                    true)
+                .getItem()
+                .get(REF_DB_VALUE_KEY)
+                .getB())
+        .isNotNull();
+
+    assertThat(dynamoDBRefDatabase().get(project, refName, String.class)).hasValue(newRefValue);
+    assertThat(
+            dynamoDBRefDatabase()
+                .compareAndPut(
+                    project, refOf(refName, newRefValue), ObjectId.fromString(currentRefValue)))
+        .isTrue();
+  }
+
+  @Test
+  @GlobalPluginConfig(
+      pluginName = "plugins_aws-dynamodb",
+      name = "asyncRefDatabase",
+      value = "true")
+  public void asyncGetShouldReturnRefValueWhenItExists() throws Exception {
+    String refName = "refs/changes/01/01/meta";
+    String refValue = "533d3ccf8a650fb26380faa732921a2c74924d5c";
+    createRefInDynamoDB(project, refName, refValue);
+
+    assertThat(dynamoDBAsyncRefDatabase().get(project, refName, String.class).get())
+        .hasValue(refValue);
+  }
+
+  @Test
+  @GlobalPluginConfig(
+      pluginName = "plugins_aws-dynamodb",
+      name = "asyncRefDatabase",
+      value = "true")
+  public void asyncIsUpToDateShouldReturnFalseWhenRefDoesNotPointToTheStoredRefValue()
+      throws Exception {
+    String refName = "refs/changes/01/01/meta";
+    String currentRefValue = "533d3ccf8a650fb26380faa732921a2c74924d5c";
+    String previousRefValue = "9f6f2963cf44505428c61b935ff1ca65372cf28c";
+
+    createRefInDynamoDB(project, refName, previousRefValue);
+
+    assertThat(
+            dynamoDBAsyncRefDatabase().isUpToDate(project, refOf(refName, currentRefValue)).get())
+        .isFalse();
+  }
+
+  @Test
+  @GlobalPluginConfig(
+      pluginName = "plugins_aws-dynamodb",
+      name = "asyncRefDatabase",
+      value = "true")
+  public void asyncCompareAndPutShouldUpdateTheStoredRefValue() throws Exception {
+    String refName = "refs/changes/01/01/meta";
+    String currentRefValue = "533d3ccf8a650fb26380faa732921a2c74924d5c";
+    String newRefValue = "9f6f2963cf44505428c61b935ff1ca65372cf28c";
+
+    createRefInDynamoDB(project, refName, currentRefValue);
+
+    assertThat(
+            dynamoDBAsyncRefDatabase()
+                .compareAndPut(
+                    project, refOf(refName, currentRefValue), ObjectId.fromString(newRefValue))
+                .get())
+        .isTrue();
+    assertThat(dynamoDBRefDatabase().get(project, refName, String.class)).hasValue(newRefValue);
+  }
+
+  @Test
+  @GlobalPluginConfig(
+      pluginName = "plugins_aws-dynamodb",
+      name = "asyncRefDatabase",
+      value = "true")
+  public void asyncCompareAndPutShouldFailWhenStoredRefIsNotExpected() {
+    String refName = "refs/changes/01/01/meta";
+    String currentRefValue = "533d3ccf8a650fb26380faa732921a2c74924d5c";
+    String newRefValue = "9f6f2963cf44505428c61b935ff1ca65372cf28c";
+    String expectedRefValue = "875ce4b14278b64be61478f91a40cf480758bfba";
+
+    createRefInDynamoDB(project, refName, currentRefValue);
+
+    ExecutionException thrown =
+        assertThrows(
+            ExecutionException.class,
+            () ->
+                dynamoDBAsyncRefDatabase()
+                    .compareAndPut(
+                        project, refOf(refName, expectedRefValue), ObjectId.fromString(newRefValue))
+                    .get());
+    assertThat(thrown).hasCauseThat().isInstanceOf(GlobalRefDbSystemError.class);
+  }
+
+  @Test
+  @GlobalPluginConfig(
+      pluginName = "plugins_aws-dynamodb",
+      name = "readBatchWindow",
+      value = "10 ms")
+  public void getShouldReturnRefValuesReadInBatches() throws Exception {
+    String refValue = "533d3ccf8a650fb26380faa732921a2c74924d5c";
+    createRefInDynamoDB(project, "refs/heads/existing", refValue);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<Optional<String>> existing =
+          executor.submit(
+              () -> dynamoDBRefDatabase().get(project, "refs/heads/existing", String.class));
+      Future<Optional<String>> missing =
+          executor.submit(
+              () -> dynamoDBRefDatabase().get(project, "refs/heads/missing", String.class));
+
+      assertThat(existing.get()).hasValue(refValue);
+      assertThat(missing.get()).isEmpty();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  @UseSsh
+  public void seedShouldPopulateTheRefsTableWithTheLocalRefs() throws Exception {
+    String output = adminSshSession.exec("plugins_aws-dynamodb seed --project " + project.get());
+    adminSshSession.assertSuccess();
+
+    assertThat(output)
+        .contains(String.format("Seeded %d refs of 1 projects", assertLocalRefsSeeded()));
+  }
+
+  @Test
+  @UseSsh
+  public void seedShouldSkipTheProjectsAlreadySeeded() throws Exception {
+    adminSshSession.exec("plugins_aws-dynamodb seed --project " + project.get());
+    adminSshSession.assertSuccess();
+
+    String output = adminSshSession.exec("plugins_aws-dynamodb seed --project " + project.get());
+    adminSshSession.assertSuccess();
+
+    assertThat(output).contains("Seeded 0 refs of 0 projects");
+    assertThat(output).contains("1 projects already seeded");
+  }
+
+  @Test
+  @UseSsh
+  public void seedShouldNotOverwriteTheRefsAlreadyInTheRefsTableUnlessForced() throws Exception {
+    String refsTableValue = "533d3ccf8a650fb26380faa732921a2c74924d5c";
+    createRefInDynamoDB(project, "refs/heads/master", refsTableValue);
+
+    String output = adminSshSession.exec("plugins_aws-dynamodb seed --project " + project.get());
+    adminSshSession.assertSuccess();
+
+    assertThat(output).contains("1 refs already in the refs table");
+    assertThat(dynamoDBRefDatabase().get(project, "refs/heads/master", String.class))
+        .hasValue(refsTableValue);
+
+    adminSshSession.exec(
+        "plugins_aws-dynamodb seed --restart --force --project " + project.get());
+    adminSshSession.assertSuccess();
+
+    assertLocalRefsSeeded();
+  }
+
+  @Test
+  @UseSsh
+  public void checkShouldReportNoDifferenceAfterSeeding() throws Exception {
+    adminSshSession.exec("plugins_aws-dynamodb seed --project " + project.get());
+    adminSshSession.assertSuccess();
+
+    String output = adminSshSession.exec("plugins_aws-dynamodb check --project " + project.get());
+    adminSshSession.assertSuccess();
+
+    assertThat(output).contains("0 differences");
+  }
+
+  @Test
+  @UseSsh
+  public void checkShouldReportTheRefsMissingLocally() throws Exception {
+    createRefInDynamoDB(project, "refs/heads/missing", "533d3ccf8a650fb26380faa732921a2c74924d5c");
+
+    String output = adminSshSession.exec("plugins_aws-dynamodb check --project " + project.get());
+    adminSshSession.assertFailure();
+
+    assertThat(output).contains("MISSING_LOCALLY " + project.get() + ":refs/heads/missing");
+  }
+
+  @Test
+  @UseSsh
+  public void seedShouldBeRestrictedToAdministrators() throws Exception {
+    userSshSession.exec("plugins_aws-dynamodb seed --project " + project.get());
+    userSshSession.assertFailure();
+  }
+
+  @Test
+  public void concurrentUpdatesFromMultipleNodesShouldNotBeLostWithDynamoDBLocks()
+      throws Exception {
+    assertThat(incrementConcurrentlyFromMultipleNodes(3, 5)).isEqualTo(15);
+  }
+
+  @Test
+  @GlobalPluginConfig(pluginName = "plugins_aws-dynamodb", name = "lockMode", value = "OPTIMISTIC")
+  public void concurrentUpdatesFromMultipleNodesShouldNotBeLostWithOptimisticLocking()
+      throws Exception {
+    assertThat(incrementConcurrentlyFromMultipleNodes(3, 5)).isEqualTo(15);
+  }
+
+  @Test
+  @GlobalPluginConfig(pluginName = "plugins_aws-dynamodb", name = "projectLockMinRefs", value = "2")
+  public void lockRefsShouldTakeASingleProjectLockForLargeBatches() throws Exception {
+    List<String> refNames =
+        ImmutableList.of("refs/heads/branch1", "refs/heads/branch2", "refs/heads/branch3");
+
+    try (AutoCloseable lock = dynamoDBRefDatabase().lockRefs(project, refNames)) {
+      List<Map<String, AttributeValue>> lockItems = lockTableItems();
+      assertThat(lockItems).hasSize(1);
+      assertThat(lockItems.get(0).get(LOCK_DB_PRIMARY_KEY).getS())
+          .isEqualTo(DynamoDBRefDatabase.projectLockKey(project));
+    }
+    assertThat(lockTableItems()).isEmpty();
+  }
+
+  @Test
+  @GlobalPluginConfig(pluginName = "plugins_aws-dynamodb", name = "projectLockMinRefs", value = "2")
+  public void lockRefShouldWaitForTheBatchHoldingTheProjectLock() throws Exception {
+    String refName = "refs/heads/branch1";
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> refLocked;
+      try (AutoCloseable lock =
+          dynamoDBRefDatabase()
+              .lockRefs(project, ImmutableList.of(refName, "refs/heads/branch2"))) {
+        DynamoDBRefDatabase otherNode = newNode();
+        refLocked =
+            executor.submit(
+                () -> {
+                  otherNode.lockRef(project, refName).close();
+                  return null;
+                });
+        assertThrows(TimeoutException.class, () -> refLocked.get(1, TimeUnit.SECONDS));
+      }
+      refLocked.get();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  @GlobalPluginConfig(pluginName = "plugins_aws-dynamodb", name = "lockLeaseDuration", value = "2 s")
+  @GlobalPluginConfig(
+      pluginName = "plugins_aws-dynamodb",
+      name = "lockHeartbeatPeriod",
+      value = "500 ms")
+  @GlobalPluginConfig(pluginName = "plugins_aws-dynamodb", name = "lockWaitTimeout", value = "2 s")
+  public void lockRefShouldTakeOverTheLockOfANodeThatStoppedHeartbeating() throws Exception {
+    String refPath = pathFor(project, "refs/heads/master");
+    // Its own lock client, so that it is another owner, whose lease is never renewed
+    AmazonDynamoDBLockClient stoppedNode =
+        new DynamoDBLockClientProvider(
+                plugin.getSysInjector().getInstance(Configuration.class), dynamoDBClient())
+            .get();
+    stoppedNode.acquireLock(AcquireLockOptions.builder(refPath).withSortKey(refPath).build());
+
+    long start = System.nanoTime();
+    dynamoDBRefDatabase().lockRef(project, "refs/heads/master").close();
+
+    assertThat(System.nanoTime() - start).isAtLeast(Duration.ofSeconds(2).toNanos());
+    assertThat(lockTableItems()).isEmpty();
+  }
+
+  @Test
+  @GlobalPluginConfig(
+      pluginName = "plugins_aws-dynamodb",
+      name = "circuitBreakerFailureRatePercent",
+      value = "50")
+  @GlobalPluginConfig(
+      pluginName = "plugins_aws-dynamodb",
+      name = "circuitBreakerOpenDuration",
+      value = "1 min")
+  public void lockRefShouldFailWithALockExceptionWhileTheCircuitBreakerIsOpen() {
+    openCircuitBreaker();
+
+    assertThrows(
+        GlobalRefDbLockException.class,
+        () -> dynamoDBRefDatabase().lockRef(project, "refs/heads/master"));
+    assertThrows(
+        GlobalRefDbLockException.class,
+        () ->
+            dynamoDBRefDatabase()
+                .lockRefs(project, ImmutableList.of("refs/heads/branch1", "refs/heads/branch2")));
+  }
+
+  @Test
+  public void asyncOperationsShouldFailUnlessEnabled() throws Exception {
+    String refName = "refs/heads/master";
+    createRefInDynamoDB(project, refName, "533d3ccf8a650fb26380faa732921a2c74924d5c");
+
+    ExecutionException thrown =
+        assertThrows(
+            ExecutionException.class,
+            () ->
+                dynamoDBAsyncRefDatabase()
+                    .isUpToDate(
+                        project, refOf(refName, "9f6f2963cf44505428c61b935ff1ca65372cf28c"))
+                    .get());
+    assertThat(thrown).hasCauseThat().isInstanceOf(GlobalRefDbLockException.class);
+    assertThat(dynamoDBAsyncRefDatabase().get(project, refName, String.class).get()).isEmpty();
+  }
+
+  @Test
+  @GlobalPluginConfig(
+      pluginName = "plugins_aws-dynamodb",
+      name = "asyncRefDatabase",
+      value = "true")
+  @GlobalPluginConfig(
+      pluginName = "plugins_aws-dynamodb",
+      name = "circuitBreakerFailureRatePercent",
+      value = "50")
+  @GlobalPluginConfig(
+      pluginName = "plugins_aws-dynamodb",
+      name = "circuitBreakerOpenDuration",
+      value = "1 min")
+  public void asyncOperationsShouldFailFastWhileTheCircuitBreakerIsOpen() throws Exception {
+    String refName = "refs/heads/master";
+    createRefInDynamoDB(project, refName, "533d3ccf8a650fb26380faa732921a2c74924d5c");
+    openCircuitBreaker();
+
+    ExecutionException thrown =
+        assertThrows(
+            ExecutionException.class,
+            () ->
+                dynamoDBAsyncRefDatabase()
+                    .isUpToDate(
+                        project, refOf(refName, "9f6f2963cf44505428c61b935ff1ca65372cf28c"))
+                    .get());
+    assertThat(thrown).hasCauseThat().isInstanceOf(GlobalRefDbLockException.class);
+    assertThat(dynamoDBAsyncRefDatabase().get(project, refName, String.class).get()).isEmpty();
+  }
+
+  /** Records failed requests until the circuit breaker opens and rejects them. */
+  private void openCircuitBreaker() {
+    DynamoDBCircuitBreakerHandler handler =
+        plugin.getSysInjector().getInstance(DynamoDBCircuitBreakerHandler.class);
+    while (true) {
+      GetItemRequest request = new GetItemRequest();
+      try {
+        handler.beforeExecution(request);
+      } catch (AmazonClientException e) {
+        return;
+      }
+      handler.afterError(
+          new DefaultRequest<>(request, "AmazonDynamoDBv2"),
+          null,
+          new AmazonClientException("Unable to execute HTTP request"));
+    }
+  }
+
+  private List<Map<String, AttributeValue>> lockTableItems() {
+    return dynamoDBClient().scan(new ScanRequest(DEFAULT_LOCKS_TABLE_NAME)).getItems();
+  }
+
+  private int incrementConcurrentlyFromMultipleNodes(int numNodes, int updatesPerNode)
+      throws Exception {
+    String refName = "refs/counters/updates";
+    createRefInDynamoDB(project, refName, "0");
+
+    ExecutorService executor = Executors.newFixedThreadPool(numNodes);
+    try {
+      List<Future<Integer>> nodes = new ArrayList<>();
+      for (int i = 0; i < numNodes; i++) {
+        DynamoDBRefDatabase node = newNode();
+        Callable<Integer> incrementer =
+            () -> {
+              int updated = 0;
+              while (updated < updatesPerNode) {
+                try (AutoCloseable lock = node.lockRef(project, refName)) {
+                  String current = node.get(project, refName, String.class).get();
+                  if (node.compareAndPut(
+                      project, refName, current, String.valueOf(Integer.parseInt(current) + 1))) {
+                    updated++;
+                  }
+                } catch (GlobalRefDbLockException | GlobalRefDbSystemError e) {
+                  // Lost the race against another node: read the new value and try again
+                }
+              }
+              return updated;
+            };
+        nodes.add(executor.submit(incrementer));
+      }
+
+      int totalUpdates = 0;
+      for (Future<Integer> updates : nodes) {
+        totalUpdates += updates.get();
+      }
+      assertThat(dynamoDBRefDatabase().get(project, refName, String.class))
+          .hasValue(String.valueOf(totalUpdates));
+      return totalUpdates;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private int assertLocalRefsSeeded() throws Exception {
+    int seededRefs = 0;
+    try (Repository repo = repoManager.openRepository(project)) {
+      for (Ref ref : repo.getRefDatabase().getRefs()) {
+        if (!ref.isSymbolic()) {
+          assertThat(dynamoDBRefDatabase().get(project, ref.getName(), String.class))
+              .hasValue(ref.getObjectId().getName());
+          seededRefs++;
+        }
+      }
+    }
+    return seededRefs;
+  }
+
+  private DynamoDBRefDatabase newNode() {
+    RefDbMetrics metrics = new RefDbMetrics(new DisabledMetricMaker());
+    return new DynamoDBRefDatabase(
+        plugin.getSysInjector().getInstance(DynamoDBLocks.class),
+        dynamoDBClient(),
+        plugin.getSysInjector().getInstance(Configuration.class),
+        new LocalRefLocks(metrics),
+        metrics,
+        plugin.getSysInjector().getInstance(DynamoDBTablesStatus.class),
+        plugin.getSysInjector().getInstance(HedgedReads.class));
+  }
+
   private AmazonDynamoDB dynamoDBClient() {
     return plugin.getSysInjector().getInstance(AmazonDynamoDB.class);
   }
@@ -234,6 +1003,10 @@ public class DynamoDBRefDatabaseIT extends LightweightPluginDaemonTest {
     return plugin.getSysInjector().getInstance(DynamoDBRefDatabase.class);
   }
 
+  private DynamoDBAsyncRefDatabase dynamoDBAsyncRefDatabase() {
+    return plugin.getSysInjector().getInstance(DynamoDBAsyncRefDatabase.class);
+  }
+
   private void createRefInDynamoDB(Project.NameKey project, String refPath, String refValue) {
     dynamoDBClient()
         .putItem(
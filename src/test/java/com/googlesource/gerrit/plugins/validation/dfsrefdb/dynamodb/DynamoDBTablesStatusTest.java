@@ -0,0 +1,66 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class DynamoDBTablesStatusTest {
+  private final DynamoDBTablesStatus tablesStatus = new DynamoDBTablesStatus();
+
+  @Test
+  public void shouldNotBeActiveUntilTheTablesAreVerified() {
+    assertThat(tablesStatus.isActive()).isFalse();
+
+    GlobalRefDbSystemError thrown =
+        assertThrows(
+            GlobalRefDbSystemError.class,
+            () -> tablesStatus.awaitActive(10, TimeUnit.MILLISECONDS));
+    assertThat(thrown).hasMessageThat().contains("not active yet");
+  }
+
+  @Test
+  public void shouldWaitForTheTablesToBeVerified() throws Exception {
+    CompletableFuture<Void> waiting =
+        CompletableFuture.runAsync(() -> tablesStatus.awaitActive(5, TimeUnit.SECONDS));
+
+    tablesStatus.markActive();
+
+    waiting.get(5, TimeUnit.SECONDS);
+    assertThat(tablesStatus.isActive()).isTrue();
+  }
+
+  @Test
+  public void shouldNotBeActiveUntilAFailedVerificationIsRetried() {
+    tablesStatus.recordFailure(new IllegalStateException("missing table"));
+
+    assertThat(tablesStatus.isActive()).isFalse();
+    GlobalRefDbSystemError thrown =
+        assertThrows(
+            GlobalRefDbSystemError.class,
+            () -> tablesStatus.awaitActive(10, TimeUnit.MILLISECONDS));
+    assertThat(thrown).hasMessageThat().contains("could not be verified yet");
+    assertThat(thrown).hasCauseThat().hasMessageThat().isEqualTo("missing table");
+
+    tablesStatus.markActive();
+
+    assertThat(tablesStatus.isActive()).isTrue();
+  }
+}
@@ -0,0 +1,236 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+public class HedgedReadsTest {
+  private static final Duration MIN_DELAY = Duration.ofMillis(10);
+
+  private final AtomicInteger reads = new AtomicInteger();
+  private final CountDownLatch releaseSlowRead = new CountDownLatch(1);
+  private HedgedReads hedgedReads;
+
+  @After
+  public void tearDown() {
+    releaseSlowRead.countDown();
+    hedgedReads.stop();
+  }
+
+  @Test
+  public void shouldReadOnTheCallingThreadWhenDisabled() {
+    hedgedReads = newHedgedReads(0, 100);
+    Thread caller = Thread.currentThread();
+
+    assertThat(hedgedReads.read(() -> Thread.currentThread() == caller)).isTrue();
+  }
+
+  @Test
+  public void shouldNotHedgeBeforeKnowingTheLatencyOfTheReads() {
+    hedgedReads = newHedgedReads(95, 100);
+
+    assertThat(hedgedReads.getHedgeDelayNanos()).isEqualTo(Long.MAX_VALUE);
+    warmUp();
+    assertThat(hedgedReads.getHedgeDelayNanos()).isEqualTo(MIN_DELAY.toNanos());
+  }
+
+  @Test
+  public void shouldReturnTheHedgedReadWhenTheFirstReadIsSlow() {
+    hedgedReads = newHedgedReads(95, 100);
+    warmUp();
+    reads.set(0);
+
+    // The first read would succeed, but only after the hedged one
+    assertThat(hedgedReads.read(this::slowFirstRead)).isEqualTo("hedged");
+    assertThat(reads.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldCancelTheReadThatLostTheRace() throws Exception {
+    hedgedReads = newHedgedReads(95, 100);
+    warmUp();
+    reads.set(0);
+    CountDownLatch firstReadCancelled = new CountDownLatch(1);
+
+    assertThat(
+            hedgedReads.read(
+                () -> {
+                  if (reads.incrementAndGet() > 1) {
+                    return "hedged";
+                  }
+                  try {
+                    releaseSlowRead.await(5, TimeUnit.SECONDS);
+                  } catch (InterruptedException e) {
+                    firstReadCancelled.countDown();
+                  }
+                  return "first";
+                }))
+        .isEqualTo("hedged");
+    assertThat(firstReadCancelled.await(5, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test
+  public void shouldReturnTheHedgedReadWhenTheFirstReadFails() {
+    hedgedReads = newHedgedReads(95, 100);
+    warmUp();
+    reads.set(0);
+
+    assertThat(hedgedReads.read(this::slowFailingFirstRead)).isEqualTo("hedged");
+    assertThat(reads.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldReturnTheHedgedAsyncReadWhenTheFirstReadIsSlow() throws Exception {
+    hedgedReads = newHedgedReads(95, 100);
+    warmUp();
+    reads.set(0);
+    CompletableFuture<String> firstRead = new CompletableFuture<>();
+
+    assertThat(
+            hedgedReads
+                .readAsync(
+                    () ->
+                        reads.incrementAndGet() > 1
+                            ? CompletableFuture.completedFuture("hedged")
+                            : firstRead)
+                .get(5, TimeUnit.SECONDS))
+        .isEqualTo("hedged");
+    assertThat(firstRead.isCancelled()).isTrue();
+  }
+
+  @Test
+  public void shouldReturnTheFirstAsyncReadWhenItIsFast() throws Exception {
+    hedgedReads = newHedgedReads(95, 100);
+    warmUp();
+    reads.set(0);
+
+    assertThat(
+            hedgedReads
+                .readAsync(() -> CompletableFuture.completedFuture(reads.incrementAndGet()))
+                .get(5, TimeUnit.SECONDS))
+        .isEqualTo(1);
+    sleep(MIN_DELAY.toMillis() * 5);
+    assertThat(reads.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldReadOnTheCallingThreadWhenAllTheThreadsAreBusy() throws Exception {
+    hedgedReads = newHedgedReads(95, 100, 1);
+    warmUp();
+    reads.set(0);
+    Thread caller = Thread.currentThread();
+
+    Thread busyReader = new Thread(() -> hedgedReads.read(this::slowFirstRead));
+    busyReader.start();
+    while (reads.get() == 0) {
+      sleep(1);
+    }
+    assertThat(hedgedReads.read(() -> Thread.currentThread() == caller)).isTrue();
+    releaseSlowRead.countDown();
+    busyReader.join();
+  }
+
+  @Test
+  public void shouldNotHedgeBeyondTheMaximumPercentOfReads() {
+    hedgedReads = newHedgedReads(95, 0);
+    warmUp();
+    reads.set(0);
+
+    releaseSlowReadAfter(MIN_DELAY.toMillis() * 5);
+    assertThat(hedgedReads.read(this::slowFirstRead)).isEqualTo("first");
+    assertThat(reads.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldThrowTheFailureOfTheRead() {
+    hedgedReads = newHedgedReads(95, 100);
+
+    IllegalStateException thrown =
+        assertThrows(
+            IllegalStateException.class,
+            () ->
+                hedgedReads.read(
+                    () -> {
+                      throw new IllegalStateException("read failed");
+                    }));
+    assertThat(thrown).hasMessageThat().isEqualTo("read failed");
+  }
+
+  private HedgedReads newHedgedReads(int percentile, int maxHedgedReadsPercent) {
+    return newHedgedReads(percentile, maxHedgedReadsPercent, 4);
+  }
+
+  private HedgedReads newHedgedReads(int percentile, int maxHedgedReadsPercent, int maxThreads) {
+    return new HedgedReads(
+        percentile,
+        MIN_DELAY,
+        maxHedgedReadsPercent,
+        maxThreads,
+        new RefDbMetrics(new DisabledMetricMaker()));
+  }
+
+  private void warmUp() {
+    for (int i = 0; i < HedgedReads.MIN_SAMPLES; i++) {
+      hedgedReads.read(reads::incrementAndGet);
+    }
+  }
+
+  private String slowFirstRead() {
+    if (reads.incrementAndGet() > 1) {
+      return "hedged";
+    }
+    try {
+      releaseSlowRead.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return "first";
+  }
+
+  private String slowFailingFirstRead() {
+    if (reads.incrementAndGet() > 1) {
+      return "hedged";
+    }
+    sleep(MIN_DELAY.toMillis() * 5);
+    throw new IllegalStateException("first read failed");
+  }
+
+  private void releaseSlowReadAfter(long millis) {
+    new Thread(
+            () -> {
+              sleep(millis);
+              releaseSlowRead.countDown();
+            })
+        .start();
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
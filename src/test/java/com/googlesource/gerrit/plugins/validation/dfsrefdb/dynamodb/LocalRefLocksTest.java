@@ -0,0 +1,113 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb.LocalRefLocks.LocalRefLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocalRefLocksTest {
+  private static final String REF_PATH = "/project/refs/heads/master";
+  private static final String OTHER_REF_PATH = "/project/refs/heads/stable";
+
+  private LocalRefLocks localRefLocks;
+
+  @Before
+  public void setup() {
+    localRefLocks = new LocalRefLocks(new RefDbMetrics(new DisabledMetricMaker()));
+  }
+
+  @Test
+  public void shouldNotLockARefHeldByAnotherThread() throws Exception {
+    try (LocalRefLock lock = localRefLocks.lock(REF_PATH, 1, TimeUnit.SECONDS)) {
+      CompletableFuture<Void> otherThread =
+          CompletableFuture.runAsync(
+              () ->
+                  assertThrows(
+                      TimeoutException.class,
+                      () -> localRefLocks.lock(REF_PATH, 10, TimeUnit.MILLISECONDS)));
+      otherThread.get();
+    }
+  }
+
+  @Test
+  public void shouldLockDifferentRefsConcurrently() throws Exception {
+    try (LocalRefLock lock = localRefLocks.lock(REF_PATH, 1, TimeUnit.SECONDS)) {
+      CompletableFuture.supplyAsync(
+              () -> {
+                try {
+                  return localRefLocks.lock(OTHER_REF_PATH, 10, TimeUnit.MILLISECONDS);
+                } catch (Exception e) {
+                  throw new IllegalStateException(e);
+                }
+              })
+          .get()
+          .close();
+    }
+  }
+
+  @Test
+  public void shouldHandOverTheLockToTheWaitingThread() throws Exception {
+    LocalRefLock lock = localRefLocks.lock(REF_PATH, 1, TimeUnit.SECONDS);
+    CompletableFuture<LocalRefLock> waiter =
+        CompletableFuture.supplyAsync(
+            () -> {
+              try {
+                return localRefLocks.lock(REF_PATH, 10, TimeUnit.SECONDS);
+              } catch (Exception e) {
+                throw new IllegalStateException(e);
+              }
+            });
+
+    lock.close();
+
+    waiter.get(10, TimeUnit.SECONDS).close();
+  }
+
+  @Test
+  public void shouldDiscardReleasedLocks() throws Exception {
+    localRefLocks.lock(REF_PATH, 1, TimeUnit.SECONDS).close();
+    assertThrows(
+        TimeoutException.class,
+        () -> {
+          try (LocalRefLock lock = localRefLocks.lock(OTHER_REF_PATH, 1, TimeUnit.SECONDS)) {
+            localRefLocks.lock(OTHER_REF_PATH, 10, TimeUnit.MILLISECONDS);
+          }
+        });
+
+    assertThat(localRefLocks.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldReleaseALockOnlyOnceWhenClosedTwice() throws Exception {
+    LocalRefLock lock = localRefLocks.lock(REF_PATH, 1, TimeUnit.SECONDS);
+    lock.close();
+    LocalRefLock otherLock = localRefLocks.lock(REF_PATH, 1, TimeUnit.SECONDS);
+
+    lock.close();
+
+    assertThrows(
+        TimeoutException.class, () -> localRefLocks.lock(REF_PATH, 10, TimeUnit.MILLISECONDS));
+    otherLock.close();
+    assertThat(localRefLocks.size()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,105 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.amazonaws.services.dynamodbv2.LockItem;
+import com.amazonaws.services.dynamodbv2.model.LockNotGrantedException;
+import com.google.common.base.Ticker;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LockHeartbeatsTest {
+  private static final Duration LEASE_DURATION = Duration.ofSeconds(10);
+  private static final Duration HEARTBEAT_PERIOD = Duration.ofSeconds(3);
+
+  private FakeTicker ticker;
+  private LockHeartbeats heartbeats;
+  @Mock private LockItem lockItem;
+
+  @Before
+  public void setup() {
+    ticker = new FakeTicker();
+    heartbeats =
+        new LockHeartbeats(
+            LEASE_DURATION, HEARTBEAT_PERIOD, new RefDbMetrics(new DisabledMetricMaker()), ticker);
+  }
+
+  @Test
+  public void shouldNotRenewTheLocksFarFromExpiring() {
+    heartbeats.register(lockItem);
+    ticker.advance(3, TimeUnit.SECONDS);
+    heartbeats.renewExpiringLocks();
+
+    verify(lockItem, never()).sendHeartBeat();
+  }
+
+  @Test
+  public void shouldRenewTheLocksExpiringBeforeTheNextPass() {
+    heartbeats.register(lockItem);
+    ticker.advance(6, TimeUnit.SECONDS);
+    heartbeats.renewExpiringLocks();
+    ticker.advance(3, TimeUnit.SECONDS);
+    heartbeats.renewExpiringLocks();
+
+    verify(lockItem, times(1)).sendHeartBeat();
+  }
+
+  @Test
+  public void shouldNotRenewTheReleasedLocks() {
+    heartbeats.register(lockItem);
+    heartbeats.unregister(lockItem);
+    ticker.advance(6, TimeUnit.SECONDS);
+    heartbeats.renewExpiringLocks();
+
+    verify(lockItem, never()).sendHeartBeat();
+  }
+
+  @Test
+  public void shouldStopRenewingTheLocksLost() {
+    doThrow(new LockNotGrantedException("lost")).when(lockItem).sendHeartBeat();
+    heartbeats.register(lockItem);
+    ticker.advance(6, TimeUnit.SECONDS);
+    heartbeats.renewExpiringLocks();
+    ticker.advance(6, TimeUnit.SECONDS);
+    heartbeats.renewExpiringLocks();
+
+    verify(lockItem, times(1)).sendHeartBeat();
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long time, TimeUnit unit) {
+      nanos += unit.toNanos(time);
+    }
+  }
+}
@@ -0,0 +1,164 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+public class LockReleaserTest {
+  private static final String LOCK_KEY = "/project/refs/heads/master";
+  private static final Duration RETRY_INTERVAL = Duration.ofMillis(1);
+
+  private LockReleaser releaser;
+
+  @After
+  public void tearDown() {
+    if (releaser != null) {
+      releaser.stop();
+    }
+  }
+
+  @Test
+  public void shouldReleaseOnTheCallingThreadWhenDisabled() {
+    releaser = newLockReleaser(0);
+    List<String> events = new CopyOnWriteArrayList<>();
+
+    assertThrows(
+        IllegalStateException.class,
+        () ->
+            releaser.release(
+                LOCK_KEY,
+                () -> {
+                  events.add("release");
+                  throw new IllegalStateException("release failed");
+                },
+                () -> events.add("andThen")));
+
+    assertThat(events).containsExactly("release", "andThen").inOrder();
+  }
+
+  @Test
+  public void shouldReleaseInTheBackground() throws Exception {
+    releaser = newLockReleaser(10);
+    CountDownLatch releaseStarted = new CountDownLatch(1);
+    CountDownLatch completeRelease = new CountDownLatch(1);
+    CountDownLatch released = new CountDownLatch(1);
+
+    releaser.release(
+        LOCK_KEY,
+        () -> {
+          releaseStarted.countDown();
+          await(completeRelease);
+        },
+        released::countDown);
+
+    assertThat(releaseStarted.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(releaser.pendingReleases()).isEqualTo(1);
+    completeRelease.countDown();
+    assertThat(released.await(5, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test
+  public void shouldRetryFailedReleases() throws Exception {
+    releaser = newLockReleaser(10);
+    AtomicInteger attempts = new AtomicInteger();
+    CountDownLatch released = new CountDownLatch(1);
+
+    releaser.release(
+        LOCK_KEY,
+        () -> {
+          if (attempts.incrementAndGet() < 3) {
+            throw new IllegalStateException("release failed");
+          }
+        },
+        released::countDown);
+
+    assertThat(released.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(attempts.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void shouldGiveUpAfterMaxAttempts() throws Exception {
+    releaser = newLockReleaser(10);
+    AtomicInteger attempts = new AtomicInteger();
+    CountDownLatch released = new CountDownLatch(1);
+
+    releaser.release(
+        LOCK_KEY,
+        () -> {
+          attempts.incrementAndGet();
+          throw new IllegalStateException("release failed");
+        },
+        released::countDown);
+
+    assertThat(released.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(attempts.get()).isEqualTo(LockReleaser.MAX_RELEASE_ATTEMPTS);
+    assertThat(releaser.pendingReleases()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldReleaseTheSameKeyInOrder() throws Exception {
+    releaser = newLockReleaser(100);
+    List<Integer> releases = new CopyOnWriteArrayList<>();
+    CountDownLatch released = new CountDownLatch(50);
+
+    for (int i = 0; i < 50; i++) {
+      int release = i;
+      releaser.release(LOCK_KEY, () -> releases.add(release), released::countDown);
+    }
+
+    assertThat(released.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(releases).isInOrder();
+    assertThat(releases).hasSize(50);
+  }
+
+  @Test
+  public void shouldReleaseOnTheCallingThreadWhenTheQueueIsFull() throws Exception {
+    releaser = newLockReleaser(1);
+    CountDownLatch completeRelease = new CountDownLatch(1);
+    Thread caller = Thread.currentThread();
+    List<Thread> releasingThreads = new CopyOnWriteArrayList<>();
+
+    releaser.release(LOCK_KEY, () -> await(completeRelease), () -> {});
+    releaser.release(
+        "/project/refs/heads/stable", () -> releasingThreads.add(Thread.currentThread()), () -> {});
+
+    assertThat(releasingThreads).containsExactly(caller);
+    completeRelease.countDown();
+  }
+
+  private static LockReleaser newLockReleaser(int queueSize) {
+    return new LockReleaser(
+        queueSize, 2, RETRY_INTERVAL, RETRY_INTERVAL, new RefDbMetrics(new DisabledMetricMaker()));
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,101 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.Test;
+
+public class MicroBatcherTest {
+  private static final int MAX_BATCH_SIZE = 3;
+
+  private final List<Set<String>> batches = new CopyOnWriteArrayList<>();
+
+  @Test
+  public void shouldLoadTheKeysOfConcurrentThreadsInOneBatch() throws Exception {
+    MicroBatcher<String, String> batcher = newBatcher(1, TimeUnit.SECONDS);
+
+    ExecutorService executor = Executors.newFixedThreadPool(MAX_BATCH_SIZE);
+    try {
+      List<CompletableFuture<String>> values =
+          IntStream.range(0, MAX_BATCH_SIZE)
+              .mapToObj(
+                  i -> CompletableFuture.supplyAsync(() -> batcher.get("key-" + i).get(), executor))
+              .collect(Collectors.toList());
+
+      for (int i = 0; i < MAX_BATCH_SIZE; i++) {
+        assertThat(values.get(i).get(5, TimeUnit.SECONDS)).isEqualTo("value-key-" + i);
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertThat(batches).containsExactly(ImmutableSet.of("key-0", "key-1", "key-2"));
+  }
+
+  @Test
+  public void shouldLoadAPartialBatchOnceTheWindowHasElapsed() {
+    MicroBatcher<String, String> batcher = newBatcher(10, TimeUnit.MILLISECONDS);
+
+    assertThat(batcher.get("key")).hasValue("value-key");
+    assertThat(batches).containsExactly(ImmutableSet.of("key"));
+  }
+
+  @Test
+  public void shouldReturnEmptyForKeysNotFound() {
+    MicroBatcher<String, String> batcher =
+        new MicroBatcher<>(10, TimeUnit.MILLISECONDS, MAX_BATCH_SIZE, keys -> ImmutableMap.of());
+
+    assertThat(batcher.get("key")).isEmpty();
+  }
+
+  @Test
+  public void shouldFailAllTheKeysOfAFailedBatch() {
+    MicroBatcher<String, String> batcher =
+        new MicroBatcher<>(
+            10,
+            TimeUnit.MILLISECONDS,
+            MAX_BATCH_SIZE,
+            keys -> {
+              throw new IllegalStateException("failed");
+            });
+
+    assertThrows(UncheckedExecutionException.class, () -> batcher.get("key"));
+  }
+
+  private MicroBatcher<String, String> newBatcher(long window, TimeUnit unit) {
+    return new MicroBatcher<>(
+        window,
+        unit,
+        MAX_BATCH_SIZE,
+        keys -> {
+          batches.add(ImmutableSet.copyOf(keys));
+          return keys.stream().collect(Collectors.toMap(Function.identity(), k -> "value-" + k));
+        });
+  }
+}
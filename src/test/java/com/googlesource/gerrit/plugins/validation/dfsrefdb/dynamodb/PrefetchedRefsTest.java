@@ -0,0 +1,79 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gerrit.entities.Project;
+import java.time.Duration;
+import java.util.Optional;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PrefetchedRefsTest {
+  private static final Project.NameKey PROJECT = Project.nameKey("project");
+  private static final String REF_NAME = "refs/heads/master";
+  private static final String REF_VALUE = "533d3ccf8a650fb26380faa732921a2c74924d5c";
+
+  @Mock private DynamoDBRefDatabase refDb;
+
+  @Test
+  public void shouldAnswerFromThePrefetchedRefsUntilTheyExpire() {
+    PrefetchedRefs refs = prefetchedRefs(System.nanoTime(), Duration.ofMinutes(1));
+
+    assertThat(refs.isUpToDate(refOf(REF_NAME, REF_VALUE))).isTrue();
+    assertThat(refs.get(REF_NAME)).hasValue(REF_VALUE);
+    verify(refDb, never()).isUpToDate(eq(PROJECT), any(Ref.class));
+  }
+
+  @Test
+  public void shouldReadTheRefsAgainOnceThePrefetchedRefsExpire() {
+    Ref ref = refOf(REF_NAME, REF_VALUE);
+    when(refDb.isUpToDate(PROJECT, ref)).thenReturn(false);
+    PrefetchedRefs refs =
+        prefetchedRefs(System.nanoTime() - Duration.ofSeconds(2).toNanos(), Duration.ofSeconds(1));
+
+    assertThat(refs.isUpToDate(ref)).isFalse();
+    verify(refDb).isUpToDate(PROJECT, ref);
+  }
+
+  private PrefetchedRefs prefetchedRefs(long prefetchedAtNanos, Duration maxAge) {
+    return new PrefetchedRefs(
+        refDb,
+        PROJECT,
+        Optional.of(ImmutableMap.of(REF_NAME, REF_VALUE)),
+        false,
+        prefetchedAtNanos,
+        maxAge);
+  }
+
+  private static Ref refOf(String refName, String refValue) {
+    return new ObjectIdRef.PeeledNonTag(
+        Ref.Storage.NETWORK, refName, ObjectId.fromString(refValue));
+  }
+}
@@ -0,0 +1,69 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+public class RefValueFormatTest {
+  private static final String OBJECT_ID = "533d3ccf8a650fb26380faa732921a2c74924d5c";
+
+  @Test
+  public void stringFormatShouldStoreObjectIdsAsStrings() {
+    AttributeValue value = RefValueFormat.STRING.encode(OBJECT_ID);
+
+    assertThat(value.getS()).isEqualTo(OBJECT_ID);
+    assertThat(value.getB()).isNull();
+  }
+
+  @Test
+  public void binaryFormatShouldStoreObjectIdsAsRawBytes() {
+    AttributeValue value = RefValueFormat.BINARY.encode(OBJECT_ID);
+
+    assertThat(value.getS()).isNull();
+    assertThat(value.getB().remaining()).isEqualTo(20);
+  }
+
+  @Test
+  public void binaryFormatShouldStoreOtherValuesAsStrings() {
+    AttributeValue value = RefValueFormat.BINARY.encode("42");
+
+    assertThat(value.getS()).isEqualTo("42");
+  }
+
+  @Test
+  public void shouldDecodeBothFormats() {
+    assertThat(RefValueFormat.decode(RefValueFormat.STRING.encode(OBJECT_ID))).isEqualTo(OBJECT_ID);
+    assertThat(RefValueFormat.decode(RefValueFormat.BINARY.encode(OBJECT_ID))).isEqualTo(OBJECT_ID);
+  }
+
+  @Test
+  public void shouldDecodeBothFormatsToObjectIds() {
+    ObjectId objectId = ObjectId.fromString(OBJECT_ID);
+
+    assertThat(RefValueFormat.decodeObjectId(RefValueFormat.STRING.encode(OBJECT_ID)))
+        .isEqualTo(objectId);
+    assertThat(RefValueFormat.decodeObjectId(RefValueFormat.BINARY.encode(OBJECT_ID)))
+        .isEqualTo(objectId);
+  }
+
+  @Test
+  public void shouldNotDecodeOtherValuesToObjectIds() {
+    assertThat(RefValueFormat.decodeObjectId(RefValueFormat.BINARY.encode("42"))).isNull();
+  }
+}
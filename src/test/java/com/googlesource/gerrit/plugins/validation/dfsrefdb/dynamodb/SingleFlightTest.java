@@ -0,0 +1,162 @@
+// Copyright (C) 2021 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.googlesource.gerrit.plugins.validation.dfsrefdb.dynamodb;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.testing.GerritJUnit.assertThrows;
+
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SingleFlightTest {
+  private static final String REF_PATH = "/project/refs/heads/master";
+  private static final String OTHER_REF_PATH = "/project/refs/heads/stable";
+
+  private AtomicInteger sharedCalls;
+  private AtomicInteger calls;
+  private SingleFlight<String, String> singleFlight;
+
+  @Before
+  public void setup() {
+    sharedCalls = new AtomicInteger();
+    calls = new AtomicInteger();
+    singleFlight = new SingleFlight<>(sharedCalls::incrementAndGet);
+  }
+
+  @Test
+  public void shouldShareTheInFlightCallForTheSameKey() throws Exception {
+    CountDownLatch callStarted = new CountDownLatch(1);
+    CountDownLatch completeCall = new CountDownLatch(1);
+    CompletableFuture<String> leader =
+        CompletableFuture.supplyAsync(
+            () ->
+                singleFlight.get(
+                    REF_PATH,
+                    () -> {
+                      calls.incrementAndGet();
+                      callStarted.countDown();
+                      await(completeCall);
+                      return "value";
+                    }));
+    assertThat(callStarted.await(5, TimeUnit.SECONDS)).isTrue();
+
+    CompletableFuture<String> follower =
+        CompletableFuture.supplyAsync(() -> singleFlight.get(REF_PATH, this::call));
+    waitUntilShared();
+    completeCall.countDown();
+
+    assertThat(leader.get()).isEqualTo("value");
+    assertThat(follower.get()).isEqualTo("value");
+    assertThat(calls.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldShareTheFailureOfTheInFlightCall() throws Exception {
+    CountDownLatch callStarted = new CountDownLatch(1);
+    CountDownLatch completeCall = new CountDownLatch(1);
+    CompletableFuture<String> leader =
+        CompletableFuture.supplyAsync(
+            () ->
+                singleFlight.get(
+                    REF_PATH,
+                    () -> {
+                      callStarted.countDown();
+                      await(completeCall);
+                      throw new IllegalStateException("failed");
+                    }));
+    assertThat(callStarted.await(5, TimeUnit.SECONDS)).isTrue();
+
+    CompletableFuture<Void> follower =
+        CompletableFuture.runAsync(
+            () ->
+                assertThrows(
+                    UncheckedExecutionException.class,
+                    () -> singleFlight.get(REF_PATH, this::call)));
+    waitUntilShared();
+    completeCall.countDown();
+
+    follower.get();
+    assertThrows(ExecutionException.class, leader::get);
+  }
+
+  @Test
+  public void shouldShareTheInFlightAsyncCallForTheSameKey() throws Exception {
+    CompletableFuture<String> call = new CompletableFuture<>();
+    CompletableFuture<String> leader =
+        singleFlight.getAsync(
+            REF_PATH,
+            () -> {
+              calls.incrementAndGet();
+              return call;
+            });
+    CompletableFuture<String> follower = singleFlight.getAsync(REF_PATH, this::asyncCall);
+
+    follower.cancel(false);
+    call.complete("value");
+
+    assertThat(leader.get()).isEqualTo("value");
+    assertThat(calls.get()).isEqualTo(1);
+    assertThat(sharedCalls.get()).isEqualTo(1);
+    // The completed call is no longer shared
+    assertThat(singleFlight.getAsync(REF_PATH, this::asyncCall).get()).isEqualTo("value-2");
+  }
+
+  @Test
+  public void shouldNotShareCallsForDifferentKeys() {
+    singleFlight.get(REF_PATH, this::call);
+    singleFlight.get(OTHER_REF_PATH, this::call);
+
+    assertThat(calls.get()).isEqualTo(2);
+    assertThat(sharedCalls.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldMakeANewCallOnceTheInFlightCallIsCompleted() {
+    singleFlight.get(REF_PATH, this::call);
+    singleFlight.get(REF_PATH, this::call);
+
+    assertThat(calls.get()).isEqualTo(2);
+    assertThat(sharedCalls.get()).isEqualTo(0);
+  }
+
+  private String call() {
+    return "value-" + calls.incrementAndGet();
+  }
+
+  private CompletableFuture<String> asyncCall() {
+    return CompletableFuture.completedFuture(call());
+  }
+
+  private void waitUntilShared() throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (sharedCalls.get() == 0 && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    assertThat(sharedCalls.get()).isEqualTo(1);
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}